@@ -0,0 +1,138 @@
+package org.emailclient;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import org.emailclient.templates.EmailTemplate;
+import org.emailclient.templates.EncodedPartCache;
+import org.emailclient.templates.TemplateMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a notification into MIME, {@code build} only creates the message, {@code buildAndWrite} also
+ * encodes it the way it is written to the connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildMessageBenchmark {
+
+    @Param({"plain", "html", "inlineImage", "attachment"})
+    private String kind;
+
+    @Param({"false", "true"})
+    private boolean partCache;
+
+    private EmailClient client;
+    private Session session;
+    private File image;
+    private EmailNotification notification;
+    private EmailTemplate template;
+    private TemplateMessage templateMessage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        session = Session.getInstance(new Properties());
+        client = new EmailClient(session, null, partCache ? EncodedPartCache.builder().build() : null);
+
+        final Random random = new Random(42);
+        final byte[] imageBytes = new byte[32 * 1024];
+        random.nextBytes(imageBytes);
+        image = File.createTempFile("benchmark", ".png");
+        Files.write(image.toPath(), imageBytes);
+
+        final byte[] report = new byte[256 * 1024];
+        random.nextBytes(report);
+
+        final boolean isHtml = !kind.equals("plain");
+        final String body = isHtml
+                ? "<html><body><p>Hello ${name}</p><img src=\"cid:logo\"/></body></html>"
+                : "Hello ${name}, your report is ready.";
+
+        final EmailNotification.EmailNotificationBuilder builder = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("Benchmark report")
+                .setBody(body.replace("${name}", "Ann"))
+                .setIsHtml(isHtml)
+                .setToRecipients(List.of("to@example.com"))
+                .setCcRecipients(List.of("cc@example.com"));
+
+        final EmailTemplate.EmailTemplateBuilder templateBuilder = EmailTemplate.builder()
+                .setFromEmail("from@example.com")
+                .setSubject("Benchmark report")
+                .setBody(body)
+                .setIsHtml(isHtml);
+
+        if (kind.equals("inlineImage")) {
+            builder.setImages(Map.of("logo", image));
+            templateBuilder.setImages(Map.of("logo", image));
+        }
+        if (kind.equals("attachment")) {
+            final List<EmailAttachment> attachments = List.of(new EmailAttachment("report.pdf", report, "application/pdf"));
+            builder.setAttachments(attachments);
+            templateBuilder.setAttachments(attachments);
+        }
+
+        notification = builder.build();
+        template = templateBuilder.build();
+        templateMessage = new TemplateMessage(
+                List.of("to@example.com"),
+                List.of("cc@example.com"),
+                null,
+                Map.of("name", "Ann")
+        );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        image.delete();
+    }
+
+    @Benchmark
+    public Message build() throws MessagingException, IOException {
+        return client.buildMessage(notification, session);
+    }
+
+    @Benchmark
+    public Message buildAndWrite() throws MessagingException, IOException {
+        return write(client.buildMessage(notification, session));
+    }
+
+    @Benchmark
+    public Message templateAndWrite() throws MessagingException, IOException {
+        return write(template.createMessage(session, templateMessage));
+    }
+
+    private static Message write(final Message message) throws MessagingException, IOException {
+        message.saveChanges();
+        message.writeTo(OutputStream.nullOutputStream());
+        return message;
+    }
+}
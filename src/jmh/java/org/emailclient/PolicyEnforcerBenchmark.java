@@ -0,0 +1,117 @@
+package org.emailclient;
+
+import org.emailclient.policies.PolicyEnforcer;
+import org.emailclient.policies.RetryPolicy;
+import org.emailclient.policies.SpamPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Overhead of {@link PolicyEnforcer#run} around a call that does nothing, compared to calling it directly. Retries
+ * have no delay so only the enforcer itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PolicyEnforcerBenchmark {
+
+    private final Function<EmailNotification, Boolean> succeed = n -> true;
+
+    private final Function<EmailNotification, Boolean> fail = n -> {
+        throw new EmailNotificationException("failed");
+    };
+
+    private boolean failNext;
+
+    /**
+     * Fails every other call, so each run needs exactly one retry.
+     */
+    private final Function<EmailNotification, Boolean> failOnce = n -> {
+        failNext = !failNext;
+        if (failNext) {
+            throw new EmailNotificationException("failed");
+        }
+        return true;
+    };
+
+    private EmailNotification notification;
+    private PolicyEnforcer<EmailNotification, Boolean> plain;
+    private PolicyEnforcer<EmailNotification, Boolean> validated;
+    private PolicyEnforcer<EmailNotification, Boolean> retried;
+    private PolicyEnforcer<EmailNotification, Boolean> fallback;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        notification = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("Enforcer benchmark")
+                .setBody("Enforcer benchmark")
+                .setToRecipients(List.of("to@example.com"))
+                .build();
+
+        final RetryPolicy retryPolicy = RetryPolicy.builder()
+                .withDelay(TimeUnit.NANOSECONDS, 0)
+                .withMaxRetries(1)
+                .handle(List.of(EmailNotificationException.class))
+                .build();
+
+        plain = PolicyEnforcer.<EmailNotification, Boolean>builder().build();
+
+        //no cool down, every call passes the check
+        validated = PolicyEnforcer.<EmailNotification, Boolean>builder()
+                .withValidations(List.of(new SpamPolicy(Duration.ZERO)))
+                .build();
+
+        retried = PolicyEnforcer.<EmailNotification, Boolean>builder()
+                .retry(retryPolicy)
+                .build();
+
+        fallback = PolicyEnforcer.<EmailNotification, Boolean>builder()
+                .retry(retryPolicy)
+                .setFallBack(List.of(n -> false))
+                .build();
+    }
+
+    @Benchmark
+    public Boolean direct() {
+        return succeed.apply(notification);
+    }
+
+    @Benchmark
+    public Boolean noPolicies() {
+        return plain.run(succeed, notification);
+    }
+
+    @Benchmark
+    public Boolean validation() {
+        return validated.run(succeed, notification);
+    }
+
+    @Benchmark
+    public Boolean retry() {
+        return retried.run(failOnce, notification);
+    }
+
+    @Benchmark
+    public Boolean retryThenFallback() {
+        return fallback.run(fail, notification);
+    }
+}
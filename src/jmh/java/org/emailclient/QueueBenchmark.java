@@ -0,0 +1,88 @@
+package org.emailclient;
+
+import org.emailclient.queues.EmailClientQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enqueue to send throughput of {@link EmailClientQueue} with a sender that does nothing, so only the hand off
+ * between the caller and the workers is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"1", "4"})
+    private int workers;
+
+    @Param({"0", "10000"})
+    private int capacity;
+
+    private EmailClientQueue queue;
+    private EmailNotification notification;
+    private volatile CountDownLatch sent;
+
+    private final INotificationSender<EmailNotification> sender = n -> {
+        sent.countDown();
+        return true;
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        final EmailClientQueue.EmailClientQueueBuilder builder = EmailClientQueue.builder().withWorkers(workers);
+        if (capacity > 0) {
+            builder.withCapacity(capacity);
+        }
+
+        queue = builder.build();
+        queue.start();
+
+        notification = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("Queue benchmark")
+                .setBody("Queue benchmark")
+                .setToRecipients(List.of("to@example.com"))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void enqueueAndDrain() throws InterruptedException {
+
+        sent = new CountDownLatch(BATCH);
+
+        for (int i = 0; i < BATCH; i++) {
+            queue.add(sender, notification);
+        }
+
+        sent.await();
+    }
+}
@@ -0,0 +1,80 @@
+package org.emailclient;
+
+import org.emailclient.policies.SpamPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SpamPolicy#validate} with one policy shared by all benchmark threads, half of the subjects are shared by
+ * every thread so their slots are contended.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpamPolicyBenchmark {
+
+    private static final int SUBJECTS = 1024;
+
+    @State(Scope.Benchmark)
+    public static class SharedPolicy {
+
+        //no cool down so every check updates its slot, the most expensive path apart from a rejection
+        final SpamPolicy policy = new SpamPolicy(Duration.ZERO);
+    }
+
+    @State(Scope.Thread)
+    public static class Subjects {
+
+        EmailNotification[] notifications;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+
+            notifications = new EmailNotification[SUBJECTS];
+            final String thread = Thread.currentThread().getName();
+
+            for (int i = 0; i < SUBJECTS; i++) {
+                notifications[i] = new EmailNotification.EmailNotificationBuilder()
+                        .setFromEmail("from@example.com")
+                        .setSubject(i % 2 == 0 ? "Shared subject " + i : thread + " subject " + i)
+                        .setBody("Spam benchmark")
+                        .setToRecipients(List.of("to@example.com"))
+                        .build();
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean uncontended(SharedPolicy shared, Subjects subjects) {
+        return validate(shared, subjects);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean contended(SharedPolicy shared, Subjects subjects) {
+        return validate(shared, subjects);
+    }
+
+    private static boolean validate(SharedPolicy shared, Subjects subjects) {
+        final EmailNotification notification = subjects.notifications[subjects.next++ & (SUBJECTS - 1)];
+        return shared.policy.validate(notification);
+    }
+}
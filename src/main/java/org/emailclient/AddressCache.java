@@ -0,0 +1,97 @@
+package org.emailclient;
+
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parsed addresses by their string, so an address that is sent to again is not parsed again. Invalid addresses are
+ * cached as well. The least recently used entries are evicted once there are more than {@code maxEntries}.
+ * <p>
+ * The returned addresses are shared and must not be modified.
+ */
+public class AddressCache {
+
+    private static final AddressCache SHARED = new AddressCache(10_000);
+
+    private final int maxEntries;
+    private final Map<String, Object> addresses;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public AddressCache(int maxEntries) {
+
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.addresses = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > AddressCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * The cache used when no other one is given.
+     */
+    public static AddressCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @throws AddressException when the address is not a valid RFC 822 address
+     */
+    public InternetAddress parse(final String address) throws AddressException {
+
+        Object parsed;
+
+        synchronized (addresses) {
+            parsed = addresses.get(address);
+        }
+
+        if (parsed == null) {
+
+            misses.increment();
+
+            try {
+                parsed = new InternetAddress(address, true);
+            } catch (AddressException e) {
+                parsed = e;
+            }
+
+            synchronized (addresses) {
+                addresses.put(address, parsed);
+            }
+
+        } else {
+            hits.increment();
+        }
+
+        if (parsed instanceof AddressException e) {
+            throw e;
+        }
+
+        return (InternetAddress) parsed;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        synchronized (addresses) {
+            return addresses.size();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.emailclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the content of an {@link EmailAttachment} comes from. Only {@link InMemory} keeps the content on the heap,
+ * the others are read when the message is written to the connection.
+ */
+public sealed interface AttachmentSource permits AttachmentSource.InMemory, AttachmentSource.FromPath, AttachmentSource.FromStream {
+
+    /**
+     * Opens a new stream over the whole content, the caller closes it.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Content length in bytes, -1 when it is only known after reading.
+     */
+    long size();
+
+    static AttachmentSource of(byte[] content) {
+        return new InMemory(content);
+    }
+
+    static AttachmentSource of(Path path) {
+        return new FromPath(path);
+    }
+
+    /**
+     * @param supplier called once per send, it must return a new stream over the same content every time
+     */
+    static AttachmentSource of(StreamSupplier supplier) {
+        return new FromStream(supplier);
+    }
+
+    @FunctionalInterface
+    interface StreamSupplier {
+
+        InputStream get() throws IOException;
+    }
+
+    record InMemory(byte[] content) implements AttachmentSource {
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+    }
+
+    /**
+     * Read through a {@link FileChannel} at send time, the file must still exist then.
+     */
+    record FromPath(Path path) implements AttachmentSource {
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+        }
+
+        @Override
+        public long size() {
+            try {
+                return Files.size(path);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+
+    record FromStream(StreamSupplier supplier) implements AttachmentSource {
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return supplier.get();
+        }
+
+        @Override
+        public long size() {
+            return -1;
+        }
+    }
+}
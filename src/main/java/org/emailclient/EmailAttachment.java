@@ -1,6 +1,88 @@
 package org.emailclient;
 
-public record EmailAttachment(String fileName, byte[] content, String mimeType) {
+import jakarta.activation.DataSource;
+import jakarta.mail.EncodingAware;
+import jakarta.mail.util.ByteArrayDataSource;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
 
+/**
+ * A file attached to a message. Attachments created from a {@link Path} or a stream only hold a reference until the
+ * message is written, their content is base64 encoded while it is streamed to the connection.
+ */
+public record EmailAttachment(String fileName, AttachmentSource source, String mimeType) {
+
+    public EmailAttachment(String fileName, byte[] content, String mimeType) {
+        this(fileName, AttachmentSource.of(content), mimeType);
+    }
+
+    public static EmailAttachment of(String fileName, Path path, String mimeType) {
+        return new EmailAttachment(fileName, AttachmentSource.of(path), mimeType);
+    }
+
+    public static EmailAttachment of(String fileName, AttachmentSource.StreamSupplier supplier, String mimeType) {
+        return new EmailAttachment(fileName, AttachmentSource.of(supplier), mimeType);
+    }
+
+    /**
+     * The whole content, attachments that are not {@link AttachmentSource.InMemory} are read into a new array.
+     */
+    public byte[] content() throws IOException {
+
+        if (source instanceof AttachmentSource.InMemory inMemory) {
+            return inMemory.content();
+        }
+
+        try (InputStream in = source.openStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    public boolean isInMemory() {
+        return source instanceof AttachmentSource.InMemory;
+    }
+
+    /**
+     * Data source for a body part, only an in memory attachment is scanned to pick its transfer encoding, the others
+     * are always base64 so their content is read once.
+     */
+    public DataSource dataSource() {
+
+        if (source instanceof AttachmentSource.InMemory inMemory) {
+            return new ByteArrayDataSource(inMemory.content(), mimeType);
+        }
+
+        return new StreamingDataSource(this);
+    }
+
+    private record StreamingDataSource(EmailAttachment attachment) implements DataSource, EncodingAware {
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return attachment.source().openStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Attachment " + attachment.fileName() + " is read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return attachment.mimeType();
+        }
+
+        @Override
+        public String getName() {
+            return attachment.fileName();
+        }
+
+        @Override
+        public String getEncoding() {
+            return "base64";
+        }
+    }
 }
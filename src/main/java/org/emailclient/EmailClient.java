@@ -7,35 +7,74 @@ import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
-import jakarta.mail.util.ByteArrayDataSource;
+import org.emailclient.metrics.IMetricsRecorder;
+import org.emailclient.metrics.Metrics;
+import org.emailclient.templates.EmailTemplate;
+import org.emailclient.templates.EncodedPartCache;
+import org.emailclient.templates.EncodedPartCacheMetrics;
+import org.emailclient.templates.TemplateMessage;
+import org.emailclient.transports.PipeliningSMTPTransport;
+import org.emailclient.transports.PooledTransport;
+import org.emailclient.transports.TransportPool;
+import org.emailclient.transports.TransportPoolMetrics;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class EmailClient implements INotificationSender<EmailNotification> {
+public class EmailClient implements IRenderingSender<EmailNotification>, AutoCloseable {
 
     final Session session;
 
+    private final TransportPool transportPool;
+
+    private final ExecutorService ioExecutor;
+
+    private final EncodedPartCache partCache;
+
+    private final IMetricsRecorder.Timer buildTime = Metrics.recorder().timer(Metrics.BUILD_TIME);
+    private final IMetricsRecorder.Timer smtpTime = Metrics.recorder().timer(Metrics.SMTP_TIME);
+    private final IMetricsRecorder.Counter smtpFailures = Metrics.recorder().counter(Metrics.SMTP_FAILURES);
+
     public static EmailClient create(
             final Properties properties,
             final String user,
             final String password
     ) {
 
+        return new EmailClient(createSession(properties, user, password));
+    }
 
-        final Session session = Session.getDefaultInstance(
-                properties,
-                new Authenticator() {
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(user, password);
-                    }
-                });
+    /**
+     * Creates a client that keeps up to {@code poolSize} authenticated connections open and reuses them across sends.
+     */
+    public static EmailClient createPooled(
+            final Properties properties,
+            final String user,
+            final String password,
+            final int poolSize
+    ) {
 
-        return new EmailClient(session);
+        final Session session = createSession(properties, user, password);
+
+        return new EmailClient(
+                session,
+                TransportPool.builder(session)
+                        .withMaxSize(poolSize)
+                        .build()
+        );
     }
 
 
@@ -47,8 +86,45 @@ public class EmailClient implements INotificationSender<EmailNotification> {
 
     public EmailClient(
             final Session session
+    ) {
+        this(session, null);
+    }
+
+    public EmailClient(
+            final Session session,
+            final TransportPool transportPool
+    ) {
+        this(session, transportPool, null);
+    }
+
+    /**
+     * @param partCache encoded images and attachments shared across messages, may be null
+     */
+    public EmailClient(
+            final Session session,
+            final TransportPool transportPool,
+            final EncodedPartCache partCache
     ) {
         this.session = session;
+        this.transportPool = transportPool;
+        this.partCache = partCache;
+        this.ioExecutor = ioExecutor(transportPool == null
+                ? Runtime.getRuntime().availableProcessors()
+                : transportPool.getMaxSize());
+    }
+
+    private static Session createSession(
+            final Properties properties,
+            final String user,
+            final String password
+    ) {
+        return Session.getDefaultInstance(
+                properties,
+                new Authenticator() {
+                    protected PasswordAuthentication getPasswordAuthentication() {
+                        return new PasswordAuthentication(user, password);
+                    }
+                });
     }
 
 
@@ -57,9 +133,11 @@ public class EmailClient implements INotificationSender<EmailNotification> {
 
         try {
 
-            Message message = buildMessage(emailNotification, session);
+            final long start = System.nanoTime();
+            final Message message = buildMessage(emailNotification, session);
+            buildTime.record(System.nanoTime() - start);
 
-            Transport.send(message);
+            deliver(message);
 
         } catch (MessagingException | IOException e) {
             throw new EmailNotificationException(e);
@@ -69,7 +147,234 @@ public class EmailClient implements INotificationSender<EmailNotification> {
 
     }
 
-    private Message buildMessage(
+    /**
+     * Builds the message and writes it in its wire format, the expensive part of a send that needs no connection.
+     */
+    @Override
+    public RenderedMessage render(final EmailNotification emailNotification) throws MessagingException, IOException {
+
+        final long start = System.nanoTime();
+        final RenderedMessage message = RenderedMessage.render(
+                session, (MimeMessage) buildMessage(emailNotification, session)
+        );
+        buildTime.record(System.nanoTime() - start);
+
+        return message;
+    }
+
+    @Override
+    public boolean sendRendered(final EmailNotification emailNotification, final RenderedMessage message) {
+
+        try {
+            deliver(message);
+        } catch (MessagingException e) {
+            throw new EmailNotificationException(e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends the rendered messages over one connection, like {@link #sendBatch(Collection)}.
+     */
+    @Override
+    public List<SendResult<EmailNotification>> sendRenderedBatch(
+            final List<EmailNotification> notifications, final List<RenderedMessage> messages
+    ) {
+        //sendAll asks for the messages in iteration order, once each
+        final Iterator<RenderedMessage> rendered = messages.iterator();
+        return sendAll(notifications, notification -> rendered.next());
+    }
+
+    /**
+     * Sends one message of a compiled template, only the placeholders are rendered here.
+     */
+    public boolean sendTemplate(final EmailTemplate template, final TemplateMessage templateMessage) {
+
+        try {
+
+            final long start = System.nanoTime();
+            final Message message = template.createMessage(session, templateMessage);
+            buildTime.record(System.nanoTime() - start);
+
+            deliver(message);
+
+        } catch (MessagingException e) {
+            throw new EmailNotificationException(e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Like {@link #sendBatch(Collection)} for messages of one template.
+     */
+    public List<SendResult<TemplateMessage>> sendTemplateBatch(
+            final EmailTemplate template,
+            final Collection<TemplateMessage> templateMessages
+    ) {
+        return sendAll(templateMessages, templateMessage -> template.createMessage(session, templateMessage));
+    }
+
+    /**
+     * Sends on this client's I/O threads, which are created on demand and kept alive for a minute when idle. There are
+     * as many as the pool has connections, or processors without a pool, later sends wait for a free thread.
+     * The future completes with the outcome and timing of the send and never exceptionally.
+     */
+    public CompletableFuture<SendResult<EmailNotification>> sendAsync(final EmailNotification emailNotification) {
+        return sendAsync(emailNotification, ioExecutor);
+    }
+
+    /**
+     * Sends all notifications over one connection, pipelining MAIL FROM and RCPT TO when the server supports it.
+     * A notification that fails to build or is rejected is reported in its result and the batch continues, a broken
+     * connection is replaced for the remaining notifications.
+     */
+    @Override
+    public List<SendResult<EmailNotification>> sendBatch(final Collection<EmailNotification> notifications) {
+        return sendAll(notifications, notification -> buildMessage(notification, session));
+    }
+
+    /**
+     * Pool metrics, or null when this client opens a new connection per message.
+     */
+    public TransportPoolMetrics getTransportPoolMetrics() {
+        return transportPool == null ? null : transportPool.getMetrics();
+    }
+
+    /**
+     * Part cache metrics, or null when this client encodes every part per message.
+     */
+    public EncodedPartCacheMetrics getPartCacheMetrics() {
+        return partCache == null ? null : partCache.getMetrics();
+    }
+
+    @Override
+    public void close() {
+        ioExecutor.shutdown();
+        if (transportPool != null) {
+            transportPool.close();
+        }
+    }
+
+    private static ExecutorService ioExecutor(final int threads) {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                1,
+                TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    final Thread thread = new Thread(r, "email-client-io-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private <T> List<SendResult<T>> sendAll(final Collection<T> items, final MessageFactory<T> messageFactory) {
+
+        final List<SendResult<T>> results = new ArrayList<>(items.size());
+
+        final BatchTransport batchTransport = new BatchTransport();
+
+        try {
+
+            for (T item : items) {
+
+                final Message message;
+                final long buildStart = System.nanoTime();
+
+                try {
+                    message = messageFactory.create(item);
+                    message.saveChanges();
+                    buildTime.record(System.nanoTime() - buildStart);
+                } catch (MessagingException | IOException | RuntimeException e) {
+                    results.add(SendResult.failure(item, e instanceof EmailNotificationException ex ? ex : new EmailNotificationException(e)));
+                    continue;
+                }
+
+                final long sendStart = System.nanoTime();
+
+                try {
+
+                    batchTransport.get().sendMessage(message, message.getAllRecipients());
+                    results.add(SendResult.success(item));
+
+                } catch (SendFailedException e) {
+                    smtpFailures.increment();
+                    results.add(SendResult.failure(item, new EmailNotificationException(e)));
+                    batchTransport.discardIfDisconnected();
+                } catch (MessagingException e) {
+                    smtpFailures.increment();
+                    results.add(SendResult.failure(item, new EmailNotificationException(e)));
+                    batchTransport.discard();
+                } finally {
+                    smtpTime.record(System.nanoTime() - sendStart);
+                }
+            }
+
+        } finally {
+            batchTransport.close();
+        }
+
+        return results;
+    }
+
+    private void deliver(final Message message) throws MessagingException {
+
+        final long start = System.nanoTime();
+
+        try {
+            if (transportPool == null) {
+                Transport.send(message);
+            } else {
+                sendPooled(message);
+            }
+        } catch (MessagingException | RuntimeException e) {
+            smtpFailures.increment();
+            throw e;
+        } finally {
+            smtpTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private void sendPooled(final Message message) throws MessagingException {
+
+        //Transport.send does this implicitly
+        message.saveChanges();
+
+        final PooledTransport pooled = transportPool.borrow();
+        boolean broken = true;
+
+        try {
+
+            pooled.getTransport().sendMessage(message, message.getAllRecipients());
+            broken = false;
+
+        } catch (SendFailedException ex) {
+            //rejected recipients leave the connection usable, anything else is checked before reuse
+            broken = !pooled.getTransport().isConnected();
+            throw ex;
+        } finally {
+            transportPool.release(pooled, broken);
+        }
+    }
+
+    /**
+     * Builds the MIME message of the notification without sending it.
+     */
+    public Message createMessage(final EmailNotification emailNotification) throws MessagingException, IOException {
+        return buildMessage(emailNotification, session);
+    }
+
+    Message buildMessage(
             final EmailNotification emailNotification, final Session session
     ) throws MessagingException, IOException {
         final boolean isHtml = emailNotification.isHtml();
@@ -77,14 +382,16 @@ public class EmailClient implements INotificationSender<EmailNotification> {
 
         final MimeMessage message = new MimeMessage(session);
 
-        message.setFrom(new InternetAddress(emailNotification.getFromEmail()));
+        final EmailNotification.Addresses addresses = emailNotification.getAddresses();
 
+        message.setFrom(addresses.from());
 
-        setRecipients(message, emailNotification.getToRecipients(), Message.RecipientType.TO);
 
-        setRecipients(message, emailNotification.getCcRecipients(), Message.RecipientType.CC);
+        setRecipients(message, addresses.to(), Message.RecipientType.TO);
 
-        setRecipients(message, emailNotification.getBccRecipients(), Message.RecipientType.BCC);
+        setRecipients(message, addresses.cc(), Message.RecipientType.CC);
+
+        setRecipients(message, addresses.bcc(), Message.RecipientType.BCC);
 
         message.setSubject(emailNotification.getSubject(), "UTF-8");
 
@@ -157,21 +464,12 @@ public class EmailClient implements INotificationSender<EmailNotification> {
     }
 
 
-    private void setRecipients(final MimeMessage message, Collection<String> recipients, Message.RecipientType type) {
+    private void setRecipients(final MimeMessage message, InternetAddress[] recipients, Message.RecipientType type)
+            throws MessagingException {
 
-        if (recipients == null) {
-            return;
+        if (recipients.length > 0) {
+            message.setRecipients(type, recipients);
         }
-
-        recipients.forEach(
-                e -> {
-                    try {
-                        message.addRecipient(type, new InternetAddress(e));
-                    } catch (MessagingException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-        );
     }
 
     private void addImagesInBody(final Multipart multipart, final Map<String, File> mapInlineImages) throws MessagingException, IOException {
@@ -184,6 +482,10 @@ public class EmailClient implements INotificationSender<EmailNotification> {
         Set<String> setImageID = mapInlineImages.keySet();
 
         for (String contentId : setImageID) {
+            if (partCache != null) {
+                multipart.addBodyPart(partCache.imagePart(contentId, mapInlineImages.get(contentId)));
+                continue;
+            }
             MimeBodyPart imagePart = new MimeBodyPart();
             imagePart.setHeader("Content-ID", "<" + contentId + ">");
             imagePart.setDisposition(MimeBodyPart.INLINE);
@@ -193,12 +495,16 @@ public class EmailClient implements INotificationSender<EmailNotification> {
 
     }
 
-    private void addAttachments(final Multipart multipart, Collection<EmailAttachment> attachments) throws MessagingException {
+    private void addAttachments(final Multipart multipart, Collection<EmailAttachment> attachments) throws MessagingException, IOException {
 
         for (EmailAttachment att : attachments) {
+            if (partCache != null) {
+                multipart.addBodyPart(partCache.attachmentPart(att));
+                continue;
+            }
             // Part two is attachment
             final BodyPart attachmentBodyPart = new MimeBodyPart();
-            final DataSource source = new ByteArrayDataSource(att.content(), att.mimeType());
+            final DataSource source = att.dataSource();
 
             attachmentBodyPart.setDataHandler(new DataHandler(source));
             attachmentBodyPart.setFileName(att.fileName());
@@ -207,4 +513,70 @@ public class EmailClient implements INotificationSender<EmailNotification> {
         }
     }
 
+    @FunctionalInterface
+    private interface MessageFactory<T> {
+
+        Message create(T item) throws MessagingException, IOException;
+    }
+
+    /**
+     * The connection used for one batch, borrowed from the pool when there is one.
+     */
+    private class BatchTransport {
+
+        private PooledTransport pooled;
+        private Transport transport;
+
+        Transport get() throws MessagingException {
+
+            if (transport != null) {
+                return transport;
+            }
+
+            if (transportPool != null) {
+                pooled = transportPool.borrow();
+                transport = pooled.getTransport();
+            } else {
+                transport = PipeliningSMTPTransport.open(session);
+                transport.connect();
+            }
+
+            return transport;
+        }
+
+        void discardIfDisconnected() {
+            if (transport != null && !transport.isConnected()) {
+                discard();
+            }
+        }
+
+        void discard() {
+            close(true);
+        }
+
+        void close() {
+            close(false);
+        }
+
+        private void close(boolean broken) {
+
+            if (transport == null) {
+                return;
+            }
+
+            if (pooled != null) {
+                transportPool.release(pooled, broken);
+            } else {
+                try {
+                    transport.close();
+                } catch (MessagingException ignored) {
+                    //nothing left to send on this connection
+                }
+            }
+
+            pooled = null;
+            transport = null;
+        }
+    }
+
 }
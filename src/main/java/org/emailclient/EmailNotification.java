@@ -1,23 +1,43 @@
 package org.emailclient;
 
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
+/**
+ * Immutable notification. Recipients, attachments and images are kept in immutable collections, collections that
+ * are already immutable, like those of another notification, are shared instead of copied. The body is a shared
+ * reference, the same string is used by every notification built from it.
+ * <p>
+ * Addresses are parsed once, when the notification is queued or first sent, and reused by every message built from
+ * it. The hash is computed on first use and cached.
+ */
 public class EmailNotification {
 
+    private static final int MAX_TO_STRING_SUBJECT = 64;
+    private static final int MAX_TO_STRING_RECIPIENTS = 3;
+
     private final String fromEmail;
     private final String subject;
     private final String body;
     private final boolean isHtml;
-    private final Collection<EmailAttachment> attachments;
-    private final Collection<String> toRecipients;
-    private final Collection<String> ccRecipients;
-    private final Collection<String> bccRecipients;
+    private final List<EmailAttachment> attachments;
+    private final List<String> toRecipients;
+    private final List<String> ccRecipients;
+    private final List<String> bccRecipients;
 
     private final Map<String, File> images;
 
+    private volatile Addresses addresses;
+    private int hash;
+
     public String getFromEmail() {
         return fromEmail;
     }
@@ -30,6 +50,9 @@ public class EmailNotification {
         return body;
     }
 
+    /**
+     * Never null, empty without attachments.
+     */
     public Collection<EmailAttachment> getAttachments() {
         return attachments;
     }
@@ -42,30 +65,112 @@ public class EmailNotification {
         return toRecipients;
     }
 
+    /**
+     * Never null, empty without Cc recipients.
+     */
     public Collection<String> getCcRecipients() {
         return ccRecipients;
     }
 
+    /**
+     * Never null, empty without Bcc recipients.
+     */
     public Collection<String> getBccRecipients() {
         return bccRecipients;
     }
 
+    /**
+     * Never null, empty without images.
+     */
     public Map<String, File> getImages() {
         return images;
     }
 
+    /**
+     * Parses the sender and recipient addresses with {@code cache}, once, later calls return the first result.
+     * Invalid recipients are left out of the message and returned, the notification is still sent to the others.
+     *
+     * @throws RecipientsRejectedException when the sender is invalid or no recipient is valid
+     */
+    public List<RejectedRecipient> validateAddresses(final AddressCache cache) {
+
+        Addresses parsed = addresses;
+
+        if (parsed == null) {
+            parsed = parseAddresses(cache);
+            addresses = parsed;
+        }
+
+        return parsed.rejected();
+    }
+
+    /**
+     * Recipients left out because their address is invalid, empty until the addresses were validated.
+     */
+    public List<RejectedRecipient> getRejectedRecipients() {
+        final Addresses parsed = addresses;
+        return parsed == null ? List.of() : parsed.rejected();
+    }
+
+    /**
+     * The parsed addresses, validated with the shared {@link AddressCache} if they were not validated before.
+     */
+    Addresses getAddresses() {
+        validateAddresses(AddressCache.shared());
+        return addresses;
+    }
+
+    private Addresses parseAddresses(final AddressCache cache) {
+
+        final List<RejectedRecipient> rejected = new ArrayList<>(0);
+
+        final InternetAddress from;
+
+        try {
+            from = cache.parse(fromEmail);
+        } catch (AddressException e) {
+            throw new RecipientsRejectedException(
+                    "Invalid sender " + fromEmail,
+                    List.of(new RejectedRecipient(fromEmail, e.getMessage()))
+            );
+        }
+
+        final InternetAddress[] to = parse(cache, toRecipients, rejected);
+        final InternetAddress[] cc = parse(cache, ccRecipients, rejected);
+        final InternetAddress[] bcc = parse(cache, bccRecipients, rejected);
+
+        if (to.length + cc.length + bcc.length == 0) {
+            throw new RecipientsRejectedException("No valid recipient", rejected);
+        }
+
+        return new Addresses(from, to, cc, bcc, rejected.isEmpty() ? List.of() : List.copyOf(rejected));
+    }
+
+    /**
+     * Bounded whatever the size of the notification: the body, attachments and Bcc recipients are only counted.
+     */
     @Override
     public String toString() {
-        return "EmailNotification{" +
-                "fromEmail=" + fromEmail +
-                ", subject='" + subject + '\'' +
-                ", body='" + body + '\'' +
-                ", isHtml=" + isHtml +
-                ", attachments=" + attachments +
-                ", toRecipients=" + toRecipients +
-                ", ccRecipients=" + ccRecipients +
-                ", bccRecipients=" + bccRecipients +
-                '}';
+
+        final StringBuilder sb = new StringBuilder(160)
+                .append("EmailNotification{fromEmail=").append(fromEmail)
+                .append(", subject='");
+
+        if (subject != null && subject.length() > MAX_TO_STRING_SUBJECT) {
+            sb.append(subject, 0, MAX_TO_STRING_SUBJECT).append("...");
+        } else {
+            sb.append(subject);
+        }
+
+        sb.append("', body=").append(body == null ? 0 : body.length()).append(" chars")
+                .append(", isHtml=").append(isHtml)
+                .append(", attachments=").append(attachments.size())
+                .append(", toRecipients=");
+        appendRecipients(sb, toRecipients);
+        sb.append(", ccRecipients=");
+        appendRecipients(sb, ccRecipients);
+
+        return sb.append(", bccRecipients=").append(bccRecipients.size()).append('}').toString();
     }
 
     @Override
@@ -73,18 +178,35 @@ public class EmailNotification {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         EmailNotification that = (EmailNotification) o;
-        return isHtml == that.isHtml && Objects.equals(fromEmail, that.fromEmail) &&
+        return hashCode() == that.hashCode() &&
+                isHtml == that.isHtml && Objects.equals(fromEmail, that.fromEmail) &&
                 Objects.equals(subject, that.subject) &&
                 Objects.equals(body, that.body) &&
-                Objects.equals(attachments, that.attachments) &&
-                Objects.equals(toRecipients, that.toRecipients) &&
-                Objects.equals(ccRecipients, that.ccRecipients) &&
-                Objects.equals(bccRecipients, that.bccRecipients);
+                attachments.equals(that.attachments) &&
+                toRecipients.equals(that.toRecipients) &&
+                ccRecipients.equals(that.ccRecipients) &&
+                bccRecipients.equals(that.bccRecipients);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(fromEmail, subject, body, isHtml, attachments, toRecipients, ccRecipients, bccRecipients);
+
+        int h = hash;
+
+        //racy like String.hashCode, every thread computes the same value
+        if (h == 0) {
+            h = Objects.hashCode(fromEmail);
+            h = 31 * h + Objects.hashCode(subject);
+            h = 31 * h + Objects.hashCode(body);
+            h = 31 * h + Boolean.hashCode(isHtml);
+            h = 31 * h + attachments.hashCode();
+            h = 31 * h + toRecipients.hashCode();
+            h = 31 * h + ccRecipients.hashCode();
+            h = 31 * h + bccRecipients.hashCode();
+            hash = h;
+        }
+
+        return h;
     }
 
 
@@ -94,15 +216,7 @@ public class EmailNotification {
             String body,
             Collection<String> toRecipients
     ) {
-        this.fromEmail = fromEmail;
-        this.subject = subject;
-        this.body = body;
-        this.isHtml = false;
-        this.attachments = null;
-        this.toRecipients = toRecipients;
-        this.ccRecipients = null;
-        this.bccRecipients = null;
-        this.images = null;
+        this(fromEmail, subject, body, false, null, toRecipients, null, null, null);
     }
 
     public EmailNotification(
@@ -119,13 +233,79 @@ public class EmailNotification {
         this.subject = subject;
         this.body = body;
         this.isHtml = isHtml;
-        this.attachments = attachments;
-        this.toRecipients = toRecipients;
-        this.ccRecipients = ccRecipients;
-        this.bccRecipients = bccRecipients;
-        this.images = images;
+        this.attachments = copy(attachments, "attachments");
+        this.toRecipients = copy(toRecipients, "toRecipients");
+        this.ccRecipients = copy(ccRecipients, "ccRecipients");
+        this.bccRecipients = copy(bccRecipients, "bccRecipients");
+        this.images = images == null || images.isEmpty() ? Map.of() : Map.copyOf(images);
+    }
+
+    /**
+     * List.copyOf returns lists it created itself as they are, so a notification made from another one shares them.
+     */
+    private static <T> List<T> copy(final Collection<T> values, final String name) {
+
+        if (values == null || values.isEmpty()) {
+            return List.of();
+        }
+
+        try {
+            return List.copyOf(values);
+        } catch (NullPointerException e) {
+            throw new IllegalArgumentException(name + " cannot contain null");
+        }
+    }
+
+    private static InternetAddress[] parse(
+            final AddressCache cache, final List<String> recipients, final List<RejectedRecipient> rejected
+    ) {
+
+        final InternetAddress[] parsed = new InternetAddress[recipients.size()];
+        int valid = 0;
+
+        for (String recipient : recipients) {
+            try {
+                final InternetAddress address = cache.parse(recipient);
+                parsed[valid++] = address;
+            } catch (AddressException e) {
+                rejected.add(new RejectedRecipient(recipient, e.getMessage()));
+            }
+        }
+
+        return valid == parsed.length ? parsed : Arrays.copyOf(parsed, valid);
     }
 
+    private static void appendRecipients(final StringBuilder sb, final List<String> recipients) {
+
+        sb.append('[');
+
+        final int shown = Math.min(recipients.size(), MAX_TO_STRING_RECIPIENTS);
+
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(recipients.get(i));
+        }
+
+        if (recipients.size() > shown) {
+            sb.append(", +").append(recipients.size() - shown).append(" more");
+        }
+
+        sb.append(']');
+    }
+
+    /**
+     * The arrays are shared by every message built from the notification and must not be modified.
+     */
+    record Addresses(
+            InternetAddress from,
+            InternetAddress[] to,
+            InternetAddress[] cc,
+            InternetAddress[] bcc,
+            List<RejectedRecipient> rejected
+    ) {
+    }
 
     public static class EmailNotificationBuilder {
         private String fromEmail;
@@ -1,8 +1,54 @@
 package org.emailclient;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 public interface INotificationSender<T> {
 
     boolean send(T t);
 
+    /**
+     * Sends every item and reports each outcome in iteration order, a failed item does not stop the batch.
+     */
+    default List<SendResult<T>> sendBatch(Collection<T> items) {
+
+        final List<SendResult<T>> results = new ArrayList<>(items.size());
+
+        for (T item : items) {
+            try {
+                results.add(send(item) ? SendResult.success(item) : SendResult.failure(item, null));
+            } catch (Exception ex) {
+                results.add(SendResult.failure(item, ex));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Sends on {@code executor}. The future always completes normally, a failed send is reported in the result.
+     */
+    default CompletableFuture<SendResult<T>> sendAsync(T item, Executor executor) {
+
+        final long submitted = System.nanoTime();
+
+        return CompletableFuture.supplyAsync(() -> {
+
+            final long started = System.nanoTime();
+            SendResult<T> result;
+
+            try {
+                result = send(item) ? SendResult.success(item) : SendResult.failure(item, null);
+            } catch (Exception ex) {
+                result = SendResult.failure(item, ex);
+            }
+
+            return result.withTiming(started - submitted, System.nanoTime() - started);
+
+        }, executor);
+    }
 
 }
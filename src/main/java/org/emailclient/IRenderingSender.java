@@ -0,0 +1,45 @@
+package org.emailclient;
+
+import jakarta.mail.MessagingException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sender that splits a send into rendering, CPU bound, and sending the rendered message, I/O bound, so the two can
+ * run on different threads.
+ */
+public interface IRenderingSender<T> extends INotificationSender<T> {
+
+    /**
+     * Builds and encodes the message of {@code item} without sending it.
+     */
+    RenderedMessage render(T item) throws MessagingException, IOException;
+
+    /**
+     * Sends a message returned by {@link #render} for {@code item}.
+     */
+    boolean sendRendered(T item, RenderedMessage message);
+
+    /**
+     * Like {@link #sendBatch}, {@code messages} holds the rendered message of each item in the same order.
+     */
+    default List<SendResult<T>> sendRenderedBatch(List<T> items, List<RenderedMessage> messages) {
+
+        final List<SendResult<T>> results = new ArrayList<>(items.size());
+
+        for (int i = 0; i < items.size(); i++) {
+
+            final T item = items.get(i);
+
+            try {
+                results.add(sendRendered(item, messages.get(i)) ? SendResult.success(item) : SendResult.failure(item, null));
+            } catch (Exception ex) {
+                results.add(SendResult.failure(item, ex));
+            }
+        }
+
+        return results;
+    }
+}
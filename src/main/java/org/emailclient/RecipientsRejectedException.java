@@ -0,0 +1,20 @@
+package org.emailclient;
+
+import java.util.List;
+
+/**
+ * The sender address is invalid or no recipient address is valid, nothing can be sent.
+ */
+public class RecipientsRejectedException extends EmailNotificationException {
+
+    private final List<RejectedRecipient> rejected;
+
+    public RecipientsRejectedException(String message, List<RejectedRecipient> rejected) {
+        super(message);
+        this.rejected = List.copyOf(rejected);
+    }
+
+    public List<RejectedRecipient> getRejected() {
+        return rejected;
+    }
+}
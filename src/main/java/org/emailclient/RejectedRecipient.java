@@ -0,0 +1,7 @@
+package org.emailclient;
+
+/**
+ * A recipient left out of a notification because its address is invalid.
+ */
+public record RejectedRecipient(String address, String reason) {
+}
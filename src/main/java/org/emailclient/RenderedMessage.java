@@ -0,0 +1,75 @@
+package org.emailclient;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A message already written in its final wire format, headers and encoded body, so sending it only copies bytes to
+ * the connection. The rendered bytes leave out the Bcc header, like the SMTP transport does when it writes a message,
+ * the Bcc recipients are still in {@link #getAllRecipients()}.
+ * <p>
+ * Only the sender and the recipients are kept as headers, the message cannot be changed after it was rendered.
+ */
+public class RenderedMessage extends MimeMessage {
+
+    private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+
+    private final byte[] rendered;
+    private final Address[] recipients;
+
+    private RenderedMessage(
+            final Session session, final Address[] from, final Address[] recipients, final byte[] rendered
+    ) throws MessagingException {
+        super(session);
+        if (from != null) {
+            addFrom(from);
+        }
+        this.recipients = recipients;
+        this.rendered = rendered;
+    }
+
+    /**
+     * Writes {@code message}, encoding its body, and keeps the bytes.
+     */
+    public static RenderedMessage render(final Session session, final MimeMessage message)
+            throws MessagingException, IOException {
+
+        message.saveChanges();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        message.writeTo(out, IGNORED_HEADERS);
+
+        return new RenderedMessage(session, message.getFrom(), message.getAllRecipients(), out.toByteArray());
+    }
+
+    @Override
+    public Address[] getAllRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Size of the rendered message in bytes.
+     */
+    @Override
+    public int getSize() {
+        return rendered.length;
+    }
+
+    @Override
+    public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException {
+        os.write(rendered);
+    }
+
+    /**
+     * Does nothing, the headers were final when the message was rendered.
+     */
+    @Override
+    public void saveChanges() {
+    }
+}
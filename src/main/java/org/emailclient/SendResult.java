@@ -0,0 +1,32 @@
+package org.emailclient;
+
+import java.time.Duration;
+
+/**
+ * Outcome of sending one notification, {@code error} is null when {@code success} is true.
+ * <p>
+ * {@code queueNanos} is the time the notification waited before the send started and {@code sendNanos} the time the
+ * send took, both are 0 when not measured.
+ */
+public record SendResult<T>(T notification, boolean success, Exception error, long queueNanos, long sendNanos) {
+
+    public static <T> SendResult<T> success(T notification) {
+        return new SendResult<>(notification, true, null, 0, 0);
+    }
+
+    public static <T> SendResult<T> failure(T notification, Exception error) {
+        return new SendResult<>(notification, false, error, 0, 0);
+    }
+
+    public SendResult<T> withTiming(long queueNanos, long sendNanos) {
+        return new SendResult<>(notification, success, error, queueNanos, sendNanos);
+    }
+
+    public Duration queueTime() {
+        return Duration.ofNanos(queueNanos);
+    }
+
+    public Duration sendTime() {
+        return Duration.ofNanos(sendNanos);
+    }
+}
@@ -0,0 +1,442 @@
+package org.emailclient.direct;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import org.emailclient.EmailClient;
+import org.emailclient.EmailNotification;
+import org.emailclient.EmailNotificationException;
+import org.emailclient.INotificationSender;
+import org.emailclient.SendResult;
+import org.emailclient.templates.EncodedPartCache;
+import org.emailclient.transports.PooledTransport;
+import org.emailclient.transports.TransportPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers straight to the mail exchangers of the recipient domains instead of a relay.
+ * <p>
+ * The recipients of each notification are grouped by domain and every group is sent in one SMTP transaction with
+ * one RCPT TO per recipient, Bcc recipients get the message without the Bcc header. Exchangers are tried in order
+ * of preference, the next one only when the connection to the previous one failed. MX answers are cached for their
+ * TTL and every exchanger has its own {@link TransportPool}, its size limits the concurrent connections to that host.
+ * Expired MX answers and pools whose connections were all closed for being idle longer than {@code maxIdle} are
+ * dropped, so domains that are not mailed again do not stay in memory.
+ * <p>
+ * A batch is sent domain by domain, so consecutive messages to one domain reuse the same pooled connection.
+ */
+public class DirectDeliveryClient implements INotificationSender<EmailNotification>, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectDeliveryClient.class);
+
+    private final Session session;
+    private final EmailClient messages;
+    private final MxCache mxCache;
+    private final int connectionsPerHost;
+    private final Duration borrowTimeout;
+    private final Duration maxIdle;
+    private final boolean pipelining;
+
+    private final Map<String, TransportPool> pools = new ConcurrentHashMap<>();
+    private final LongAdder closedPoolConnections = new LongAdder();
+    private final ScheduledExecutorService evictor;
+
+    private DirectDeliveryClient(DirectDeliveryClientBuilder builder) {
+        this.session = builder.session;
+        this.messages = new EmailClient(builder.session, null, builder.partCache);
+        this.mxCache = new MxCache(builder.resolver, builder.negativeTtl.toNanos());
+        this.connectionsPerHost = builder.connectionsPerHost;
+        this.borrowTimeout = builder.borrowTimeout;
+        this.maxIdle = builder.maxIdle;
+        this.pipelining = builder.pipelining;
+
+        //one evictor for every exchanger instead of a thread per pool
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "direct-delivery-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(
+                this::evictIdle,
+                maxIdle.toNanos(),
+                maxIdle.toNanos(),
+                TimeUnit.NANOSECONDS
+        );
+    }
+
+    /**
+     * @throws DirectDeliveryException  when no recipient domain could be delivered to
+     * @throws PartialDeliveryException when some recipient domains could not be delivered to
+     */
+    @Override
+    public boolean send(final EmailNotification notification) {
+
+        final SendResult<EmailNotification> result = sendBatch(List.of(notification)).get(0);
+
+        if (!result.success()) {
+            throw result.error() instanceof RuntimeException ex ? ex : new EmailNotificationException(result.error());
+        }
+
+        return true;
+    }
+
+    /**
+     * A notification fails when any of its domains failed. Its error is a {@link DirectDeliveryException} when every
+     * domain failed and a {@link PartialDeliveryException} when some were delivered to.
+     */
+    @Override
+    public List<SendResult<EmailNotification>> sendBatch(final Collection<EmailNotification> notifications) {
+
+        final List<EmailNotification> items = new ArrayList<>(notifications);
+        final List<Map<String, Exception>> failures = new ArrayList<>(items.size());
+        final Map<String, List<Delivery>> byDomain = new LinkedHashMap<>();
+        final EmailNotificationException[] buildErrors = new EmailNotificationException[items.size()];
+        final int[] domains = new int[items.size()];
+
+        for (int i = 0; i < items.size(); i++) {
+
+            failures.add(new LinkedHashMap<>());
+
+            try {
+
+                final Message message = messages.createMessage(items.get(i));
+                message.saveChanges();
+
+                final Map<String, List<Address>> groups = groupByDomain(message.getAllRecipients());
+                domains[i] = groups.size();
+
+                for (Map.Entry<String, List<Address>> group : groups.entrySet()) {
+                    byDomain.computeIfAbsent(group.getKey(), d -> new ArrayList<>())
+                            .add(new Delivery(i, message, group.getValue().toArray(new Address[0])));
+                }
+
+            } catch (MessagingException | IOException | RuntimeException e) {
+                buildErrors[i] = e instanceof EmailNotificationException ex ? ex : new EmailNotificationException(e);
+            }
+        }
+
+        for (Map.Entry<String, List<Delivery>> group : byDomain.entrySet()) {
+            for (Delivery delivery : group.getValue()) {
+                try {
+                    deliver(group.getKey(), delivery.message(), delivery.recipients());
+                } catch (MessagingException | IOException e) {
+                    logger.debug("Delivery to {} failed", group.getKey(), e);
+                    failures.get(delivery.index()).put(group.getKey(), e);
+                }
+            }
+        }
+
+        final List<SendResult<EmailNotification>> results = new ArrayList<>(items.size());
+
+        for (int i = 0; i < items.size(); i++) {
+            if (buildErrors[i] != null) {
+                results.add(SendResult.failure(items.get(i), buildErrors[i]));
+            } else if (failures.get(i).size() == domains[i]) {
+                results.add(SendResult.failure(items.get(i), new DirectDeliveryException(failures.get(i))));
+            } else if (!failures.get(i).isEmpty()) {
+                results.add(SendResult.failure(items.get(i), new PartialDeliveryException(
+                        failures.get(i),
+                        undelivered(items.get(i), failures.get(i).keySet())
+                )));
+            } else {
+                results.add(SendResult.success(items.get(i)));
+            }
+        }
+
+        return results;
+    }
+
+    public DirectDeliveryMetrics getMetrics() {
+
+        long connections = closedPoolConnections.sum();
+        for (TransportPool pool : pools.values()) {
+            connections += pool.getMetrics().created();
+        }
+
+        return new DirectDeliveryMetrics(
+                mxCache.getLookups(),
+                mxCache.getHits(),
+                mxCache.getFailures(),
+                mxCache.size(),
+                pools.size(),
+                connections
+        );
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        pools.values().forEach(TransportPool::close);
+        messages.close();
+    }
+
+    private void deliver(final String domain, final Message message, final Address[] recipients)
+            throws MessagingException, IOException {
+
+        MessagingException last = null;
+
+        for (MxRecord exchanger : mxCache.exchangers(domain)) {
+
+            TransportPool pool = pool(exchanger);
+            PooledTransport pooled;
+
+            try {
+                try {
+                    pooled = pool.borrow();
+                } catch (IllegalStateException e) {
+                    //the evictor closed the pool after it was looked up, connect through a new one
+                    pool = pool(exchanger);
+                    pooled = pool.borrow();
+                }
+            } catch (MessagingException e) {
+                //could not connect, try the next exchanger
+                last = e;
+                continue;
+            }
+
+            boolean broken = true;
+
+            try {
+
+                pooled.getTransport().sendMessage(message, recipients);
+                broken = false;
+                return;
+
+            } catch (SendFailedException e) {
+                //the exchanger answered, another one would not decide differently
+                broken = !pooled.getTransport().isConnected();
+                throw e;
+            } catch (MessagingException e) {
+                last = e;
+            } finally {
+                pool.release(pooled, broken);
+            }
+        }
+
+        throw last;
+    }
+
+    private void evictIdle() {
+
+        mxCache.evictExpired();
+
+        for (String key : pools.keySet()) {
+
+            final TransportPool[] removed = new TransportPool[1];
+
+            pools.computeIfPresent(key, (k, pool) -> {
+                pool.evictIdle();
+                if (!pool.isUnused()) {
+                    return pool;
+                }
+                removed[0] = pool;
+                return null;
+            });
+
+            //closed after it left the map, so a sender that finds it closed gets a new pool
+            if (removed[0] != null) {
+                closedPoolConnections.add(removed[0].getMetrics().created());
+                removed[0].close();
+            }
+        }
+    }
+
+    private TransportPool pool(final MxRecord exchanger) {
+
+        return pools.computeIfAbsent(
+                exchanger.host().toLowerCase(Locale.ROOT) + ":" + exchanger.port(),
+                key -> TransportPool.builder(destinationSession(exchanger))
+                        .withMaxSize(connectionsPerHost)
+                        .withBorrowTimeout(borrowTimeout)
+                        .withMaxIdle(maxIdle)
+                        .withEvictionInterval(Duration.ZERO)
+                        .withPipelining(pipelining)
+                        .build()
+        );
+    }
+
+    /**
+     * The client's session pointed at one exchanger. Exchangers accept mail for their own domains without AUTH.
+     */
+    private Session destinationSession(final MxRecord exchanger) {
+
+        final Properties properties = new Properties();
+        properties.putAll(session.getProperties());
+        properties.put("mail.smtp.host", exchanger.host());
+        properties.put("mail.smtp.port", String.valueOf(exchanger.port()));
+        properties.put("mail.smtp.auth", "false");
+
+        return Session.getInstance(properties);
+    }
+
+    /**
+     * {@code notification} with only the recipients in {@code domains}.
+     */
+    private static EmailNotification undelivered(final EmailNotification notification, final Set<String> domains) {
+        return new EmailNotification(
+                notification.getFromEmail(),
+                notification.getSubject(),
+                notification.getBody(),
+                notification.isHtml(),
+                notification.getAttachments(),
+                inDomains(notification.getToRecipients(), domains),
+                inDomains(notification.getCcRecipients(), domains),
+                inDomains(notification.getBccRecipients(), domains),
+                notification.getImages()
+        );
+    }
+
+    private static List<String> inDomains(final Collection<String> recipients, final Set<String> domains) {
+
+        final List<String> matching = new ArrayList<>();
+
+        for (String recipient : recipients) {
+            try {
+                if (domains.contains(domainOf(new InternetAddress(recipient).getAddress()))) {
+                    matching.add(recipient);
+                }
+            } catch (AddressException e) {
+                //the message was built from these recipients, so they parse
+                logger.debug("Could not parse recipient {}", recipient, e);
+            }
+        }
+
+        return matching;
+    }
+
+    private static String domainOf(final String address) {
+
+        final int at = address.lastIndexOf('@');
+
+        if (at < 0 || at == address.length() - 1) {
+            throw new EmailNotificationException("Recipient without domain " + address);
+        }
+
+        return address.substring(at + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static Map<String, List<Address>> groupByDomain(final Address[] recipients) {
+
+        final Map<String, List<Address>> groups = new LinkedHashMap<>();
+
+        if (recipients == null) {
+            return groups;
+        }
+
+        for (Address recipient : recipients) {
+
+            groups.computeIfAbsent(domainOf(((InternetAddress) recipient).getAddress()), d -> new ArrayList<>())
+                    .add(recipient);
+        }
+
+        return groups;
+    }
+
+    public static DirectDeliveryClientBuilder builder(Session session) {
+        return new DirectDeliveryClientBuilder(session);
+    }
+
+    private record Delivery(int index, Message message, Address[] recipients) {
+    }
+
+    public static class DirectDeliveryClientBuilder {
+        private final Session session;
+        private IMxResolver resolver = new DnsMxResolver();
+        private Duration negativeTtl = Duration.ofMinutes(1);
+        private int connectionsPerHost = 2;
+        private Duration borrowTimeout = Duration.ofSeconds(30);
+        private Duration maxIdle = Duration.ofMinutes(1);
+        private boolean pipelining = true;
+        private EncodedPartCache partCache;
+
+        private DirectDeliveryClientBuilder(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * {@link DnsMxResolver} by default.
+         */
+        public DirectDeliveryClientBuilder withResolver(IMxResolver resolver) {
+            this.resolver = resolver;
+            return this;
+        }
+
+        /**
+         * How long a failed MX lookup is remembered.
+         */
+        public DirectDeliveryClientBuilder withNegativeTtl(Duration negativeTtl) {
+            this.negativeTtl = negativeTtl;
+            return this;
+        }
+
+        /**
+         * Concurrent connections to one exchanger, senders wait up to {@code borrowTimeout} for a free one.
+         */
+        public DirectDeliveryClientBuilder withConnectionsPerHost(int connectionsPerHost) {
+            this.connectionsPerHost = connectionsPerHost;
+            return this;
+        }
+
+        public DirectDeliveryClientBuilder withBorrowTimeout(Duration borrowTimeout) {
+            this.borrowTimeout = borrowTimeout;
+            return this;
+        }
+
+        /**
+         * Idle connections to an exchanger are closed after this long.
+         */
+        public DirectDeliveryClientBuilder withMaxIdle(Duration maxIdle) {
+            this.maxIdle = maxIdle;
+            return this;
+        }
+
+        public DirectDeliveryClientBuilder withPipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        public DirectDeliveryClientBuilder withPartCache(EncodedPartCache partCache) {
+            this.partCache = partCache;
+            return this;
+        }
+
+        public DirectDeliveryClient build() {
+
+            if (session == null || resolver == null) {
+                throw new IllegalArgumentException("session and resolver cannot be null");
+            }
+            if (connectionsPerHost <= 0) {
+                throw new IllegalArgumentException("connectionsPerHost must be positive");
+            }
+            if (negativeTtl == null || borrowTimeout == null || maxIdle == null) {
+                throw new IllegalArgumentException("negativeTtl, borrowTimeout and maxIdle cannot be null");
+            }
+            if (maxIdle.isNegative() || maxIdle.isZero()) {
+                throw new IllegalArgumentException("maxIdle must be positive");
+            }
+
+            return new DirectDeliveryClient(this);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.emailclient.direct;
+
+import org.emailclient.EmailNotificationException;
+
+import java.util.Map;
+
+/**
+ * No recipient domain of a notification could be delivered to, retrying the whole notification is safe.
+ *
+ * @see PartialDeliveryException
+ */
+public class DirectDeliveryException extends EmailNotificationException {
+
+    private final Map<String, Exception> failedDomains;
+
+    public DirectDeliveryException(Map<String, Exception> failedDomains) {
+        super("Delivery failed for " + failedDomains.keySet(), failedDomains.values().iterator().next());
+        this.failedDomains = Map.copyOf(failedDomains);
+    }
+
+    /**
+     * Cause of the failure per recipient domain.
+     */
+    public Map<String, Exception> getFailedDomains() {
+        return failedDomains;
+    }
+}
@@ -0,0 +1,21 @@
+package org.emailclient.direct;
+
+/**
+ * Point in time snapshot of a {@link DirectDeliveryClient}.
+ *
+ * @param mxLookups     lookups that went to the resolver, failed ones included
+ * @param mxCacheHits   lookups answered from the cache
+ * @param mxFailures    lookups the resolver could not answer
+ * @param domains       domains in the MX cache
+ * @param destinations  exchangers with a connection pool
+ * @param connections   connections opened across all exchangers
+ */
+public record DirectDeliveryMetrics(
+        long mxLookups,
+        long mxCacheHits,
+        long mxFailures,
+        int domains,
+        int destinations,
+        long connections
+) {
+}
@@ -0,0 +1,86 @@
+package org.emailclient.direct;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Looks up MX records with the JDK's JNDI DNS provider and the system's name servers.
+ * <p>
+ * JNDI does not report record TTLs, every answer is cached for {@code ttl}. A domain without MX records is its own
+ * exchanger (RFC 5321 section 5.1), a null MX (RFC 7505) means the domain accepts no mail.
+ */
+public class DnsMxResolver implements IMxResolver {
+
+    private final int port;
+    private final Duration ttl;
+
+    public DnsMxResolver() {
+        this(25, Duration.ofMinutes(5));
+    }
+
+    public DnsMxResolver(int port, Duration ttl) {
+        this.port = port;
+        this.ttl = ttl;
+    }
+
+    @Override
+    public MxLookup resolve(String domain) throws IOException {
+
+        final Hashtable<String, String> env = new Hashtable<>();
+        env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+
+        DirContext context = null;
+
+        try {
+
+            context = new InitialDirContext(env);
+            final Attribute mx = context.getAttributes(domain, new String[]{"MX"}).get("MX");
+
+            if (mx == null || mx.size() == 0) {
+                return new MxLookup(List.of(new MxRecord(domain, port, 0)), ttl);
+            }
+
+            final List<MxRecord> exchangers = new ArrayList<>(mx.size());
+            final NamingEnumeration<?> values = mx.getAll();
+
+            while (values.hasMore()) {
+
+                final String[] parts = values.next().toString().trim().split("\\s+");
+                final String host = parts[1].endsWith(".") ? parts[1].substring(0, parts[1].length() - 1) : parts[1];
+
+                if (host.isEmpty()) {
+                    throw new IOException("Domain " + domain + " does not accept mail");
+                }
+
+                exchangers.add(new MxRecord(host, port, Integer.parseInt(parts[0])));
+            }
+
+            exchangers.sort(Comparator.comparingInt(MxRecord::preference));
+
+            return new MxLookup(List.copyOf(exchangers), ttl);
+
+        } catch (NameNotFoundException e) {
+            throw new IOException("Domain " + domain + " does not exist", e);
+        } catch (NamingException | RuntimeException e) {
+            throw new IOException("Could not resolve MX of " + domain, e);
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (NamingException ignored) {
+                    //lookup already done
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.emailclient.direct;
+
+import java.io.IOException;
+
+/**
+ * Finds the mail exchangers of a recipient domain. Tests pass a stub that points domains at local servers.
+ */
+public interface IMxResolver {
+
+    /**
+     * @return the exchangers in the order they should be tried, never empty
+     * @throws IOException when the domain cannot be resolved or has no exchanger
+     */
+    MxLookup resolve(String domain) throws IOException;
+}
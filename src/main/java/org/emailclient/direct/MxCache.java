@@ -0,0 +1,93 @@
+package org.emailclient.direct;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches {@link IMxResolver} answers for their TTL. Failed lookups are cached for {@code negativeTtl} so a dead
+ * domain does not cost a lookup per message. Concurrent misses for one domain may both resolve it.
+ */
+final class MxCache {
+
+    private final IMxResolver resolver;
+    private final long negativeTtlNanos;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    MxCache(IMxResolver resolver, long negativeTtlNanos) {
+        this.resolver = resolver;
+        this.negativeTtlNanos = negativeTtlNanos;
+    }
+
+    List<MxRecord> exchangers(final String domain) throws IOException {
+
+        final String key = domain.toLowerCase(Locale.ROOT);
+        final long now = System.nanoTime();
+        final Entry cached = entries.get(key);
+
+        if (cached != null && cached.expiresAt - now > 0) {
+
+            hits.increment();
+
+            if (cached.error != null) {
+                throw new IOException(cached.error.getMessage(), cached.error);
+            }
+
+            return cached.exchangers;
+        }
+
+        lookups.increment();
+
+        try {
+
+            final MxLookup lookup = resolver.resolve(key);
+
+            if (lookup == null || lookup.exchangers().isEmpty()) {
+                throw new IOException("No mail exchanger for " + key);
+            }
+
+            entries.put(key, new Entry(lookup.exchangers(), null, now + lookup.ttl().toNanos()));
+
+            return lookup.exchangers();
+
+        } catch (IOException e) {
+            failures.increment();
+            entries.put(key, new Entry(null, e, now + negativeTtlNanos));
+            throw e;
+        }
+    }
+
+    /**
+     * Drops every answer past its TTL, so domains that are not mailed again do not stay cached.
+     */
+    void evictExpired() {
+        final long now = System.nanoTime();
+        entries.values().removeIf(entry -> entry.expiresAt - now <= 0);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getLookups() {
+        return lookups.sum();
+    }
+
+    long getFailures() {
+        return failures.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private record Entry(List<MxRecord> exchangers, IOException error, long expiresAt) {
+    }
+}
@@ -0,0 +1,10 @@
+package org.emailclient.direct;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Answer of an {@link IMxResolver}, the exchangers ordered by preference and how long the answer may be cached.
+ */
+public record MxLookup(List<MxRecord> exchangers, Duration ttl) {
+}
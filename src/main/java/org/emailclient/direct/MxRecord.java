@@ -0,0 +1,7 @@
+package org.emailclient.direct;
+
+/**
+ * Mail exchanger of a domain, a lower preference is tried first.
+ */
+public record MxRecord(String host, int port, int preference) {
+}
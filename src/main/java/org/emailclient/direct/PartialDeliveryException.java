@@ -0,0 +1,37 @@
+package org.emailclient.direct;
+
+import org.emailclient.EmailNotification;
+
+import java.util.Map;
+
+/**
+ * Some recipient domains of a notification could not be delivered to, the others were.
+ * <p>
+ * Not an {@link org.emailclient.EmailNotificationException}, a retry policy handling those must not send the whole
+ * notification to the delivered domains again. Send {@link #getUndelivered()} to retry the failed domains only.
+ */
+public class PartialDeliveryException extends RuntimeException {
+
+    private final Map<String, Exception> failedDomains;
+    private final EmailNotification undelivered;
+
+    public PartialDeliveryException(Map<String, Exception> failedDomains, EmailNotification undelivered) {
+        super("Delivery failed for " + failedDomains.keySet(), failedDomains.values().iterator().next());
+        this.failedDomains = Map.copyOf(failedDomains);
+        this.undelivered = undelivered;
+    }
+
+    /**
+     * Cause of the failure per recipient domain.
+     */
+    public Map<String, Exception> getFailedDomains() {
+        return failedDomains;
+    }
+
+    /**
+     * The notification with only the recipients of the failed domains, each in its original To, Cc or Bcc role.
+     */
+    public EmailNotification getUndelivered() {
+        return undelivered;
+    }
+}
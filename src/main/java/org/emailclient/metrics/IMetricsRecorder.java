@@ -0,0 +1,44 @@
+package org.emailclient.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receives the measurements of the send pipeline. Implementations are found with {@link java.util.ServiceLoader},
+ * see {@link Metrics}. Instruments are looked up once when an instrumented object is created and then used from many
+ * threads, so they must be thread safe and cheap to call.
+ */
+public interface IMetricsRecorder {
+
+    Counter counter(String name);
+
+    /**
+     * Distribution of durations in nanoseconds.
+     */
+    Timer timer(String name);
+
+    /**
+     * Sampled whenever the recorder is read, a gauge registered again under the same name replaces the earlier one.
+     * Recorders hold {@code value} weakly, the caller keeps it reachable for as long as the gauge reports.
+     */
+    void gauge(String name, LongSupplier value);
+
+    /**
+     * Stops reporting the gauge, nothing happens when there is none.
+     */
+    default void removeGauge(String name) {
+    }
+
+    interface Counter {
+
+        void increment(long amount);
+
+        default void increment() {
+            increment(1);
+        }
+    }
+
+    interface Timer {
+
+        void record(long nanos);
+    }
+}
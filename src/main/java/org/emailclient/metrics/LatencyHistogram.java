@@ -0,0 +1,107 @@
+package org.emailclient.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non-negative values with log linear buckets, like HdrHistogram with two significant digits.
+ * <p>
+ * Values below 128 have their own bucket, above that every power of two is split into 64 buckets, so a reported
+ * value is within 1/64 of the recorded one. Recording is one atomic increment and needs no allocation, the whole
+ * range of long fits in 3712 buckets.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Negative values are recorded as 0.
+     */
+    public void record(final long value) {
+
+        final long v = Math.max(0, value);
+
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+
+        long current;
+        while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+            //another thread raised the max in between
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Highest value of the bucket that holds the {@code quantile} share of the recorded values, 0 when empty.
+     * Values recorded while this runs may or may not be counted.
+     */
+    public long getValueAtQuantile(final double quantile) {
+
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(1, quantile) * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    static int index(final long value) {
+
+        if (value < LINEAR) {
+            return (int) value;
+        }
+
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int mantissa = (int) (value >>> shift);
+
+        return LINEAR + (shift - 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    static long highestValue(final int index) {
+
+        if (index < LINEAR) {
+            return index;
+        }
+
+        final int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        final long mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
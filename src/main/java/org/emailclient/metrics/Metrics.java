@@ -0,0 +1,98 @@
+package org.emailclient.metrics;
+
+import java.util.ServiceLoader;
+
+/**
+ * Names of the measurements and the recorder they go to.
+ * <p>
+ * The recorder is the first {@link IMetricsRecorder} found with {@link ServiceLoader}, or a
+ * {@link SimpleMetricsRecorder} when there is none. Instrumented objects look up their instruments when they are
+ * created, so a recorder installed with {@link #setRecorder} only applies to objects created after it.
+ */
+public final class Metrics {
+
+    /**
+     * Gauge prefix, items waiting in an {@code EmailClientQueue} including spilled ones. Each queue reports
+     * {@code email.queue.depth.<queue>} and {@code email.queue.depth.<queue>.<lane>} for each of its lanes.
+     */
+    public static final String QUEUE_DEPTH = "email.queue.depth";
+
+    /**
+     * Timer, from adding an item to the start of each send attempt.
+     */
+    public static final String QUEUE_LATENCY = "email.queue.latency";
+
+    /**
+     * Counter, notifications merged into another one with the same content.
+     */
+    public static final String COALESCED = "email.queue.coalesced";
+
+    /**
+     * Counter, recipients left out of queued notifications because their address is invalid.
+     */
+    public static final String RECIPIENTS_REJECTED = "email.queue.recipients.rejected";
+
+    /**
+     * Timer, building the MIME message in {@code EmailClient}.
+     */
+    public static final String BUILD_TIME = "email.client.build";
+
+    /**
+     * Timer, the SMTP transaction of one message in {@code EmailClient}, failed ones included.
+     */
+    public static final String SMTP_TIME = "email.client.smtp";
+
+    public static final String SMTP_FAILURES = "email.client.smtp.failures";
+
+    /**
+     * Counter, retries granted by a {@code RetryPolicy}.
+     */
+    public static final String RETRIES = "email.retry.count";
+
+    /**
+     * Timer, the delay before each granted retry.
+     */
+    public static final String RETRY_DELAY = "email.retry.delay";
+
+    /**
+     * Counter, failures a {@code RetryPolicy} gave up on.
+     */
+    public static final String RETRIES_EXHAUSTED = "email.retry.exhausted";
+
+    public static final String FALLBACKS = "email.enforcer.fallbacks";
+
+    public static final String SPAM_REJECTIONS = "email.spam.rejections";
+
+    private static volatile IMetricsRecorder recorder;
+
+    private Metrics() {
+    }
+
+    public static IMetricsRecorder recorder() {
+
+        IMetricsRecorder current = recorder;
+
+        if (current == null) {
+            synchronized (Metrics.class) {
+                current = recorder;
+                if (current == null) {
+                    current = ServiceLoader.load(IMetricsRecorder.class)
+                            .findFirst()
+                            .orElseGet(SimpleMetricsRecorder::new);
+                    recorder = current;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    public static void setRecorder(IMetricsRecorder recorder) {
+
+        if (recorder == null) {
+            throw new IllegalArgumentException("recorder cannot be null");
+        }
+
+        Metrics.recorder = recorder;
+    }
+}
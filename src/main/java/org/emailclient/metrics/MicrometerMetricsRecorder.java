@@ -0,0 +1,58 @@
+package org.emailclient.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bridge to a Micrometer {@link MeterRegistry}. Micrometer is not a dependency of this library, add it to the
+ * application and install the bridge with {@link Metrics#setRecorder} before creating clients and queues.
+ * Timers publish a percentile histogram so percentiles can be aggregated by the backend.
+ */
+public class MicrometerMetricsRecorder implements IMetricsRecorder {
+
+    private final MeterRegistry registry;
+
+    public MicrometerMetricsRecorder(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Counter counter(String name) {
+        final io.micrometer.core.instrument.Counter counter = registry.counter(name);
+        return counter::increment;
+    }
+
+    @Override
+    public Timer timer(String name) {
+
+        final io.micrometer.core.instrument.Timer timer = io.micrometer.core.instrument.Timer.builder(name)
+                .publishPercentileHistogram()
+                .register(registry);
+
+        return nanos -> timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Micrometer keeps the first gauge registered under a name, an earlier one is removed first so the new one
+     * replaces it. The registry only holds {@code value} weakly.
+     */
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        removeGauge(name);
+        Gauge.builder(name, value, LongSupplier::getAsLong)
+                .register(registry);
+    }
+
+    @Override
+    public void removeGauge(String name) {
+
+        final Gauge gauge = registry.find(name).gauge();
+
+        if (gauge != null) {
+            registry.remove(gauge);
+        }
+    }
+}
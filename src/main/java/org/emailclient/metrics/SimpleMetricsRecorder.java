@@ -0,0 +1,63 @@
+package org.emailclient.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Default recorder used when no other {@link IMetricsRecorder} is installed. Keeps everything in memory, counters
+ * are {@link LongAdder}s and timers {@link LatencyHistogram}s.
+ */
+public class SimpleMetricsRecorder implements IMetricsRecorder {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private final Map<String, WeakReference<LongSupplier>> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(String name) {
+        final LongAdder adder = counters.computeIfAbsent(name, n -> new LongAdder());
+        return adder::add;
+    }
+
+    @Override
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new LatencyHistogram())::record;
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, new WeakReference<>(value));
+    }
+
+    @Override
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * 0 for a counter that was never incremented.
+     */
+    public long getCount(String name) {
+        final LongAdder adder = counters.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Null for a timer that was never looked up.
+     */
+    public LatencyHistogram getHistogram(String name) {
+        return timers.get(name);
+    }
+
+    /**
+     * Current value of the gauge, 0 when there is none.
+     */
+    public long getGauge(String name) {
+        final WeakReference<LongSupplier> reference = gauges.get(name);
+        final LongSupplier gauge = reference == null ? null : reference.get();
+        return gauge == null ? 0 : gauge.getAsLong();
+    }
+}
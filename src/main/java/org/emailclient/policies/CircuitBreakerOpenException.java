@@ -0,0 +1,12 @@
+package org.emailclient.policies;
+
+/**
+ * Thrown instead of calling the send function while the circuit breaker is open. It has no stack trace, so
+ * short-circuiting stays cheap.
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+
+    public CircuitBreakerOpenException(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,326 @@
+package org.emailclient.policies;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Stops calling a failing relay. Can be shared by every {@link PolicyEnforcer} that sends to the same host.
+ * <p>
+ * While CLOSED the outcome of the last {@code windowSize} calls is kept. Once at least {@code minimumCalls} were
+ * recorded and the failure rate or the rate of calls slower than {@code slowCallDuration} reaches its threshold
+ * the breaker opens and every call fails with {@link CircuitBreakerOpenException} for {@code openDuration}. Then it
+ * lets {@code halfOpenCalls} trial calls through and closes or opens again depending on their outcome.
+ */
+public class CircuitBreakerPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerPolicy.class);
+
+    private static final byte SUCCESS = 1;
+    private static final byte FAILURE = 2;
+    private static final byte SLOW = 4;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final double slowCallRateThreshold;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    private final List<ICircuitBreakerListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final byte[] window;
+    private int position;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+    private int halfOpenPermits;
+
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil;
+
+    public CircuitBreakerPolicy(
+            int windowSize,
+            int minimumCalls,
+            double failureRateThreshold,
+            Duration slowCallDuration,
+            double slowCallRateThreshold,
+            Duration openDuration,
+            int halfOpenCalls
+    ) {
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = slowCallDuration.toNanos();
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+        this.window = new byte[windowSize];
+    }
+
+    /**
+     * Wraps {@code f} so every call asks for permission first and records its outcome and duration.
+     */
+    public <T, R> Function<T, R> decorate(Function<T, R> f) {
+
+        return t -> {
+
+            if (!tryAcquirePermission()) {
+                throw new CircuitBreakerOpenException("Circuit breaker is open");
+            }
+
+            final long start = System.nanoTime();
+
+            try {
+                final R result = f.apply(t);
+                onSuccess(System.nanoTime() - start);
+                return result;
+            } catch (Throwable ex) {
+                //an Error must not leave a half open trial call unrecorded, that would keep the breaker closed to calls
+                onError(System.nanoTime() - start);
+                throw ex;
+            }
+        };
+    }
+
+    /**
+     * False while open, the caller must not make the call. An open breaker answers without taking a lock.
+     */
+    public boolean tryAcquirePermission() {
+
+        final State current = state;
+
+        if (current == State.CLOSED) {
+            return true;
+        }
+
+        if (current == State.OPEN && System.nanoTime() - openUntil < 0) {
+            return false;
+        }
+
+        boolean halfOpened = false;
+        boolean permitted = true;
+
+        synchronized (this) {
+
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openUntil < 0) {
+                    return false;
+                }
+                changeState(State.HALF_OPEN);
+                halfOpened = true;
+            }
+
+            if (state == State.HALF_OPEN) {
+                if (halfOpenPermits == 0) {
+                    permitted = false;
+                } else {
+                    halfOpenPermits--;
+                }
+            }
+        }
+
+        if (halfOpened) {
+            notifyListeners(State.OPEN, State.HALF_OPEN);
+        }
+
+        return permitted;
+    }
+
+    public void onSuccess(long durationNanos) {
+        record(durationNanos >= slowCallNanos ? (byte) (SUCCESS | SLOW) : SUCCESS);
+    }
+
+    public void onError(long durationNanos) {
+        record(durationNanos >= slowCallNanos ? (byte) (FAILURE | SLOW) : FAILURE);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public synchronized double getFailureRate() {
+        return calls == 0 ? 0 : (double) failures / calls;
+    }
+
+    public synchronized double getSlowCallRate() {
+        return calls == 0 ? 0 : (double) slowCalls / calls;
+    }
+
+    public void addListener(ICircuitBreakerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ICircuitBreakerListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void record(final byte outcome) {
+
+        State from = null;
+        State to = null;
+
+        synchronized (this) {
+
+            //a call that started before the breaker opened
+            if (state == State.OPEN) {
+                return;
+            }
+
+            final byte evicted = window[position];
+            if (evicted != 0) {
+                calls--;
+                if ((evicted & FAILURE) != 0) failures--;
+                if ((evicted & SLOW) != 0) slowCalls--;
+            }
+
+            window[position] = outcome;
+            position = (position + 1) % windowSize;
+            calls++;
+            if ((outcome & FAILURE) != 0) failures++;
+            if ((outcome & SLOW) != 0) slowCalls++;
+
+            if (state == State.HALF_OPEN) {
+                if (calls >= halfOpenCalls) {
+                    from = state;
+                    to = exceedsThresholds() ? State.OPEN : State.CLOSED;
+                }
+            } else if (calls >= minimumCalls && exceedsThresholds()) {
+                from = state;
+                to = State.OPEN;
+            }
+
+            if (to != null) {
+                changeState(to);
+            }
+        }
+
+        if (to != null) {
+            notifyListeners(from, to);
+        }
+    }
+
+    private void changeState(final State to) {
+
+        if (to == State.OPEN) {
+            openUntil = System.nanoTime() + openNanos;
+        }
+        if (to == State.HALF_OPEN) {
+            halfOpenPermits = halfOpenCalls;
+        }
+
+        //every state starts with an empty window
+        Arrays.fill(window, (byte) 0);
+        position = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+
+        state = to;
+    }
+
+    private boolean exceedsThresholds() {
+        return (double) failures / calls >= failureRateThreshold
+                || (double) slowCalls / calls >= slowCallRateThreshold;
+    }
+
+    private void notifyListeners(final State from, final State to) {
+
+        logger.info("Circuit breaker {} -> {}", from, to);
+
+        for (ICircuitBreakerListener listener : listeners) {
+            try {
+                listener.onStateChange(from, to);
+            } catch (Exception ex) {
+                logger.error("Circuit breaker listener failure", ex);
+            }
+        }
+    }
+
+    public static CircuitBreakerPolicyBuilder builder() {
+        return new CircuitBreakerPolicyBuilder();
+    }
+
+    public static class CircuitBreakerPolicyBuilder {
+        private int windowSize = 100;
+        private int minimumCalls = 10;
+        private double failureRateThreshold = 0.5;
+        private Duration slowCallDuration = Duration.ofSeconds(10);
+        private double slowCallRateThreshold = 1;
+        private Duration openDuration = Duration.ofSeconds(30);
+        private int halfOpenCalls = 5;
+
+        /**
+         * Number of most recent calls the rates are computed over.
+         */
+        public CircuitBreakerPolicyBuilder withWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        public CircuitBreakerPolicyBuilder withMinimumCalls(int minimumCalls) {
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        public CircuitBreakerPolicyBuilder withFailureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /**
+         * Calls that take at least {@code slowCallDuration} count as slow, the breaker opens when their share reaches
+         * {@code slowCallRateThreshold}.
+         */
+        public CircuitBreakerPolicyBuilder withSlowCalls(Duration slowCallDuration, double slowCallRateThreshold) {
+            this.slowCallDuration = slowCallDuration;
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            return this;
+        }
+
+        public CircuitBreakerPolicyBuilder withOpenDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+            return this;
+        }
+
+        public CircuitBreakerPolicyBuilder withHalfOpenCalls(int halfOpenCalls) {
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        public CircuitBreakerPolicy build() {
+
+            if (windowSize <= 0 || minimumCalls <= 0 || halfOpenCalls <= 0) {
+                throw new IllegalArgumentException("windowSize, minimumCalls and halfOpenCalls must be positive");
+            }
+            if (halfOpenCalls > windowSize || minimumCalls > windowSize) {
+                throw new IllegalArgumentException("halfOpenCalls and minimumCalls cannot exceed windowSize");
+            }
+            if (slowCallDuration == null || openDuration == null) {
+                throw new IllegalArgumentException("slowCallDuration and openDuration cannot be null");
+            }
+
+            return new CircuitBreakerPolicy(
+                    windowSize,
+                    minimumCalls,
+                    failureRateThreshold,
+                    slowCallDuration,
+                    slowCallRateThreshold,
+                    openDuration,
+                    halfOpenCalls
+            );
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package org.emailclient.policies;
+
+public interface ICircuitBreakerListener {
+
+    void onStateChange(CircuitBreakerPolicy.State from, CircuitBreakerPolicy.State to);
+
+}
@@ -0,0 +1,15 @@
+package org.emailclient.policies;
+
+/**
+ * Rate limit that can either reject ({@link #validate}) or tell the caller how long to wait ({@link #reserve}).
+ */
+public interface IRateLimitPolicy<T> extends IValidatePolicy<T> {
+
+    /**
+     * Takes a permit for {@code t} even when none is free yet.
+     *
+     * @return nanos until the permit becomes valid, 0 to send right away
+     */
+    long reserve(T t);
+
+}
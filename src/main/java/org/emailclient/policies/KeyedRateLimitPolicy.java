@@ -0,0 +1,140 @@
+package org.emailclient.policies;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps one limiter state per key, at most {@code maxKeys} of them. A new key beyond that replaces the oldest key
+ * whose state no longer holds back any send, looking at a few of the oldest keys only. When none of them is idle the
+ * oldest key is dropped anyway, it starts over with a full allowance the next time it is seen.
+ * <p>
+ * Looking up a known key does not lock, only adding a key does.
+ */
+abstract class KeyedRateLimitPolicy<T, S> implements IRateLimitPolicy<T> {
+
+    private final Function<T, Collection<?>> keys;
+    private final int maxKeys;
+    private static final int EVICTION_CANDIDATES = 8;
+
+    private final Map<Object, S> states = new ConcurrentHashMap<>();
+    //keys oldest first, guarded by itself
+    private final ArrayDeque<Object> order = new ArrayDeque<>();
+
+    KeyedRateLimitPolicy(Function<T, Collection<?>> keys, int maxKeys) {
+        this.keys = keys;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Takes a permit for every key of {@code t}, throws when one of them has none left. Permits already taken for
+     * the other keys are not given back.
+     */
+    @Override
+    public boolean validate(T t) {
+
+        final long now = System.nanoTime();
+
+        for (Object key : keys.apply(t)) {
+            if (acquire(state(key, now), now, false) > 0) {
+                throw new RuntimeException("Rate limit exceeded for " + key);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes a permit for every key of {@code t} and returns the longest wait among them.
+     */
+    @Override
+    public long reserve(T t) {
+
+        final long now = System.nanoTime();
+        long wait = 0;
+
+        for (Object key : keys.apply(t)) {
+            wait = Math.max(wait, acquire(state(key, now), now, true));
+        }
+
+        return wait;
+    }
+
+    @Override
+    public boolean throwException() {
+        return true;
+    }
+
+    /**
+     * Number of keys currently tracked.
+     */
+    public int getKeys() {
+        return states.size();
+    }
+
+    abstract S newState(long now);
+
+    /**
+     * @param reserve take the permit even when it is only valid later
+     * @return nanos until the permit is valid, when {@code reserve} is false and this is positive nothing was taken
+     */
+    abstract long acquire(S state, long now, boolean reserve);
+
+    /**
+     * True when dropping the state would not change any future answer.
+     */
+    abstract boolean isIdle(S state, long now);
+
+    private S state(final Object key, final long now) {
+
+        S state = states.get(key);
+
+        if (state != null) {
+            return state;
+        }
+
+        synchronized (order) {
+
+            state = states.get(key);
+
+            if (state != null) {
+                return state;
+            }
+
+            if (order.size() >= maxKeys) {
+                evictOne(now);
+            }
+
+            state = newState(now);
+            states.put(key, state);
+            order.addLast(key);
+
+            return state;
+        }
+    }
+
+    /**
+     * Second chance over the oldest keys, a key that is still limiting goes to the back of the line.
+     */
+    private void evictOne(final long now) {
+
+        final int candidates = Math.min(EVICTION_CANDIDATES, order.size());
+
+        for (int i = 0; i < candidates; i++) {
+
+            final Object key = order.pollFirst();
+
+            if (isIdle(states.get(key), now)) {
+                states.remove(key);
+                return;
+            }
+
+            order.addLast(key);
+        }
+
+        //nothing idle among them, maxKeys still holds
+        states.remove(order.pollFirst());
+    }
+}
@@ -1,10 +1,15 @@
 package org.emailclient.policies;
 
+import org.emailclient.metrics.IMetricsRecorder;
+import org.emailclient.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Function;
 
 import static org.emailclient.policies.RetryPolicy.retry;
@@ -19,14 +24,32 @@ public class PolicyEnforcer<T, R> {
 
     private final List<Function<T, R>> fallBack;
 
+    private final ScheduledExecutorService scheduler;
+
+    private final CircuitBreakerPolicy circuitBreaker;
+
+    private final IMetricsRecorder.Counter fallbacks = Metrics.recorder().counter(Metrics.FALLBACKS);
+
     public PolicyEnforcer(
             List<IValidatePolicy<T>> validatePolicies,
             RetryPolicy retryPolicy,
             List<Function<T, R>> fallBack
+    ) {
+        this(validatePolicies, retryPolicy, fallBack, null, null);
+    }
+
+    public PolicyEnforcer(
+            List<IValidatePolicy<T>> validatePolicies,
+            RetryPolicy retryPolicy,
+            List<Function<T, R>> fallBack,
+            ScheduledExecutorService scheduler,
+            CircuitBreakerPolicy circuitBreaker
     ) {
         this.validatePolicies = validatePolicies;
         this.retryPolicy = retryPolicy;
         this.fallBack = fallBack;
+        this.scheduler = scheduler == null ? RetryPolicy.sharedScheduler() : scheduler;
+        this.circuitBreaker = circuitBreaker;
     }
 
 
@@ -36,9 +59,22 @@ public class PolicyEnforcer<T, R> {
 
         validate(t);
 
+        if (retryPolicy != null) {
+            retryPolicy.onRequest();
+        }
+
+        final Function<T, R> call = circuitBreaker == null ? f : circuitBreaker.decorate(f);
+
         try {
 
-            return f.apply(t);
+            return call.apply(t);
+
+        } catch (CircuitBreakerOpenException ex) {
+
+            if (fallBack != null)
+                return runFallback(t);
+
+            throw ex;
 
         } catch (Exception ex) {
 
@@ -47,7 +83,7 @@ public class PolicyEnforcer<T, R> {
             }
 
             try {
-                return retry(retryPolicy, f, t, ex);
+                return retry(retryPolicy, call, t, ex);
             } catch (Exception ex2) {
 
                 if (fallBack != null)
@@ -62,12 +98,62 @@ public class PolicyEnforcer<T, R> {
             Function<T, R> f, T t
     ) {
 
-        return CompletableFuture.supplyAsync(() ->
-                run(f, t)
-        );
+        return runAsync(f, t, ForkJoinPool.commonPool());
 
     }
 
+    /**
+     * Runs on {@code executor} instead of the common pool, which should not be blocked by I/O such as SMTP sends.
+     * Retries wait on the scheduler, no thread is blocked between attempts.
+     */
+    public CompletableFuture<R> runAsync(
+            Function<T, R> f, T t, Executor executor
+    ) {
+
+        return CompletableFuture.supplyAsync(() -> {
+
+            validate(t);
+
+            if (retryPolicy != null) {
+                retryPolicy.onRequest();
+            }
+
+            final Function<T, R> call = circuitBreaker == null ? f : circuitBreaker.decorate(f);
+
+            try {
+                return CompletableFuture.completedFuture(call.apply(t));
+            } catch (CircuitBreakerOpenException ex) {
+
+                if (fallBack != null)
+                    return CompletableFuture.completedFuture(runFallback(t));
+
+                return CompletableFuture.<R>failedFuture(ex);
+            } catch (Exception ex) {
+                return recoverAsync(call, t, ex, executor);
+            }
+
+        }, executor).thenCompose(Function.identity());
+
+    }
+
+    private CompletableFuture<R> recoverAsync(
+            Function<T, R> f, T t, Exception ex, Executor executor
+    ) {
+
+        if (retryPolicy == null) {
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        return RetryPolicy.retryAsync(retryPolicy, f, t, ex, scheduler, executor)
+                .exceptionallyCompose(ex2 -> {
+
+                    if (fallBack != null)
+                        return CompletableFuture.supplyAsync(() -> runFallback(t), executor);
+
+                    return CompletableFuture.failedFuture(ex2);
+                });
+    }
+
 
     private void validate(final T t) {
 
@@ -99,6 +185,7 @@ public class PolicyEnforcer<T, R> {
 
 
         logger.info("Starting fallback ...");
+        fallbacks.increment();
 
         for (Function<T, R> trFunction : fallBack) {
 
@@ -121,6 +208,8 @@ public class PolicyEnforcer<T, R> {
         private List<IValidatePolicy<T>> validatePolicies;
         private RetryPolicy retryPolicy;
         private List<Function<T, R>> fallBack;
+        private ScheduledExecutorService scheduler;
+        private CircuitBreakerPolicy circuitBreaker;
 
         public PolicyEnforcerBuilder<T, R> withValidations(List<IValidatePolicy<T>> validatePolicies) {
             this.validatePolicies = validatePolicies;
@@ -137,8 +226,24 @@ public class PolicyEnforcer<T, R> {
             return this;
         }
 
+        /**
+         * Scheduler for the delays of {@link #runAsync} retries, {@link RetryPolicy#sharedScheduler()} by default.
+         */
+        public PolicyEnforcerBuilder<T, R> withScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * While the breaker is open calls and retries go straight to the fallbacks.
+         */
+        public PolicyEnforcerBuilder<T, R> withCircuitBreaker(CircuitBreakerPolicy circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
         public PolicyEnforcer<T, R> build() {
-            return new PolicyEnforcer<>(validatePolicies, retryPolicy, fallBack);
+            return new PolicyEnforcer<>(validatePolicies, retryPolicy, fallBack, scheduler, circuitBreaker);
         }
     }
 
@@ -0,0 +1,98 @@
+package org.emailclient.policies;
+
+import jakarta.mail.internet.AddressException;
+import org.emailclient.AddressCache;
+import org.emailclient.EmailNotification;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Key extractors for the rate limit policies, a notification counts once against every key returned.
+ * <p>
+ * Address keys use the bare address, so {@code "Alice <alice@x.com>"} and {@code "alice@x.com"} share a key.
+ */
+public final class RateLimitKeys {
+
+    private static final List<Object> GLOBAL = List.of("*");
+
+    private RateLimitKeys() {
+    }
+
+    /**
+     * One limit shared by every notification.
+     */
+    public static Function<EmailNotification, Collection<?>> global() {
+        return notification -> GLOBAL;
+    }
+
+    public static Function<EmailNotification, Collection<?>> fromAddress() {
+        return notification -> List.of(normalize(notification.getFromEmail()));
+    }
+
+    /**
+     * Every distinct domain among the to, cc and bcc recipients.
+     */
+    public static Function<EmailNotification, Collection<?>> recipientDomains() {
+        return notification -> {
+            final Set<Object> domains = new LinkedHashSet<>();
+            forEachRecipient(notification, recipient -> domains.add(domain(recipient)));
+            return domains;
+        };
+    }
+
+    /**
+     * Every distinct to, cc and bcc recipient.
+     */
+    public static Function<EmailNotification, Collection<?>> recipients() {
+        return notification -> {
+            final Set<Object> recipients = new LinkedHashSet<>();
+            forEachRecipient(notification, recipient -> recipients.add(normalize(recipient)));
+            return recipients;
+        };
+    }
+
+    public static Function<EmailNotification, Collection<?>> of(Function<EmailNotification, Object> key) {
+        return notification -> List.of(key.apply(notification));
+    }
+
+    private static void forEachRecipient(EmailNotification notification, Consumer<String> action) {
+        forEach(notification.getToRecipients(), action);
+        forEach(notification.getCcRecipients(), action);
+        forEach(notification.getBccRecipients(), action);
+    }
+
+    private static void forEach(Collection<String> recipients, Consumer<String> action) {
+        if (recipients != null) {
+            recipients.forEach(action);
+        }
+    }
+
+    private static String domain(String address) {
+        final String normalized = normalize(address);
+        final int at = normalized.lastIndexOf('@');
+        return at < 0 ? normalized : normalized.substring(at + 1);
+    }
+
+    private static String normalize(String address) {
+
+        if (address == null) {
+            return "";
+        }
+
+        String bare;
+        try {
+            bare = AddressCache.shared().parse(address).getAddress();
+        } catch (AddressException e) {
+            //invalid addresses are rejected on send, key them by their raw string until then
+            bare = address;
+        }
+
+        return bare.trim().toLowerCase(Locale.ROOT);
+    }
+}
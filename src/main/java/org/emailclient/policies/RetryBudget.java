@@ -0,0 +1,147 @@
+package org.emailclient.policies;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket that limits retries to a fraction of the requests, share one instance between every
+ * {@link RetryPolicy} that talks to the same relay.
+ * <p>
+ * Each request deposits {@code ratio} tokens and each retry withdraws one, so retries can add at most {@code ratio}
+ * to the normal load. {@code minRetriesPerSecond} tokens are added over time so a quiet sender can still retry.
+ * The bucket never holds more than {@code maxTokens}.
+ */
+public class RetryBudget {
+
+    private static final long SCALE = 1000;
+
+    private final long depositPerRequest;
+    private final long refillPerSecond;
+    private final long maxTokens;
+    //time to fill the bucket from empty, longer idle periods add nothing and would overflow the refill product
+    private final long fillNanos;
+
+    private final AtomicLong tokens;
+    private final AtomicLong lastRefill;
+    private final LongAdder rejected = new LongAdder();
+
+    public RetryBudget(double ratio, double minRetriesPerSecond, int maxTokens) {
+        this.depositPerRequest = Math.round(ratio * SCALE);
+        this.refillPerSecond = Math.round(minRetriesPerSecond * SCALE);
+        this.maxTokens = maxTokens * SCALE;
+        this.fillNanos = refillPerSecond == 0 ? 0 : Math.min(Long.MAX_VALUE / refillPerSecond,
+                (long) Math.ceil((double) this.maxTokens * 1_000_000_000L / refillPerSecond));
+        this.tokens = new AtomicLong(this.maxTokens);
+        this.lastRefill = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Called once per first attempt.
+     */
+    public void onRequest() {
+        deposit(depositPerRequest);
+    }
+
+    /**
+     * Withdraws one token, false when the budget is spent and the retry should not happen.
+     */
+    public boolean tryAcquire() {
+
+        refill();
+
+        while (true) {
+
+            final long current = tokens.get();
+
+            if (current < SCALE) {
+                rejected.increment();
+                return false;
+            }
+
+            if (tokens.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    public double getAvailable() {
+        refill();
+        return (double) tokens.get() / SCALE;
+    }
+
+    /**
+     * Retries refused because the budget was spent.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private void refill() {
+
+        if (refillPerSecond == 0) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long last = lastRefill.get();
+        final long amount = Math.min(now - last, fillNanos) * refillPerSecond / 1_000_000_000L;
+
+        //only the thread that moves the timestamp adds the tokens for that interval
+        if (amount > 0 && lastRefill.compareAndSet(last, now)) {
+            deposit(amount);
+        }
+    }
+
+    private void deposit(final long amount) {
+
+        while (true) {
+
+            final long current = tokens.get();
+            final long next = Math.min(maxTokens, current + amount);
+
+            if (current == next || tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public static RetryBudgetBuilder builder() {
+        return new RetryBudgetBuilder();
+    }
+
+    public static class RetryBudgetBuilder {
+        private double ratio = 0.1;
+        private double minRetriesPerSecond = 1;
+        private int maxTokens = 100;
+
+        /**
+         * Share of the request rate that may be retried, 0.1 by default.
+         */
+        public RetryBudgetBuilder withRatio(double ratio) {
+            this.ratio = ratio;
+            return this;
+        }
+
+        public RetryBudgetBuilder withMinRetriesPerSecond(double minRetriesPerSecond) {
+            this.minRetriesPerSecond = minRetriesPerSecond;
+            return this;
+        }
+
+        public RetryBudgetBuilder withMaxTokens(int maxTokens) {
+            this.maxTokens = maxTokens;
+            return this;
+        }
+
+        public RetryBudget build() {
+
+            if (ratio < 0 || minRetriesPerSecond < 0) {
+                throw new IllegalArgumentException("ratio and minRetriesPerSecond cannot be negative");
+            }
+            if (maxTokens <= 0) {
+                throw new IllegalArgumentException("maxTokens must be positive");
+            }
+
+            return new RetryBudget(ratio, minRetriesPerSecond, maxTokens);
+        }
+    }
+}
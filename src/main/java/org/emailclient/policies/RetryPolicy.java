@@ -1,9 +1,18 @@
 package org.emailclient.policies;
 
+import org.emailclient.metrics.IMetricsRecorder;
+import org.emailclient.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -11,6 +20,27 @@ public class RetryPolicy {
 
     private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
 
+    /**
+     * Randomization of the backoff delay, so clients that failed together do not retry together.
+     */
+    public enum Jitter {
+
+        /**
+         * Exactly the backoff delay.
+         */
+        NONE,
+
+        /**
+         * Uniform between 0 and the backoff delay.
+         */
+        FULL,
+
+        /**
+         * Uniform between the base delay and three times the previous delay, capped at the max delay.
+         */
+        DECORRELATED
+    }
+
     private final TimeUnit timeUnit;
 
     private final long delay;
@@ -18,11 +48,46 @@ public class RetryPolicy {
     private final int maxRetries;
     private final List<Class<? extends Exception>> handle;
 
+    private final double multiplier;
+    private final long maxDelayNanos;
+    private final Jitter jitter;
+    private final long maxDurationNanos;
+    private final RetryBudget budget;
+
+    private final IMetricsRecorder.Counter retries = Metrics.recorder().counter(Metrics.RETRIES);
+    private final IMetricsRecorder.Timer retryDelay = Metrics.recorder().timer(Metrics.RETRY_DELAY);
+    private final IMetricsRecorder.Counter exhausted = Metrics.recorder().counter(Metrics.RETRIES_EXHAUSTED);
+
     public RetryPolicy(TimeUnit timeUnit, long delay, int maxRetries, List<Class<? extends Exception>> handle) {
+        this(timeUnit, delay, maxRetries, handle, 1, null, Jitter.NONE, null, null);
+    }
+
+    /**
+     * @param multiplier  growth of the delay per retry, 1 keeps it fixed
+     * @param maxDelay    cap of a single delay, null for none
+     * @param maxDuration time from the first failure after which no retry starts, null for none
+     * @param budget      retry budget, possibly shared with other policies, null for none
+     */
+    public RetryPolicy(
+            TimeUnit timeUnit,
+            long delay,
+            int maxRetries,
+            List<Class<? extends Exception>> handle,
+            double multiplier,
+            Duration maxDelay,
+            Jitter jitter,
+            Duration maxDuration,
+            RetryBudget budget
+    ) {
         this.timeUnit = timeUnit;
         this.delay = delay;
         this.maxRetries = maxRetries;
         this.handle = handle;
+        this.multiplier = multiplier;
+        this.maxDelayNanos = maxDelay == null ? Long.MAX_VALUE : maxDelay.toNanos();
+        this.jitter = jitter == null ? Jitter.NONE : jitter;
+        this.maxDurationNanos = maxDuration == null ? 0 : maxDuration.toNanos();
+        this.budget = budget;
     }
 
     public TimeUnit getTimeUnit() {
@@ -41,58 +106,175 @@ public class RetryPolicy {
         return handle;
     }
 
+    public double getMultiplier() {
+        return multiplier;
+    }
 
-    public static <T, R> R retry(RetryPolicy retryPolicy, Function<T, R> f, T t, Exception ex) {
-        handle(retryPolicy, ex);
+    public Jitter getJitter() {
+        return jitter;
+    }
 
+    public RetryBudget getBudget() {
+        return budget;
+    }
 
-        if (retryPolicy.getMaxRetries() == 0) {
-            return retryForEver(retryPolicy, f, t);
+    /**
+     * Deposits into the retry budget, call once per first attempt.
+     */
+    public void onRequest() {
+        if (budget != null) {
+            budget.onRequest();
         }
+    }
 
-        return retryMaxTries(retryPolicy, f, t);
+    /**
+     * Delay before the next retry, or -1 when {@code ex} is not handled, {@code retries} retries were already made,
+     * the delay would end after the total time budget or the retry budget is spent. A delay withdraws a token
+     * from the retry budget.
+     *
+     * @param previousDelayNanos delay before the previous retry, 0 before the first one
+     * @param elapsedNanos       time since the first failure
+     */
+    public long nextDelayNanos(Exception ex, int retries, long previousDelayNanos, long elapsedNanos) {
+
+        final long next = nextDelay(ex, retries, previousDelayNanos, elapsedNanos);
+
+        if (next < 0) {
+            exhausted.increment();
+        } else {
+            this.retries.increment();
+            retryDelay.record(next);
+        }
 
+        return next;
     }
 
-    private static <T, R> R retryMaxTries(RetryPolicy retryPolicy, Function<T, R> f, T t) {
+    private long nextDelay(Exception ex, int retries, long previousDelayNanos, long elapsedNanos) {
 
-        int tries = 0;
-        while (tries < retryPolicy.getMaxRetries()) {
+        if (!handles(ex) || (maxRetries != 0 && retries >= maxRetries)) {
+            return -1;
+        }
 
-            //delay
-            try {
-                retryPolicy.getTimeUnit().sleep(retryPolicy.getDelay());
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+        final long next = backoff(retries + 1, previousDelayNanos);
+
+        if (maxDurationNanos > 0 && elapsedNanos + next > maxDurationNanos) {
+            return -1;
+        }
+
+        if (budget != null && !budget.tryAcquire()) {
+            logger.debug("Retry budget spent");
+            return -1;
+        }
+
+        return next;
+    }
+
+    /**
+     * Scheduler shared by all asynchronous retries that were not given their own. A single daemon thread only moves
+     * due retries onto their executor, so it can hold a large number of pending retries.
+     */
+    public static ScheduledExecutorService sharedScheduler() {
+        return SchedulerHolder.SCHEDULER;
+    }
+
+    /**
+     * Like {@link #retry}, but waits for each delay on {@code scheduler} and runs the attempts on {@code executor}
+     * instead of sleeping on the calling thread.
+     */
+    public static <T, R> CompletableFuture<R> retryAsync(
+            RetryPolicy retryPolicy,
+            Function<T, R> f,
+            T t,
+            Exception ex,
+            ScheduledExecutorService scheduler,
+            Executor executor
+    ) {
+
+        final CompletableFuture<R> result = new CompletableFuture<>();
+
+        scheduleRetry(retryPolicy, f, t, ex, 0, 0, System.nanoTime(), scheduler, executor, result);
+
+        return result;
+    }
+
+    private static <T, R> void scheduleRetry(
+            RetryPolicy retryPolicy,
+            Function<T, R> f,
+            T t,
+            Exception ex,
+            int retries,
+            long previousDelayNanos,
+            long firstFailure,
+            ScheduledExecutorService scheduler,
+            Executor executor,
+            CompletableFuture<R> result
+    ) {
+
+        if (!retryPolicy.handles(ex)) {
+            result.completeExceptionally(new RuntimeException("Policy enforcer could not handle exception", ex));
+            return;
+        }
+
+        final long delayNanos = retryPolicy.nextDelayNanos(ex, retries, previousDelayNanos, System.nanoTime() - firstFailure);
+
+        if (delayNanos < 0) {
+            result.completeExceptionally(new RuntimeException("Failure: Max retries reached...", ex));
+            return;
+        }
+
+        final Runnable attempt = () -> {
 
             logger.debug("retrying..");
-            tries++;
 
             try {
-                return f.apply(t);
+                result.complete(f.apply(t));
             } catch (Exception ex2) {
 
                 logger.error("Error in retry: ", ex2);
-                handle(retryPolicy, ex2);
+                scheduleRetry(retryPolicy, f, t, ex2, retries + 1, delayNanos, firstFailure, scheduler, executor, result);
 
             }
+        };
+
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    executor.execute(attempt);
+                } catch (RejectedExecutionException e) {
+                    result.completeExceptionally(e);
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
         }
-
-        throw new RuntimeException("Failure: Max retries reached...");
     }
 
-    private static <T, R> R retryForEver(RetryPolicy retryPolicy, Function<T, R> f, T t) {
+
+    public static <T, R> R retry(RetryPolicy retryPolicy, Function<T, R> f, T t, Exception ex) {
+        handle(retryPolicy, ex);
+
+        final long firstFailure = System.nanoTime();
+        Exception last = ex;
+        long delayNanos = 0;
+        int tries = 0;
+
         while (true) {
 
+            delayNanos = retryPolicy.nextDelayNanos(last, tries, delayNanos, System.nanoTime() - firstFailure);
+
+            if (delayNanos < 0) {
+                throw new RuntimeException("Failure: Max retries reached...");
+            }
+
+            //delay
             try {
-                retryPolicy.getTimeUnit().sleep(retryPolicy.getDelay());
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
 
             logger.debug("retrying..");
-
+            tries++;
 
             try {
                 return f.apply(t);
@@ -100,6 +282,7 @@ public class RetryPolicy {
 
                 logger.error("Error in retry: ", ex2);
                 handle(retryPolicy, ex2);
+                last = ex2;
 
             }
         }
@@ -109,18 +292,64 @@ public class RetryPolicy {
 
     private static void handle(RetryPolicy retryPolicy, Exception ex) {
 
-        if (retryPolicy.getHandle() == null || retryPolicy.getHandle().isEmpty()) {
+        if (!retryPolicy.handles(ex)) {
             throw new RuntimeException("Policy enforcer could not handle exception", ex);
         }
 
-        boolean found = retryPolicy.getHandle().stream().anyMatch(ex.getClass()::equals);
+        logger.debug("Handling exception" + ex.getMessage());
 
-        if (!found) {
-            throw new RuntimeException("Policy enforcer could not handle exception", ex);
+    }
+
+    private long backoff(int retry, long previousDelayNanos) {
+
+        final long base = timeUnit == null ? 0 : timeUnit.toNanos(delay);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        switch (jitter) {
+            case FULL:
+                return random.nextLong(exponential(retry, base) + 1);
+            case DECORRELATED:
+                final long upper = Math.min(maxDelayNanos, saturatedTimes3(Math.max(base, previousDelayNanos)));
+                return upper <= base ? upper : base + random.nextLong(upper - base + 1);
+            default:
+                return exponential(retry, base);
         }
+    }
 
-        logger.debug("Handling exception" + ex.getMessage());
+    private long exponential(int retry, long base) {
+        final double value = base * Math.pow(multiplier, retry - 1);
+        return value >= maxDelayNanos ? maxDelayNanos : (long) value;
+    }
+
+    private static long saturatedTimes3(long value) {
+        return value > Long.MAX_VALUE / 3 ? Long.MAX_VALUE : value * 3;
+    }
+
+    private boolean handles(Exception ex) {
+
+        if (handle == null || handle.isEmpty()) {
+            return false;
+        }
 
+        return handle.stream().anyMatch(ex.getClass()::equals);
+    }
+
+    private static final class SchedulerHolder {
+
+        private static final ScheduledExecutorService SCHEDULER = createScheduler();
+
+        private static ScheduledExecutorService createScheduler() {
+
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                final Thread thread = new Thread(r, "email-retry-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            scheduler.setRemoveOnCancelPolicy(true);
+
+            return scheduler;
+        }
     }
 
     public static RetryPolicyBuilder builder() {
@@ -134,6 +363,11 @@ public class RetryPolicy {
         private long delay;
         private int maxRetries;
         private List<Class<? extends Exception>> handle;
+        private double multiplier = 1;
+        private Duration maxDelay;
+        private Jitter jitter = Jitter.NONE;
+        private Duration maxDuration;
+        private RetryBudget budget;
 
         public RetryPolicyBuilder withDelay(TimeUnit timeUnit, long delay) {
             this.timeUnit = timeUnit;
@@ -151,13 +385,46 @@ public class RetryPolicy {
             return this;
         }
 
+        /**
+         * The delay grows by {@code multiplier} per retry and never exceeds {@code maxDelay}.
+         */
+        public RetryPolicyBuilder withBackoff(double multiplier, Duration maxDelay) {
+            this.multiplier = multiplier;
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        public RetryPolicyBuilder withJitter(Jitter jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * No retry starts later than {@code maxDuration} after the first failure, even with retries left.
+         */
+        public RetryPolicyBuilder withMaxDuration(Duration maxDuration) {
+            this.maxDuration = maxDuration;
+            return this;
+        }
+
+        public RetryPolicyBuilder withBudget(RetryBudget budget) {
+            this.budget = budget;
+            return this;
+        }
+
         public RetryPolicy build() {
 
             if (maxRetries < 0) {
                 throw new IllegalArgumentException("maxRetries cannot be negative");
             }
+            if (multiplier < 1) {
+                throw new IllegalArgumentException("multiplier cannot be less than 1");
+            }
+            if (jitter == null) {
+                throw new IllegalArgumentException("jitter cannot be null");
+            }
 
-            return new RetryPolicy(timeUnit, delay, maxRetries, handle);
+            return new RetryPolicy(timeUnit, delay, maxRetries, handle, multiplier, maxDelay, jitter, maxDuration, budget);
         }
     }
 }
@@ -0,0 +1,126 @@
+package org.emailclient.policies;
+
+import org.emailclient.EmailNotification;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * Allows at most {@code limit} notifications in any {@code window} for each key.
+ * <p>
+ * Each key keeps a ring of its last {@code limit} send times, a new send is due when the oldest of them leaves the
+ * window. Unlike a token bucket there is no burst at the window edges, which matches providers that count sends
+ * over a rolling window.
+ */
+public class SlidingWindowRateLimitPolicy extends KeyedRateLimitPolicy<EmailNotification, SlidingWindowRateLimitPolicy.Log> {
+
+    private final int limit;
+    private final long window;
+
+    public SlidingWindowRateLimitPolicy(
+            int limit,
+            Duration window,
+            Function<EmailNotification, Collection<?>> keys,
+            int maxKeys
+    ) {
+        super(keys, maxKeys);
+        this.limit = limit;
+        this.window = window.toNanos();
+    }
+
+    @Override
+    Log newState(long now) {
+        return new Log(limit);
+    }
+
+    @Override
+    long acquire(Log log, long now, boolean reserve) {
+
+        synchronized (log) {
+
+            long at = now;
+
+            if (log.count == limit) {
+                final long due = log.times[log.head] + window;
+                if (due - now > 0) {
+                    at = due;
+                }
+            }
+
+            if (!reserve && at != now) {
+                return at - now;
+            }
+
+            log.times[log.head] = at;
+            log.head = (log.head + 1) % limit;
+            log.count = Math.min(log.count + 1, limit);
+
+            return at - now;
+        }
+    }
+
+    @Override
+    boolean isIdle(Log log, long now) {
+
+        synchronized (log) {
+            return log.count == 0 || log.times[(log.head + limit - 1) % limit] + window - now <= 0;
+        }
+    }
+
+    static final class Log {
+
+        private final long[] times;
+        private int head;
+        private int count;
+
+        private Log(int limit) {
+            this.times = new long[limit];
+        }
+    }
+
+    public static SlidingWindowRateLimitPolicyBuilder builder() {
+        return new SlidingWindowRateLimitPolicyBuilder();
+    }
+
+    public static class SlidingWindowRateLimitPolicyBuilder {
+        private int limit;
+        private Duration window;
+        private Function<EmailNotification, Collection<?>> keys = RateLimitKeys.global();
+        private int maxKeys = 10_000;
+
+        public SlidingWindowRateLimitPolicyBuilder withLimit(int limit, Duration window) {
+            this.limit = limit;
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * Limit per key, see {@link RateLimitKeys}. One global limit by default.
+         */
+        public SlidingWindowRateLimitPolicyBuilder withKeys(Function<EmailNotification, Collection<?>> keys) {
+            this.keys = keys;
+            return this;
+        }
+
+        public SlidingWindowRateLimitPolicyBuilder withMaxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public SlidingWindowRateLimitPolicy build() {
+
+            if (limit <= 0 || window == null || window.isNegative() || window.isZero()) {
+                throw new IllegalArgumentException("limit and window must be positive");
+            }
+            if (maxKeys <= 0) {
+                throw new IllegalArgumentException("maxKeys must be positive");
+            }
+            if (keys == null) {
+                throw new IllegalArgumentException("keys cannot be null");
+            }
+
+            return new SlidingWindowRateLimitPolicy(limit, window, keys, maxKeys);
+        }
+    }
+}
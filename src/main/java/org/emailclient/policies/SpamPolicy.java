@@ -1,51 +1,139 @@
 package org.emailclient.policies;
 
 import org.emailclient.EmailNotification;
+import org.emailclient.metrics.IMetricsRecorder;
+import org.emailclient.metrics.Metrics;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Spam policy can be shared in multiple IEmailSender
+ * <p>
+ * Rejects a notification whose subject was already accepted less than {@code coolDown} ago. Subjects are kept in a
+ * fixed table of {@code capacity} slots, each slot packs a 16 bit fingerprint of the subject and the 48 bit time in
+ * millis it was last accepted. A subject can live in one of two slots, check and update is a single CAS so two
+ * threads can never both pass with the same subject. Expired slots are reused, when both are live the older one is
+ * evicted, so memory stays fixed at the cost of occasionally letting a repeated subject through under pressure.
+ * Different subjects with the same hash are treated as the same subject.
  */
 public class SpamPolicy implements IValidatePolicy<EmailNotification> {
 
-    private final Map<String, LocalDateTime> previousSubject;
+    private static final int DEFAULT_CAPACITY = 1 << 16;
 
-    private final Duration coolDown;
+    private static final long TIME_MASK = (1L << 48) - 1;
+
+    private final AtomicLongArray slots;
+
+    private final int mask;
+
+    private final long coolDownMillis;
+
+    private final long origin = System.nanoTime();
+
+    private final IMetricsRecorder.Counter rejections = Metrics.recorder().counter(Metrics.SPAM_REJECTIONS);
 
     public SpamPolicy(Duration coolDown) {
-        this.previousSubject = new ConcurrentHashMap<>();
-        this.coolDown = coolDown;
+        this(coolDown, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two, each takes 8 bytes
+     */
+    public SpamPolicy(Duration coolDown, int capacity) {
 
+        if (capacity <= 1) {
+            throw new IllegalArgumentException("capacity must be greater than 1");
+        }
+
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.coolDownMillis = coolDown.toMillis();
     }
 
     @Override
     public boolean validate(EmailNotification notification) {
 
-        //get the previous run
-        final LocalDateTime previousRun = previousSubject.get(notification.getSubject());
+        final long hash = mix(notification.getSubject() == null ? 0 : notification.getSubject().hashCode());
+        final long fingerprint = (hash >>> 48) | 1; //never 0, so an empty slot never matches
+        final int first = (int) hash & mask;
+        final int second = (int) (hash >>> 24) & mask;
+        final long now = now();
+        final long entry = fingerprint << 48 | now;
 
-        if (previousRun == null) {
-            previousSubject.put(notification.getSubject(), LocalDateTime.now());
-            return true;
-        }
+        while (true) {
 
-        //check if its still on cool down
-        if(previousRun.isBefore(LocalDateTime.now().plus(coolDown))){
-            throw new RuntimeException("Email Spamming " + notification);
-        }
+            final long firstValue = slots.get(first);
+            final long secondValue = slots.get(second);
 
-        //update
-        previousSubject.put(notification.getSubject(), LocalDateTime.now());
+            final int index;
+            final long expected;
 
-        return true;
+            final boolean inFirst = fingerprint(firstValue) == fingerprint;
+            final boolean inSecond = fingerprint(secondValue) == fingerprint;
+
+            //a stale copy can be left in the other slot after an eviction, the newer one counts
+            if (inFirst && (!inSecond || time(firstValue) >= time(secondValue))) {
+                index = first;
+                expected = firstValue;
+            } else if (inSecond) {
+                index = second;
+                expected = secondValue;
+            } else {
+                //not seen or evicted, take the older slot, expired and empty slots are always older
+                final boolean useFirst = time(firstValue) <= time(secondValue);
+                index = useFirst ? first : second;
+                expected = useFirst ? firstValue : secondValue;
+
+                if (slots.compareAndSet(index, expected, entry)) {
+                    return true;
+                }
+                continue;
+            }
+
+            //check if its still on cool down
+            if (now - time(expected) < coolDownMillis) {
+                rejections.increment();
+                throw new RuntimeException("Email Spamming " + notification);
+            }
+
+            //update
+            if (slots.compareAndSet(index, expected, entry)) {
+                return true;
+            }
+        }
     }
 
     @Override
     public boolean throwException() {
         return true;
     }
+
+    /**
+     * Monotonic millis since this policy was created, starting at 1 so 0 stays an empty slot.
+     */
+    private long now() {
+        return ((System.nanoTime() - origin) / 1_000_000L + 1) & TIME_MASK;
+    }
+
+    private static long fingerprint(final long value) {
+        return value >>> 48;
+    }
+
+    private static long time(final long value) {
+        return value & TIME_MASK;
+    }
+
+    /**
+     * Spreads the 32 bit hash code over 64 bits so fingerprint and both slot indexes use different bits.
+     */
+    private static long mix(final int hashCode) {
+        long h = hashCode * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
 }
@@ -0,0 +1,115 @@
+package org.emailclient.policies;
+
+import org.emailclient.EmailNotification;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Allows {@code permits} notifications per {@code period} for each key, with bursts of up to {@code burst}.
+ * <p>
+ * Implemented as a generic cell rate algorithm: the whole bucket of a key is one {@link AtomicLong} holding the
+ * theoretical arrival time of the next permit, so taking a permit is a single CAS.
+ */
+public class TokenBucketRateLimitPolicy extends KeyedRateLimitPolicy<EmailNotification, AtomicLong> {
+
+    private final long interval;
+    private final long tolerance;
+
+    public TokenBucketRateLimitPolicy(
+            int permits,
+            Duration period,
+            int burst,
+            Function<EmailNotification, Collection<?>> keys,
+            int maxKeys
+    ) {
+        super(keys, maxKeys);
+        this.interval = Math.max(1, period.toNanos() / permits);
+        this.tolerance = interval * (burst - 1);
+    }
+
+    @Override
+    AtomicLong newState(long now) {
+        return new AtomicLong(now);
+    }
+
+    @Override
+    long acquire(AtomicLong state, long now, boolean reserve) {
+
+        while (true) {
+
+            final long arrival = state.get();
+            final long base = arrival - now < 0 ? now : arrival;
+            final long wait = Math.max(0, base - tolerance - now);
+
+            if (!reserve && wait > 0) {
+                return wait;
+            }
+
+            if (state.compareAndSet(arrival, base + interval)) {
+                return wait;
+            }
+        }
+    }
+
+    @Override
+    boolean isIdle(AtomicLong state, long now) {
+        return state.get() - now <= 0;
+    }
+
+    public static TokenBucketRateLimitPolicyBuilder builder() {
+        return new TokenBucketRateLimitPolicyBuilder();
+    }
+
+    public static class TokenBucketRateLimitPolicyBuilder {
+        private int permits;
+        private Duration period;
+        private int burst = 1;
+        private Function<EmailNotification, Collection<?>> keys = RateLimitKeys.global();
+        private int maxKeys = 10_000;
+
+        public TokenBucketRateLimitPolicyBuilder withRate(int permits, Duration period) {
+            this.permits = permits;
+            this.period = period;
+            return this;
+        }
+
+        /**
+         * Permits an idle key can use at once, 1 by default which spaces sends evenly.
+         */
+        public TokenBucketRateLimitPolicyBuilder withBurst(int burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * Limit per key, see {@link RateLimitKeys}. One global limit by default.
+         */
+        public TokenBucketRateLimitPolicyBuilder withKeys(Function<EmailNotification, Collection<?>> keys) {
+            this.keys = keys;
+            return this;
+        }
+
+        public TokenBucketRateLimitPolicyBuilder withMaxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public TokenBucketRateLimitPolicy build() {
+
+            if (permits <= 0 || period == null || period.isNegative() || period.isZero()) {
+                throw new IllegalArgumentException("rate must be positive");
+            }
+            if (burst <= 0 || maxKeys <= 0) {
+                throw new IllegalArgumentException("burst and maxKeys must be positive");
+            }
+            if (keys == null) {
+                throw new IllegalArgumentException("keys cannot be null");
+            }
+
+            return new TokenBucketRateLimitPolicy(permits, period, burst, keys, maxKeys);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package org.emailclient.queues;
+
+import jakarta.mail.Address;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import org.emailclient.AttachmentSource;
+import org.emailclient.EmailAttachment;
+import org.emailclient.EmailNotification;
+import org.emailclient.INotificationSender;
+import org.emailclient.SendResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Merges notifications with the same content, added for the same sender and lane within {@code window}, into one
+ * notification sent to all of their recipients.
+ * <p>
+ * Only the fan-out shape is merged, notifications to a single To recipient without Cc or Bcc, see
+ * {@link #isFanOut}. Content is sender, subject, body, html flag, images and attachments. Attachments match when they have the same
+ * name and type and the same bytes, file or stream supplier. The merged notification puts every recipient in Bcc so
+ * no recipient learns about another one, it has no To or Cc header. Recipients are deduplicated ignoring case. A
+ * group that reaches {@code maxRecipients} is released right away, a group of one is released unchanged.
+ * <p>
+ * Every notification is added with the size it reserved in the queue bounds, the released notification takes the
+ * place of the reservations of its group.
+ * <p>
+ * When the server rejects some recipients of a merged notification only the notifications addressed to them fail.
+ * The others are completed when the message reached them, or merged and released again without the rejected
+ * recipients when it was not sent at all.
+ */
+final class Coalescer {
+
+    private final long windowNanos;
+    private final int maxRecipients;
+    private final TimingWheel timingWheel;
+    private final Target target;
+
+    private final Map<ContentKey, Group> groups = new HashMap<>();
+
+    Coalescer(long windowNanos, int maxRecipients, TimingWheel timingWheel, Target target) {
+        this.windowNanos = windowNanos;
+        this.maxRecipients = maxRecipients;
+        this.timingWheel = timingWheel;
+        this.target = target;
+    }
+
+    /**
+     * True for a notification to a single To recipient without Cc or Bcc. Merging others would hide recipients
+     * that are meant to see each other.
+     */
+    static boolean isFanOut(final EmailNotification notification) {
+        return notification.getToRecipients().size() == 1
+                && notification.getCcRecipients().isEmpty()
+                && notification.getBccRecipients().isEmpty();
+    }
+
+    void add(
+            final int lane,
+            final INotificationSender<EmailNotification> emailSender,
+            final EmailNotification notification,
+            final Consumer<SendResult<EmailNotification>> onComplete,
+            final long reservedSize
+    ) {
+
+        final ContentKey key = new ContentKey(lane, emailSender, notification);
+
+        final Group group;
+        boolean opened = false;
+        boolean full = false;
+
+        synchronized (groups) {
+
+            Group existing = groups.get(key);
+
+            if (existing == null) {
+                existing = new Group(lane, emailSender);
+                groups.put(key, existing);
+                opened = true;
+            }
+
+            existing.add(notification, onComplete, reservedSize);
+
+            if (existing.recipients.size() >= maxRecipients) {
+                groups.remove(key);
+                full = true;
+            }
+
+            group = existing;
+        }
+
+        if (full) {
+            release(group);
+            return;
+        }
+
+        if (opened && !timingWheel.schedule(() -> expire(key, group), windowNanos)) {
+            expire(key, group);
+        }
+    }
+
+    private void expire(final ContentKey key, final Group group) {
+
+        synchronized (groups) {
+            //already released because it was full
+            if (!groups.remove(key, group)) {
+                return;
+            }
+        }
+
+        release(group);
+    }
+
+    private void release(final Group group) {
+
+        if (group.members.size() == 1) {
+            final Member member = group.members.get(0);
+            target.add(group.lane, group.emailSender, member.notification(), member.onComplete(), group.createdAt, group.reservedItems, group.reservedBytes);
+            return;
+        }
+
+        final EmailNotification first = group.members.get(0).notification();
+        final EmailNotification merged = new EmailNotification(
+                first.getFromEmail(),
+                first.getSubject(),
+                first.getBody(),
+                first.isHtml(),
+                first.getAttachments(),
+                List.of(),
+                null,
+                List.copyOf(group.recipients.values()),
+                first.getImages()
+        );
+
+        target.add(group.lane, group.emailSender, merged, new Fanout(group), group.createdAt, group.reservedItems, group.reservedBytes);
+
+        target.onCoalesced(group.members.size() - 1);
+    }
+
+    /**
+     * True when {@code error} of a merged notification is a rejection of some of its recipients. Retrying it would
+     * send to every member again, the coalescer fails only the members of the rejected recipients instead.
+     */
+    static boolean rejectsRecipients(final Consumer<SendResult<EmailNotification>> onComplete, final Throwable error) {
+        return onComplete instanceof Fanout && rejection(error) != null;
+    }
+
+    private static SendFailedException rejection(final Throwable error) {
+
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SendFailedException failed
+                    && failed.getInvalidAddresses() != null
+                    && failed.getInvalidAddresses().length > 0) {
+                return failed;
+            }
+        }
+
+        return null;
+    }
+
+    private static Set<String> addresses(final Address[] addresses) {
+
+        final Set<String> normalized = new HashSet<>();
+
+        if (addresses != null) {
+            for (Address address : addresses) {
+                normalized.add(address instanceof InternetAddress internet
+                        ? internet.getAddress().toLowerCase(Locale.ROOT)
+                        : address.toString().toLowerCase(Locale.ROOT));
+            }
+        }
+
+        return normalized;
+    }
+
+    /**
+     * The bare addresses of every recipient, as the server reports them.
+     */
+    private static List<String> recipients(final EmailNotification notification) {
+
+        final List<String> recipients = new ArrayList<>();
+
+        for (Collection<String> addresses : List.of(
+                notification.getToRecipients(),
+                notification.getCcRecipients(),
+                notification.getBccRecipients()
+        )) {
+            for (String address : addresses) {
+                try {
+                    recipients.add(new InternetAddress(address).getAddress().toLowerCase(Locale.ROOT));
+                } catch (AddressException e) {
+                    recipients.add(address.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+
+        return recipients;
+    }
+
+    /**
+     * Completes the members of a merged notification with its result.
+     */
+    private final class Fanout implements Consumer<SendResult<EmailNotification>> {
+
+        private final Group group;
+
+        Fanout(Group group) {
+            this.group = group;
+        }
+
+        @Override
+        public void accept(final SendResult<EmailNotification> result) {
+
+            final SendFailedException rejection = result.success() ? null : rejection(result.error());
+
+            if (rejection == null || !split(result, rejection)) {
+                for (Member member : group.members) {
+                    complete(member, result, result.success());
+                }
+            }
+        }
+
+        /**
+         * @return false when no member has a rejected recipient, the result then applies to all of them
+         */
+        private boolean split(final SendResult<EmailNotification> result, final SendFailedException rejection) {
+
+            final Set<String> invalid = addresses(rejection.getInvalidAddresses());
+            final Set<String> sent = addresses(rejection.getValidSentAddresses());
+
+            final List<Member> rejected = new ArrayList<>();
+            final List<Member> delivered = new ArrayList<>();
+            final List<Member> unsent = new ArrayList<>();
+
+            for (Member member : group.members) {
+
+                final List<String> recipients = recipients(member.notification());
+
+                if (recipients.stream().anyMatch(invalid::contains)) {
+                    rejected.add(member);
+                } else if (sent.containsAll(recipients)) {
+                    delivered.add(member);
+                } else {
+                    unsent.add(member);
+                }
+            }
+
+            if (rejected.isEmpty()) {
+                return false;
+            }
+
+            rejected.forEach(member -> complete(member, result, false));
+            delivered.forEach(member -> complete(member, result, true));
+
+            //the reservations went with the merged notification, the new group is admitted like a retry
+            if (!unsent.isEmpty()) {
+                final Group retry = new Group(group.lane, group.emailSender);
+                unsent.forEach(retry::addMember);
+                release(retry);
+            }
+
+            return true;
+        }
+
+        private void complete(final Member member, final SendResult<EmailNotification> result, final boolean success) {
+            if (member.onComplete() != null) {
+                member.onComplete().accept(new SendResult<>(
+                        member.notification(),
+                        success,
+                        success ? null : result.error(),
+                        result.queueNanos(),
+                        result.sendNanos()
+                ));
+            }
+        }
+    }
+
+    /**
+     * Where released notifications go, {@code enqueuedAt} is when the first one of the group was added.
+     * {@code reservedItems} and {@code reservedBytes} are what the members of the group reserved.
+     */
+    interface Target {
+
+        void add(
+                int lane,
+                INotificationSender<EmailNotification> emailSender,
+                EmailNotification notification,
+                Consumer<SendResult<EmailNotification>> onComplete,
+                long enqueuedAt,
+                int reservedItems,
+                long reservedBytes
+        );
+
+        void onCoalesced(int notifications);
+    }
+
+    private record Member(EmailNotification notification, Consumer<SendResult<EmailNotification>> onComplete) {
+    }
+
+    private static final class Group {
+
+        final int lane;
+        final INotificationSender<EmailNotification> emailSender;
+        final long createdAt = System.nanoTime();
+        final List<Member> members = new ArrayList<>();
+        final Map<String, String> recipients = new LinkedHashMap<>();
+        int reservedItems;
+        long reservedBytes;
+
+        Group(int lane, INotificationSender<EmailNotification> emailSender) {
+            this.lane = lane;
+            this.emailSender = emailSender;
+        }
+
+        void add(
+                final EmailNotification notification,
+                final Consumer<SendResult<EmailNotification>> onComplete,
+                final long reservedSize
+        ) {
+            addMember(new Member(notification, onComplete));
+            reservedItems++;
+            reservedBytes += reservedSize;
+        }
+
+        void addMember(final Member member) {
+            members.add(member);
+            addRecipients(member.notification().getToRecipients());
+            addRecipients(member.notification().getCcRecipients());
+            addRecipients(member.notification().getBccRecipients());
+        }
+
+        private void addRecipients(final Collection<String> addresses) {
+
+            if (addresses == null) {
+                return;
+            }
+
+            for (String address : addresses) {
+                recipients.putIfAbsent(address.trim().toLowerCase(Locale.ROOT), address);
+            }
+        }
+    }
+
+    /**
+     * Hashes only the cheap fields, attachment bytes are compared on a hash match.
+     */
+    private static final class ContentKey {
+
+        final int lane;
+        final INotificationSender<EmailNotification> emailSender;
+        final EmailNotification notification;
+        final int hash;
+
+        ContentKey(int lane, INotificationSender<EmailNotification> emailSender, EmailNotification notification) {
+            this.lane = lane;
+            this.emailSender = emailSender;
+            this.notification = notification;
+            this.hash = Objects.hash(
+                    lane,
+                    System.identityHashCode(emailSender),
+                    notification.getFromEmail(),
+                    notification.getSubject(),
+                    notification.getBody(),
+                    notification.isHtml(),
+                    attachmentCount(notification)
+            );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) return true;
+            if (!(o instanceof ContentKey that)) return false;
+
+            final EmailNotification a = notification;
+            final EmailNotification b = that.notification;
+
+            return hash == that.hash
+                    && lane == that.lane
+                    && emailSender == that.emailSender
+                    && a.isHtml() == b.isHtml()
+                    && Objects.equals(a.getFromEmail(), b.getFromEmail())
+                    && Objects.equals(a.getSubject(), b.getSubject())
+                    && Objects.equals(a.getBody(), b.getBody())
+                    && Objects.equals(a.getImages(), b.getImages())
+                    && sameAttachments(a.getAttachments(), b.getAttachments());
+        }
+
+        private static int attachmentCount(final EmailNotification notification) {
+            return notification.getAttachments() == null ? 0 : notification.getAttachments().size();
+        }
+
+        private static boolean sameAttachments(final Collection<EmailAttachment> a, final Collection<EmailAttachment> b) {
+
+            if (a == b) return true;
+            if (a == null || b == null) return a == null ? b.isEmpty() : a.isEmpty();
+            if (a.size() != b.size()) return false;
+
+            final Iterator<EmailAttachment> other = b.iterator();
+
+            for (EmailAttachment attachment : a) {
+                if (!sameAttachment(attachment, other.next())) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static boolean sameAttachment(final EmailAttachment a, final EmailAttachment b) {
+
+            if (a == b) return true;
+
+            if (!Objects.equals(a.fileName(), b.fileName()) || !Objects.equals(a.mimeType(), b.mimeType())) {
+                return false;
+            }
+
+            if (a.source() instanceof AttachmentSource.InMemory x && b.source() instanceof AttachmentSource.InMemory y) {
+                return x.content() == y.content() || Arrays.equals(x.content(), y.content());
+            }
+
+            //paths by value, stream suppliers by identity
+            return Objects.equals(a.source(), b.source());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.emailclient.queues;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * FIFO of encoded payloads kept in a temporary file, only a small reference per entry stays on the heap.
+ * The file is truncated whenever the buffer runs empty, and compacted once at least half of it and more than
+ * {@code compactThreshold} bytes were already read, so it stays bounded under sustained overflow that never drains.
+ * Not thread safe, callers synchronize.
+ *
+ * @param <A> per entry data that stays in memory
+ */
+final class DiskSpillBuffer<A> implements AutoCloseable {
+
+    private static final long COMPACT_THRESHOLD = 1 << 20;
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long compactThreshold;
+    private final ArrayDeque<Entry<A>> entries = new ArrayDeque<>();
+
+    private long writePosition;
+    //entry offsets are logical, the file starts at this logical offset after compactions
+    private long fileStart;
+    private long spilledBytes;
+
+    DiskSpillBuffer(final Path directory) throws IOException {
+        this(directory, COMPACT_THRESHOLD);
+    }
+
+    DiskSpillBuffer(final Path directory, final long compactThreshold) throws IOException {
+
+        this.compactThreshold = compactThreshold;
+
+        Files.createDirectories(directory);
+
+        final Path file = Files.createTempFile(directory, "email-queue-", ".spill");
+
+        this.channel = FileChannel.open(
+                file,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE
+        );
+    }
+
+    void push(final A attachment, final byte[] payload, final long size) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long position = writePosition;
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        entries.addLast(new Entry<>(attachment, fileStart + writePosition, payload.length, size));
+        writePosition = position;
+        spilledBytes += size;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long spilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Estimated in memory size of the oldest entry, -1 when empty.
+     */
+    long peekSize() {
+        final Entry<A> head = entries.peekFirst();
+        return head == null ? -1 : head.size();
+    }
+
+    A peekAttachment() {
+        final Entry<A> head = entries.peekFirst();
+        return head == null ? null : head.attachment();
+    }
+
+    /**
+     * Removes the oldest entry and returns its payload.
+     */
+    byte[] poll() throws IOException {
+
+        final Entry<A> head = entries.pollFirst();
+        if (head == null) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(head.length());
+        long position = head.offset() - fileStart;
+
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Spill file truncated");
+            }
+            position += read;
+        }
+
+        spilledBytes -= head.size();
+
+        if (entries.isEmpty()) {
+            channel.truncate(0);
+            fileStart += writePosition;
+            writePosition = 0;
+        } else {
+            compactIfMostlyRead();
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Size of the spill file in bytes.
+     */
+    long fileSize() {
+        return writePosition;
+    }
+
+    /**
+     * Moves the unread entries to the start of the file once the read part is the larger one, the copy then never
+     * overlaps the data it reads.
+     */
+    private void compactIfMostlyRead() throws IOException {
+
+        final long readBytes = entries.peekFirst().offset() - fileStart;
+
+        if (readBytes < compactThreshold || readBytes < writePosition - readBytes) {
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER, writePosition - readBytes));
+        long from = readBytes;
+        long to = 0;
+
+        while (from < writePosition) {
+
+            buffer.clear().limit((int) Math.min(buffer.capacity(), writePosition - from));
+
+            final int read = channel.read(buffer, from);
+            if (read < 0) {
+                throw new IOException("Spill file truncated");
+            }
+            from += read;
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                to += channel.write(buffer, to);
+            }
+        }
+
+        channel.truncate(to);
+        fileStart += readBytes;
+        writePosition = to;
+    }
+
+    @Override
+    public void close() throws IOException {
+        entries.clear();
+        channel.close();
+    }
+
+    private record Entry<A>(A attachment, long offset, int length, long size) {
+    }
+}
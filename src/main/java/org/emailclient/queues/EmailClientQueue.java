@@ -1,24 +1,102 @@
 package org.emailclient.queues;
 
+import org.emailclient.AddressCache;
 import org.emailclient.EmailNotification;
+import org.emailclient.EmailNotificationException;
 import org.emailclient.INotificationSender;
+import org.emailclient.IRenderingSender;
+import org.emailclient.RecipientsRejectedException;
+import org.emailclient.RejectedRecipient;
+import org.emailclient.RenderedMessage;
+import org.emailclient.SendResult;
+import org.emailclient.metrics.IMetricsRecorder;
+import org.emailclient.metrics.Metrics;
+import org.emailclient.policies.IRateLimitPolicy;
+import org.emailclient.policies.RetryPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
+/**
+ * Drains queued notifications with {@code workers} consumer threads.
+ * <p>
+ * When an ordering key is set, items with the same key are delivered one at a time in the order they were added,
+ * while items with different keys are still delivered in parallel.
+ * <p>
+ * With {@link QueueLane}s the items are split into priority lanes that the workers serve by weight, see
+ * {@link EmailClientQueueBuilder#withLanes}. Without lanes the queue is a single FIFO.
+ */
 public class EmailClientQueue implements IEmailClientQueue<EmailNotification> {
 
     private final static Logger sLogger = LoggerFactory.getLogger(EmailClientQueue.class);
 
+    private static final AtomicInteger QUEUES = new AtomicInteger();
+
+    private final String name;
     private final BlockingQueue<QueueItem> queue;
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final ExecutorService executorService;
+
+    private final int workers;
+    private final int senderConcurrency;
+    private final Function<EmailNotification, Object> orderingKey;
+    private final int batchSize;
+    private final List<QueueLane> lanes;
+    private final LaneScheduler laneScheduler;
+    private final Function<EmailNotification, String> laneSelector;
+    private final QueueBounds[] bounds;
+    private final RetryPolicy retryPolicy;
+    private final TimingWheel timingWheel;
+    private final Coalescer coalescer;
+    private final IRateLimitPolicy<EmailNotification> rateLimit;
+    private final AddressCache addressCache;
+    private final ForkJoinPool renderPool;
+    private final IMetricsRecorder.Timer queueLatency = Metrics.recorder().timer(Metrics.QUEUE_LATENCY);
+    private final IMetricsRecorder.Timer[] laneLatency;
+    private final IMetricsRecorder.Counter coalesced = Metrics.recorder().counter(Metrics.COALESCED);
+    private final IMetricsRecorder.Counter recipientsRejected = Metrics.recorder().counter(Metrics.RECIPIENTS_REJECTED);
+    private final IMetricsRecorder gaugeRecorder = Metrics.recorder();
+    //recorders hold gauges weakly, the queue keeps them until shutdown
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    private final Map<INotificationSender<EmailNotification>, Semaphore> senderPermits = new ConcurrentHashMap<>();
+    private final Map<Object, Deque<QueueItem>> keysInFlight = new HashMap<>();
+    //head items of ordering keys waiting on the timing wheel, guarded by keysInFlight
+    private final Map<Object, ParkedHead> parkedHeads = new HashMap<>();
+    private final ReentrantLock takeLock = new ReentrantLock();
 
-    private final AtomicBoolean isRunning = new AtomicBoolean(true);
+    private final ReentrantLock pauseLock = new ReentrantLock();
+    private final Condition resumed = pauseLock.newCondition();
+    private volatile boolean isRunning = true;
 
     public static EmailClientQueue create() {
 
@@ -30,87 +108,1267 @@ public class EmailClientQueue implements IEmailClientQueue<EmailNotification> {
     public EmailClientQueue(
             BlockingQueue<QueueItem> queue
     ) {
-        this.queue = queue;
+        this(builder().withQueue(queue));
+    }
+
+    private EmailClientQueue(
+            EmailClientQueueBuilder builder
+    ) {
+        this.name = builder.name == null ? "queue-" + QUEUES.incrementAndGet() : builder.name;
+        this.workers = builder.workers;
+        this.senderConcurrency = builder.senderConcurrency;
+        this.orderingKey = builder.orderingKey;
+        this.batchSize = builder.batchSize;
+        this.retryPolicy = builder.retryPolicy;
+        this.timingWheel = new TimingWheel(builder.timerTick.toNanos(), r -> new Thread(r, "email-queue-timer"));
+        this.coalescer = builder.coalescingWindow == null ? null : new Coalescer(
+                builder.coalescingWindow.toNanos(),
+                builder.coalescingMaxRecipients,
+                timingWheel,
+                new Coalescer.Target() {
+                    @Override
+                    public void add(
+                            int lane,
+                            INotificationSender<EmailNotification> emailSender,
+                            EmailNotification notification,
+                            Consumer<SendResult<EmailNotification>> onComplete,
+                            long enqueuedAt,
+                            int reservedItems,
+                            long reservedBytes
+                    ) {
+                        addReleased(lane, emailSender, notification, onComplete, enqueuedAt, reservedItems, reservedBytes);
+                    }
+
+                    @Override
+                    public void onCoalesced(int notifications) {
+                        coalesced.increment(notifications);
+                    }
+                }
+        );
+        this.rateLimit = builder.rateLimit;
+        this.addressCache = builder.addressCache;
+        this.renderPool = builder.renderParallelism == 0 ? null : new ForkJoinPool(
+                builder.renderParallelism,
+                pool -> {
+                    final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("email-queue-render-" + thread.getPoolIndex());
+                    return thread;
+                },
+                null,
+                false
+        );
+        this.lanes = builder.lanes;
+        this.laneSelector = builder.laneSelector;
+
+        if (lanes.isEmpty()) {
+
+            this.laneScheduler = null;
+            this.queue = builder.queue == null ? new LinkedBlockingQueue<>() : builder.queue;
+            this.laneLatency = null;
+            this.bounds = new QueueBounds[]{
+                    new QueueBounds(
+                            queue,
+                            builder.maxItems,
+                            builder.maxBytes,
+                            builder.overflow,
+                            builder.blockTimeout,
+                            builder.spillDirectory
+                    )
+            };
+
+        } else {
+
+            this.laneScheduler = new LaneScheduler(lanes);
+            this.queue = laneScheduler.shared();
+            this.laneLatency = new IMetricsRecorder.Timer[lanes.size()];
+            this.bounds = new QueueBounds[lanes.size()];
+
+            for (int i = 0; i < lanes.size(); i++) {
+
+                final QueueLane lane = lanes.get(i);
+                final QueueBounds laneBounds = new QueueBounds(
+                        laneScheduler.lane(i),
+                        lane.getMaxItems(),
+                        lane.getMaxBytes(),
+                        lane.getOverflow(),
+                        builder.blockTimeout,
+                        builder.spillDirectory
+                );
+
+                bounds[i] = laneBounds;
+                laneLatency[i] = Metrics.recorder().timer(Metrics.QUEUE_LATENCY + "." + lane.getName());
+                registerGauge(Metrics.QUEUE_DEPTH + "." + name + "." + lane.getName(), () -> depth(laneBounds.getMetrics()));
+            }
+        }
+
+        this.executorService = Executors.newFixedThreadPool(
+                workers,
+                builder.threadFactory == null ? defaultThreadFactory() : builder.threadFactory
+        );
+
+        registerGauge(Metrics.QUEUE_DEPTH + "." + name, () -> depth(getMetrics()));
+    }
 
+    private void registerGauge(final String gaugeName, final LongSupplier value) {
+        gauges.put(gaugeName, value);
+        gaugeRecorder.gauge(gaugeName, value);
     }
 
+    /**
+     * Name of the queue in its metrics.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @throws IllegalStateException when the queue is bounded and the overflow strategy rejects the notification
+     */
     @Override
     public void add(
             INotificationSender<EmailNotification> emailSender, EmailNotification notification
     ) {
+        add(emailSender, notification, null);
+    }
 
-        this.queue.add(
-                new QueueItem(
-                        emailSender,
-                        notification
-                )
-        );
+    /**
+     * Adds the notification and returns a future the worker completes once it was sent, failed or was dropped.
+     * The future always completes normally, a rejected notification completes it with a failed result. Dependent
+     * stages without an executor run on the worker thread, use the async variants for anything slow.
+     */
+    @Override
+    public CompletableFuture<SendResult<EmailNotification>> addAsync(
+            INotificationSender<EmailNotification> emailSender, EmailNotification notification
+    ) {
+
+        final CompletableFuture<SendResult<EmailNotification>> future = new CompletableFuture<>();
+
+        try {
+            add(emailSender, notification, future::complete);
+        } catch (RuntimeException ex) {
+            future.complete(SendResult.failure(notification, ex));
+        }
+
+        return future;
     }
 
+    /**
+     * The notification waits on the queue's timing wheel and is added once {@code at} has passed, up to one timer
+     * tick late. Waiting items use no worker and do not count against the queue bounds, a due item is admitted even
+     * when the queue is full. Items still waiting when the queue shuts down complete with a failed result.
+     */
     @Override
-    public void start() {
+    public CompletableFuture<SendResult<EmailNotification>> addAt(
+            INotificationSender<EmailNotification> emailSender, EmailNotification notification, Instant at
+    ) {
+        return addAfter(emailSender, notification, Duration.between(Instant.now(), at));
+    }
 
-        executorService.submit(
-                () -> {
-                    while (!Thread.currentThread().isInterrupted()) {
+    /**
+     * @see #addAt
+     */
+    @Override
+    public CompletableFuture<SendResult<EmailNotification>> addAfter(
+            INotificationSender<EmailNotification> emailSender, EmailNotification notification, Duration delay
+    ) {
 
-                        if (!isRunning.get()) {
-                            continue;
-                        }
-                        try {
+        if (delay.isNegative() || delay.isZero()) {
+            return addAsync(emailSender, notification);
+        }
 
-                            final QueueItem item = queue.take();
+        final CompletableFuture<SendResult<EmailNotification>> future = new CompletableFuture<>();
 
-                            item.getEmailSender().send(item.getNotification());
+        try {
 
-                        } catch (InterruptedException e) {
-                            sLogger.error("Queue interrupted", e);
-                            break;
-                        } catch (Throwable ex) {
-                            sLogger.error("Exception in Email queue: ", ex);
-                        }
+            validateAddresses(notification);
 
-                    }
-                }
+            final int lane = laneOf(notification);
+            final Consumer<SendResult<EmailNotification>> onComplete = future::complete;
+
+            if (!timingWheel.schedule(() -> addDue(lane, emailSender, notification, onComplete), delay.toNanos())) {
+                throw new IllegalStateException("Queue shut down");
+            }
+
+        } catch (RuntimeException ex) {
+            future.complete(SendResult.failure(notification, ex));
+        }
+
+        return future;
+    }
+
+    /**
+     * Notifications waiting for their {@link #addAt} time.
+     */
+    public long getScheduledCount() {
+        return timingWheel.size();
+    }
+
+    private void addDue(
+            int lane,
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Consumer<SendResult<EmailNotification>> onComplete
+    ) {
+
+        if (executorService.isShutdown()) {
+            onComplete.accept(SendResult.failure(notification, new IllegalStateException("Queue shut down before the notification was due")));
+            return;
+        }
+
+        if (coalescer != null && Coalescer.isFanOut(notification)) {
+            final long size = EmailNotificationCodec.estimateSize(notification);
+            bounds[lane].reserveAdmitted(size);
+            coalescer.add(lane, emailSender, notification, onComplete, size);
+            return;
+        }
+
+        final QueueItem item = newItem(lane, emailSender, notification, onComplete);
+        bounds[lane].requeue(item);
+        startRender(item);
+    }
+
+    /**
+     * Queues a notification released by the coalescer in place of the reservations of its members, which were
+     * admitted against the bounds when they were added.
+     */
+    private void addReleased(
+            int lane,
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Consumer<SendResult<EmailNotification>> onComplete,
+            long enqueuedAt,
+            int reservedItems,
+            long reservedBytes
+    ) {
+
+        if (executorService.isShutdown()) {
+            bounds[lane].cancelReserved(reservedItems, reservedBytes);
+            if (onComplete != null) {
+                onComplete.accept(SendResult.failure(notification, new IllegalStateException("Queue shut down before the notification was sent")));
+            }
+            return;
+        }
+
+        //recipients were validated when the members were added, these are cache hits
+        notification.validateAddresses(addressCache);
+
+        final QueueItem item = new QueueItem(
+                emailSender,
+                notification,
+                null,
+                EmailNotificationCodec.estimateSize(notification),
+                lane,
+                onComplete,
+                enqueuedAt,
+                preRender(emailSender, notification)
         );
+
+        bounds[lane].releaseReserved(item, reservedItems, reservedBytes);
+        startRender(item);
+    }
+
+    /**
+     * Adds the notification to the named lane instead of the one the lane selector picks.
+     *
+     * @throws IllegalArgumentException when the queue has no lane of that name
+     */
+    public void add(
+            String lane, INotificationSender<EmailNotification> emailSender, EmailNotification notification
+    ) {
+        add(laneIndex(lane), emailSender, notification, null);
+    }
+
+    /**
+     * {@link #addAsync(INotificationSender, EmailNotification)} to the named lane.
+     */
+    public CompletableFuture<SendResult<EmailNotification>> addAsync(
+            String lane, INotificationSender<EmailNotification> emailSender, EmailNotification notification
+    ) {
+
+        final CompletableFuture<SendResult<EmailNotification>> future = new CompletableFuture<>();
+
+        try {
+            add(laneIndex(lane), emailSender, notification, future::complete);
+        } catch (RuntimeException ex) {
+            future.complete(SendResult.failure(notification, ex));
+        }
+
+        return future;
+    }
+
+    /**
+     * @param onComplete called by the worker once the notification was sent, failed or was dropped
+     */
+    void add(
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Consumer<SendResult<EmailNotification>> onComplete
+    ) {
+        add(laneOf(notification), emailSender, notification, onComplete);
+    }
+
+    private void add(
+            int lane,
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Consumer<SendResult<EmailNotification>> onComplete
+    ) {
+
+        validateAddresses(notification);
+
+        if (coalescer != null && Coalescer.isFanOut(notification)) {
+            final long size = EmailNotificationCodec.estimateSize(notification);
+            //a notification that would spill is sent on its own
+            if (bounds[lane].reserve(notification, size)) {
+                coalescer.add(lane, emailSender, notification, onComplete, size);
+                return;
+            }
+        }
+
+        final QueueItem item = newItem(lane, emailSender, notification, onComplete);
+
+        //a spilled item is read back without its rendering and sent with send, rendering it now would be wasted
+        if (bounds[lane].offer(item)) {
+            startRender(item);
+        }
+    }
+
+    /**
+     * Parses the addresses before the notification is queued, workers only use the parsed ones.
+     *
+     * @throws RecipientsRejectedException when nothing could be sent
+     */
+    private void validateAddresses(final EmailNotification notification) {
+
+        final List<RejectedRecipient> rejected = notification.validateAddresses(addressCache);
+
+        if (!rejected.isEmpty()) {
+            recipientsRejected.increment(rejected.size());
+            sLogger.debug("Rejected {} recipients of {}", rejected.size(), notification);
+        }
+    }
+
+    private QueueItem newItem(
+            int lane,
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Consumer<SendResult<EmailNotification>> onComplete
+    ) {
+
+        return new QueueItem(
+                emailSender,
+                notification,
+                orderingKey == null ? null : orderingKey.apply(notification),
+                EmailNotificationCodec.estimateSize(notification),
+                lane,
+                onComplete,
+                System.nanoTime(),
+                preRender(emailSender, notification)
+        );
+    }
+
+    private PreRender preRender(
+            final INotificationSender<EmailNotification> emailSender, final EmailNotification notification
+    ) {
+        return renderPool != null && emailSender instanceof IRenderingSender<EmailNotification> renderingSender
+                ? new PreRender(renderingSender, notification)
+                : null;
+    }
+
+    /**
+     * Renders the queued item on the render pool, so it is ready when a worker takes it. The rendered message
+     * counts against the lane's byte bound while the item waits.
+     */
+    private void startRender(final QueueItem item) {
+
+        final PreRender render = item.getRender();
+
+        if (render == null) {
+            return;
+        }
+
+        final QueueBounds laneBounds = bounds[item.getLane()];
+
+        try {
+            renderPool.execute(() -> {
+                render.run();
+                laneBounds.onRendered(render);
+            });
+        } catch (RejectedExecutionException ex) {
+            //shut down, the worker renders it
+        }
+    }
+
+    /**
+     * Totals over all lanes.
+     */
+    public QueueMetrics getMetrics() {
+
+        if (bounds.length == 1) {
+            return bounds[0].getMetrics();
+        }
+
+        int queuedItems = 0;
+        long queuedBytes = 0;
+        int spilledItems = 0;
+        long spilledBytes = 0;
+        long dropped = 0;
+        long rejected = 0;
+
+        for (QueueBounds laneBounds : bounds) {
+            final QueueMetrics metrics = laneBounds.getMetrics();
+            queuedItems += metrics.queuedItems();
+            queuedBytes += metrics.queuedBytes();
+            spilledItems += metrics.spilledItems();
+            spilledBytes += metrics.spilledBytes();
+            dropped += metrics.dropped();
+            rejected += metrics.rejected();
+        }
+
+        return new QueueMetrics(queuedItems, queuedBytes, spilledItems, spilledBytes, dropped, rejected);
+    }
+
+    /**
+     * @throws IllegalArgumentException when the queue has no lane of that name
+     */
+    public QueueMetrics getMetrics(String lane) {
+        return bounds[laneIndex(lane)].getMetrics();
+    }
+
+    private int laneOf(final EmailNotification notification) {
+        return laneSelector == null ? 0 : laneIndex(laneSelector.apply(notification));
+    }
+
+    private int laneIndex(final String name) {
+
+        for (int i = 0; i < lanes.size(); i++) {
+            if (lanes.get(i).getName().equals(name)) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown lane " + name);
+    }
+
+    private static long depth(final QueueMetrics metrics) {
+        return metrics.queuedItems() + metrics.spilledItems();
+    }
+
+    @Override
+    public void start() {
+
+        int shared = workers;
+
+        for (int i = 0; i < lanes.size(); i++) {
+
+            final BlockingQueue<QueueItem> lane = laneScheduler.lane(i);
+
+            for (int j = 0; j < lanes.get(i).getReservedWorkers(); j++) {
+                executorService.submit(() -> work(lane));
+                shared--;
+            }
+        }
+
+        for (int i = 0; i < shared; i++) {
+            executorService.submit(() -> work(queue));
+        }
     }
 
     @Override
     public void resume() {
-        isRunning.set(true);
+
+        pauseLock.lock();
+        try {
+            isRunning = true;
+            resumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
     }
 
+    /**
+     * Workers finish the send they are in and then park until {@link #resume()}, a paused queue uses no CPU.
+     */
     @Override
     public void pause() {
-        isRunning.set(false);
+        isRunning = false;
     }
 
     @Override
     public void shutdown() {
         sLogger.debug("Shutting down....");
         executorService.shutdown();
+        //fails whatever is still waiting, the workers are shut down
+        timingWheel.close();
+        if (renderPool != null) {
+            renderPool.shutdown();
+        }
+        for (QueueBounds laneBounds : bounds) {
+            laneBounds.close();
+        }
+        gauges.keySet().forEach(gaugeRecorder::removeGauge);
+    }
+
+    /**
+     * @param source the shared queue or the lane of a reserved worker
+     */
+    private void work(final BlockingQueue<QueueItem> source) {
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            try {
+
+                awaitRunning();
+
+                if (batchSize > 1) {
+                    deliverBatch(source);
+                    continue;
+                }
+
+                final QueueItem item = take(source);
+
+                if (item == null) {
+                    continue;
+                }
+
+                //the queue may have been paused while this worker was blocked on take
+                awaitRunning();
+
+                deliverInOrder(item);
+
+            } catch (InterruptedException e) {
+                sLogger.error("Queue interrupted", e);
+                break;
+            } catch (Throwable ex) {
+                sLogger.error("Exception in Email queue: ", ex);
+            }
+
+        }
+    }
+
+    private void awaitRunning() throws InterruptedException {
+
+        if (isRunning) {
+            return;
+        }
+
+        pauseLock.lockInterruptibly();
+        try {
+            while (!isRunning) {
+                resumed.await();
+            }
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next item. For ordered queues the item is also claimed under the same lock, so two workers cannot
+     * register the same key out of queue order. Returns null when another worker already delivers that key.
+     */
+    private QueueItem take(final BlockingQueue<QueueItem> source) throws InterruptedException {
+
+        if (orderingKey == null) {
+            return dequeued(source.take());
+        }
+
+        takeLock.lockInterruptibly();
+        try {
+
+            final QueueItem item = dequeued(source.take());
+
+            synchronized (keysInFlight) {
+
+                final Deque<QueueItem> waiting = keysInFlight.get(item.getKey());
+                final ParkedHead parked = parkedHeads.get(item.getKey());
+
+                //a parked head is back, its key is still claimed so nothing overtook it
+                if (parked != null && parked.item == item) {
+                    parkedHeads.remove(item.getKey());
+                    if (parked.ownerGone) {
+                        return item;
+                    }
+                    //the worker that parked it has not let go of the key yet, it delivers the item next
+                    waiting.addFirst(item);
+                    return null;
+                }
+
+                //another worker is delivering this key, it will pick the item up when done
+                if (waiting != null) {
+                    waiting.addLast(item);
+                    return null;
+                }
+
+                keysInFlight.put(item.getKey(), new ArrayDeque<>());
+            }
+
+            return item;
+
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private QueueItem dequeued(final QueueItem item) {
+        bounds[item.getLane()].onDequeued(item);
+        return item;
+    }
+
+    private void deliverInOrder(final QueueItem item) throws InterruptedException {
+
+        if (orderingKey == null) {
+            deliver(item);
+            return;
+        }
+
+        final Object key = item.getKey();
+
+        QueueItem next = item;
+
+        while (next != null) {
+
+            try {
+                awaitRunning();
+                deliver(next);
+            } catch (InterruptedException e) {
+                releaseKey(key);
+                throw e;
+            } catch (Throwable ex) {
+                sLogger.error("Exception in Email queue: ", ex);
+            }
+
+            synchronized (keysInFlight) {
+
+                //parked for a retry or a rate limit, the key stays claimed until the item is back
+                final ParkedHead parked = parkedHeads.get(key);
+                if (parked != null) {
+                    parked.ownerGone = true;
+                    return;
+                }
+
+                next = keysInFlight.get(key).pollFirst();
+
+                if (next == null) {
+                    keysInFlight.remove(key);
+                }
+            }
+        }
     }
 
+    private void releaseKey(final Object key) {
+
+        final Deque<QueueItem> waiting;
 
-    private static class QueueItem {
+        synchronized (keysInFlight) {
+            waiting = keysInFlight.remove(key);
+        }
 
-        private final INotificationSender<EmailNotification> emailSender;
-        private final EmailNotification notification;
+        //hand the remaining items back so other workers can deliver them
+        if (waiting != null) {
+            waiting.forEach(item -> bounds[item.getLane()].requeue(item));
+        }
+    }
 
+    private void deliver(final QueueItem item) throws InterruptedException {
 
-        private QueueItem(INotificationSender<EmailNotification> emailSender, EmailNotification notification) {
-            this.emailSender = emailSender;
-            this.notification = notification;
+        if (deferred(item)) {
+            return;
         }
 
-        public INotificationSender<EmailNotification> getEmailSender() {
-            return emailSender;
+        final Semaphore permits = acquireSender(item.getEmailSender());
+        final long started = System.nanoTime();
+        recordQueueLatency(item, started);
+        try {
+
+            onFirstAttempt(item);
+
+            final boolean sent = item.getRender() == null
+                    ? item.getEmailSender().send(item.getNotification())
+                    : item.getRender().send();
+
+            if (sent) {
+                item.complete(SendResult.success(item.getNotification()), started);
+            } else {
+                completeOrRetry(item, SendResult.failure(item.getNotification(), null), started);
+            }
+
+        } catch (Throwable ex) {
+            final Exception error = ex instanceof Exception exception ? exception : new EmailNotificationException(ex);
+            completeOrRetry(item, SendResult.failure(item.getNotification(), error), started);
+            throw ex;
+        } finally {
+            releaseSender(permits);
         }
+    }
+
+    private void deliverBatch(final BlockingQueue<QueueItem> source) throws InterruptedException {
+
+        final List<QueueItem> batch = new ArrayList<>(batchSize);
+        batch.add(source.take());
+        source.drainTo(batch, batchSize - 1);
+        batch.forEach(this::dequeued);
+        batch.removeIf(this::deferred);
 
-        public EmailNotification getNotification() {
-            return notification;
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        //the queue may have been paused while this worker was blocked on take
+        awaitRunning();
+
+        final Map<INotificationSender<EmailNotification>, List<QueueItem>> bySender = new LinkedHashMap<>();
+        for (QueueItem item : batch) {
+            bySender.computeIfAbsent(item.getEmailSender(), sender -> new ArrayList<>()).add(item);
+        }
+
+        for (Map.Entry<INotificationSender<EmailNotification>, List<QueueItem>> entry : bySender.entrySet()) {
+
+            final List<QueueItem> items = entry.getValue();
+            final List<EmailNotification> notifications = new ArrayList<>(items.size());
+            items.forEach(item -> {
+                onFirstAttempt(item);
+                notifications.add(item.getNotification());
+            });
+
+            int completed = 0;
+
+            final Semaphore permits = acquireSender(entry.getKey());
+            final long started = System.nanoTime();
+            for (QueueItem item : items) {
+                recordQueueLatency(item, started);
+            }
+            try {
+
+                final List<SendResult<EmailNotification>> results = sendBatch(entry.getKey(), items, notifications);
+
+                for (; completed < items.size(); completed++) {
+
+                    final SendResult<EmailNotification> result = results.get(completed);
+
+                    if (result.success()) {
+                        items.get(completed).complete(result, started);
+                        continue;
+                    }
+
+                    sLogger.error("Exception in Email queue batch: ", result.error());
+                    completeOrRetry(items.get(completed), result, started);
+                }
+
+            } catch (Throwable ex) {
+                sLogger.error("Exception in Email queue: ", ex);
+
+                for (; completed < items.size(); completed++) {
+                    final QueueItem item = items.get(completed);
+                    completeOrRetry(item, SendResult.failure(item.getNotification(), new EmailNotificationException(ex)), started);
+                }
+            } finally {
+                releaseSender(permits);
+            }
         }
     }
 
+    /**
+     * Sends the rendered messages when every item was rendered ahead. Results are in the order of {@code items}.
+     */
+    private static List<SendResult<EmailNotification>> sendBatch(
+            final INotificationSender<EmailNotification> emailSender,
+            final List<QueueItem> items,
+            final List<EmailNotification> notifications
+    ) {
+
+        if (!(emailSender instanceof IRenderingSender<EmailNotification> renderingSender)
+                || items.stream().anyMatch(item -> item.getRender() == null)) {
+            return emailSender.sendBatch(notifications);
+        }
+
+        //items that failed to render are reported in place, the others are sent together
+        final List<SendResult<EmailNotification>> results = new ArrayList<>(items.size());
+        final List<EmailNotification> rendered = new ArrayList<>(items.size());
+        final List<RenderedMessage> messages = new ArrayList<>(items.size());
+
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                messages.add(items.get(i).getRender().get());
+                rendered.add(notifications.get(i));
+                results.add(null);
+            } catch (EmailNotificationException ex) {
+                results.add(SendResult.failure(notifications.get(i), ex));
+            }
+        }
+
+        final Iterator<SendResult<EmailNotification>> sent = renderingSender.sendRenderedBatch(rendered, messages).iterator();
+
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, sent.next());
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Hands a failed item to the retry scheduler when the retry policy allows it, so the worker can go on with other
+     * items while it waits. Otherwise completes it with {@code result}.
+     */
+    private void completeOrRetry(final QueueItem item, final SendResult<EmailNotification> result, final long started) {
+
+        //a merged notification is not retried for rejected recipients, the coalescer sends to the other members again
+        if (retryPolicy != null
+                && !executorService.isShutdown()
+                && !Coalescer.rejectsRecipients(item.getOnComplete(), result.error())) {
+
+            final Exception error = result.error() == null
+                    ? new EmailNotificationException("Sender returned false")
+                    : result.error();
+
+            final long now = System.nanoTime();
+            final long delay = retryPolicy.nextDelayNanos(
+                    error,
+                    item.getRetries(),
+                    item.getRetryDelay(),
+                    item.getRetries() == 0 ? 0 : now - item.getFirstFailedAt()
+            );
+
+            if (delay >= 0 && requeueLater(item.withRetry(delay, now), delay)) {
+                return;
+            }
+        }
+
+        item.complete(result, started);
+    }
+
+    private void recordQueueLatency(final QueueItem item, final long started) {
+
+        queueLatency.record(started - item.getEnqueuedAt());
+
+        if (laneLatency != null) {
+            laneLatency[item.getLane()].record(started - item.getEnqueuedAt());
+        }
+    }
+
+    private void onFirstAttempt(final QueueItem item) {
+        if (retryPolicy != null && item.getRetries() == 0) {
+            retryPolicy.onRequest();
+        }
+    }
+
+    /**
+     * Reserves a rate limit permit. An item that has to wait for it goes back into the queue once the permit is
+     * due, so the worker can go on with items for other keys.
+     */
+    private boolean deferred(final QueueItem item) {
+
+        if (rateLimit == null || item.isAdmitted()) {
+            return false;
+        }
+
+        final long wait = rateLimit.reserve(item.getNotification());
+
+        return wait > 0 && requeueLater(item.admitted(), wait);
+    }
+
+    /**
+     * Parks the item on the timing wheel, it stays counted against the queue bounds while it waits.
+     */
+    private boolean requeueLater(final QueueItem item, final long delayNanos) {
+
+        final QueueBounds laneBounds = bounds[item.getLane()];
+
+        laneBounds.hold(item);
+        park(item);
+
+        if (timingWheel.schedule(() -> requeueDue(item), delayNanos)) {
+            return true;
+        }
+
+        unpark(item);
+        laneBounds.onDequeued(item);
+        sLogger.error("Could not schedule notification, queue shut down");
+        return false;
+    }
+
+    /**
+     * Keeps the ordering key of an item going to the timing wheel claimed, so later items of the key wait for it.
+     */
+    private void park(final QueueItem item) {
+
+        if (orderingKey == null) {
+            return;
+        }
+
+        synchronized (keysInFlight) {
+            parkedHeads.put(item.getKey(), new ParkedHead(item));
+        }
+    }
+
+    /**
+     * Gives up the claim of a parked item that will not come back, the key's waiting items go back into the queue.
+     */
+    private void unpark(final QueueItem item) {
+
+        if (orderingKey == null) {
+            return;
+        }
+
+        final ParkedHead parked;
+
+        synchronized (keysInFlight) {
+            parked = parkedHeads.remove(item.getKey());
+        }
+
+        //otherwise the worker that parked it still holds the key and goes on with the waiting items
+        if (parked != null && parked.ownerGone) {
+            releaseKey(item.getKey());
+        }
+    }
+
+    private void requeueDue(final QueueItem item) {
+
+        final QueueBounds laneBounds = bounds[item.getLane()];
+
+        if (executorService.isShutdown()) {
+            unpark(item);
+            laneBounds.onDequeued(item);
+            item.complete(SendResult.failure(item.getNotification(), new IllegalStateException("Queue shut down before the notification was due")));
+            return;
+        }
+
+        laneBounds.release(item);
+    }
+
+    private Semaphore acquireSender(final INotificationSender<EmailNotification> emailSender) throws InterruptedException {
+
+        if (senderConcurrency <= 0) {
+            return null;
+        }
+
+        final Semaphore permits = senderPermits.computeIfAbsent(
+                emailSender,
+                sender -> new Semaphore(senderConcurrency)
+        );
+
+        permits.acquire();
+
+        return permits;
+    }
+
+    private static void releaseSender(final Semaphore permits) {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    private static ThreadFactory defaultThreadFactory() {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        return r -> new Thread(r, "email-queue-worker-" + count.incrementAndGet());
+    }
+
+    private static final class ParkedHead {
+
+        final QueueItem item;
+        //the worker that parked the item went on with other keys, whoever takes the item back owns the key
+        boolean ownerGone;
+
+        ParkedHead(QueueItem item) {
+            this.item = item;
+        }
+    }
+
+    public static EmailClientQueueBuilder builder() {
+        return new EmailClientQueueBuilder();
+    }
+
+    public static class EmailClientQueueBuilder {
+        private String name;
+        private BlockingQueue<QueueItem> queue;
+        private int workers = 1;
+        private int senderConcurrency;
+        private Function<EmailNotification, Object> orderingKey;
+        private ThreadFactory threadFactory;
+        private int batchSize = 1;
+        private int maxItems = Integer.MAX_VALUE;
+        private long maxBytes = Long.MAX_VALUE;
+        private OverflowStrategy overflow = OverflowStrategy.REJECT;
+        private Duration blockTimeout = Duration.ofSeconds(30);
+        private Path spillDirectory = Path.of(System.getProperty("java.io.tmpdir"), "email-queue");
+        private RetryPolicy retryPolicy;
+        private Duration timerTick = Duration.ofMillis(10);
+        private Duration coalescingWindow;
+        private int coalescingMaxRecipients;
+        private IRateLimitPolicy<EmailNotification> rateLimit;
+        private AddressCache addressCache = AddressCache.shared();
+        private int renderParallelism;
+        private List<QueueLane> lanes = List.of();
+        private Function<EmailNotification, String> laneSelector;
+
+        public EmailClientQueueBuilder withQueue(BlockingQueue<QueueItem> queue) {
+            this.queue = queue;
+            return this;
+        }
+
+        public EmailClientQueueBuilder withWorkers(int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        public EmailClientQueueBuilder withSenderConcurrency(int senderConcurrency) {
+            this.senderConcurrency = senderConcurrency;
+            return this;
+        }
+
+        /**
+         * Notifications with equal keys are delivered one at a time in the order they were queued. For per recipient
+         * order key on the recipient of single recipient notifications.
+         */
+        public EmailClientQueueBuilder withOrderingKey(Function<EmailNotification, Object> orderingKey) {
+            this.orderingKey = orderingKey;
+            return this;
+        }
+
+        /**
+         * Orders notifications with the same to list, in the same order. Cc and bcc are ignored, so this is per
+         * recipient order only when every notification has a single to recipient.
+         */
+        public EmailClientQueueBuilder withOrderingPerToList() {
+            this.orderingKey = EmailNotification::getToRecipients;
+            return this;
+        }
+
+        /**
+         * Workers drain up to {@code batchSize} items at once and hand them to
+         * {@link INotificationSender#sendBatch(java.util.Collection)}, grouped by sender.
+         */
+        public EmailClientQueueBuilder withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Failed items that the policy handles are put back into the queue after the retry delay instead of being
+         * completed, the worker does not wait for the delay. Later items of the same ordering key wait for it.
+         */
+        public EmailClientQueueBuilder withRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Items wait for a permit of the rate limit instead of being rejected. The worker reserves the permit and
+         * parks the item on the timing wheel until it is due, later items of the same ordering key wait for it.
+         */
+        public EmailClientQueueBuilder withRateLimit(IRateLimitPolicy<EmailNotification> rateLimit) {
+            this.rateLimit = rateLimit;
+            return this;
+        }
+
+        /**
+         * Merges notifications with identical content that are added for the same sender within {@code window}
+         * into one message to all of their recipients, so the MIME body is built and sent once. Only notifications
+         * to a single To recipient without Cc or Bcc are merged, others are queued unchanged so recipients that
+         * should see each other still do. Every recipient of a merged message is a Bcc recipient, none sees the
+         * others. A merged message goes out once it has {@code maxRecipients} recipients or the window has passed.
+         * <p>
+         * Waiting notifications count against the queue bounds from the moment they are added, a notification that
+         * does not fit is blocked, rejected or makes room like any other. With {@link OverflowStrategy#SPILL_TO_DISK}
+         * it is spilled and sent on its own. Cannot be combined with an ordering key.
+         */
+        public EmailClientQueueBuilder withCoalescing(Duration window, int maxRecipients) {
+            this.coalescingWindow = window;
+            this.coalescingMaxRecipients = maxRecipients;
+            return this;
+        }
+
+        /**
+         * Name of the queue in its metrics, {@code queue-1}, {@code queue-2} and so on by default.
+         */
+        public EmailClientQueueBuilder withName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Cache used to parse addresses when notifications are added, {@link AddressCache#shared()} by default.
+         * Invalid recipients are left out and reported by {@link EmailNotification#getRejectedRecipients()}, a
+         * notification without any valid recipient is rejected with a {@link RecipientsRejectedException}.
+         */
+        public EmailClientQueueBuilder withAddressCache(AddressCache addressCache) {
+            this.addressCache = addressCache;
+            return this;
+        }
+
+        /**
+         * Renders queued notifications on a separate pool of {@code parallelism} threads while they wait, so the
+         * workers only write finished messages to the connection and encoding never holds up a send. Applies to
+         * senders that are an {@link IRenderingSender}, like {@code EmailClient}, other senders build their
+         * messages in {@code send} as before.
+         * <p>
+         * Rendered messages are kept in memory until sent and count against {@link #withMaxBytes} while their item
+         * waits in the queue. Items spilled to disk are not rendered ahead, they are sent with {@code send}. A retry
+         * sends the message rendered for the first attempt. Off by default.
+         */
+        public EmailClientQueueBuilder withRenderParallelism(int parallelism) {
+            this.renderParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Resolution of the timing wheel that holds scheduled sends, retries and rate limit waits, 10ms by default.
+         * Delayed items are queued up to one tick late.
+         */
+        public EmailClientQueueBuilder withTimerTick(Duration timerTick) {
+            this.timerTick = timerTick;
+            return this;
+        }
+
+        /**
+         * Maximum number of queued items, unbounded by default.
+         */
+        public EmailClientQueueBuilder withCapacity(int maxItems) {
+            this.maxItems = maxItems;
+            return this;
+        }
+
+        /**
+         * Maximum estimated heap held by queued items, including attachment content. Unbounded by default.
+         */
+        public EmailClientQueueBuilder withMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public EmailClientQueueBuilder withOverflow(OverflowStrategy overflow) {
+            this.overflow = overflow;
+            return this;
+        }
+
+        /**
+         * How long {@link OverflowStrategy#BLOCK} waits for space before rejecting.
+         */
+        public EmailClientQueueBuilder withBlockTimeout(Duration blockTimeout) {
+            this.blockTimeout = blockTimeout;
+            return this;
+        }
+
+        /**
+         * Directory for the {@link OverflowStrategy#SPILL_TO_DISK} spill file.
+         */
+        public EmailClientQueueBuilder withSpillDirectory(Path spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        /**
+         * Splits the queue into priority lanes, each with its own bounds, the queue wide capacity, max bytes and
+         * overflow strategy are not used. Reserved workers of a lane are taken from {@link #withWorkers}, the rest
+         * serve all lanes by weight. Items go to the first lane unless a lane selector or a lane name is given.
+         */
+        public EmailClientQueueBuilder withLanes(List<QueueLane> lanes) {
+            this.lanes = lanes;
+            return this;
+        }
+
+        /**
+         * Picks the name of the lane for each added notification.
+         */
+        public EmailClientQueueBuilder withLaneSelector(Function<EmailNotification, String> laneSelector) {
+            this.laneSelector = laneSelector;
+            return this;
+        }
+
+        /**
+         * On Java 21+ pass {@code Thread.ofVirtual().factory()} to drain the queue with virtual threads.
+         */
+        public EmailClientQueueBuilder withThreadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        public EmailClientQueue build() {
+
+            if (workers <= 0) {
+                throw new IllegalArgumentException("workers must be positive");
+            }
+            if (senderConcurrency < 0) {
+                throw new IllegalArgumentException("senderConcurrency cannot be negative");
+            }
+
+            if (maxItems <= 0 || maxBytes <= 0) {
+                throw new IllegalArgumentException("capacity and maxBytes must be positive");
+            }
+            if (name != null && name.isBlank()) {
+                throw new IllegalArgumentException("name cannot be blank");
+            }
+            if (renderParallelism < 0) {
+                throw new IllegalArgumentException("renderParallelism cannot be negative");
+            }
+            if (addressCache == null) {
+                throw new IllegalArgumentException("addressCache cannot be null");
+            }
+            if (timerTick == null || timerTick.isNegative() || timerTick.isZero()) {
+                throw new IllegalArgumentException("timerTick must be positive");
+            }
+            if (overflow == null || blockTimeout == null) {
+                throw new IllegalArgumentException("overflow and blockTimeout cannot be null");
+            }
+            if (overflow == OverflowStrategy.SPILL_TO_DISK && spillDirectory == null) {
+                throw new IllegalArgumentException("spillDirectory cannot be null when spilling to disk");
+            }
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batchSize must be positive");
+            }
+            if (batchSize > 1 && orderingKey != null) {
+                throw new IllegalArgumentException("batchSize cannot be combined with an ordering key");
+            }
+
+            if (coalescingWindow != null) {
+                if (coalescingWindow.isNegative() || coalescingWindow.isZero() || coalescingMaxRecipients <= 0) {
+                    throw new IllegalArgumentException("coalescing window and maxRecipients must be positive");
+                }
+                if (orderingKey != null) {
+                    throw new IllegalArgumentException("coalescing cannot be combined with an ordering key");
+                }
+            }
+
+            if (lanes == null) {
+                throw new IllegalArgumentException("lanes cannot be null");
+            }
+            if (lanes.isEmpty() && laneSelector != null) {
+                throw new IllegalArgumentException("laneSelector needs lanes");
+            }
+            if (!lanes.isEmpty()) {
+                validateLanes();
+            }
+
+            return new EmailClientQueue(this);
+        }
+
+        private void validateLanes() {
+
+            if (queue != null) {
+                throw new IllegalArgumentException("queue cannot be combined with lanes");
+            }
+
+            final Set<String> names = new HashSet<>();
+            int reserved = 0;
+
+            for (QueueLane lane : lanes) {
+                if (!names.add(lane.getName())) {
+                    throw new IllegalArgumentException("Duplicate lane " + lane.getName());
+                }
+                reserved += lane.getReservedWorkers();
+            }
+
+            //a reserved worker blocks on its own lane, holding the take lock of an ordered queue
+            if (reserved > 0 && orderingKey != null) {
+                throw new IllegalArgumentException("reservedWorkers cannot be combined with an ordering key");
+            }
+            if (reserved >= workers) {
+                throw new IllegalArgumentException("reservedWorkers must leave at least one shared worker");
+            }
+        }
+    }
 
 }
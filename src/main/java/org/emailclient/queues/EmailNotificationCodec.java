@@ -0,0 +1,304 @@
+package org.emailclient.queues;
+
+import org.emailclient.AttachmentSource;
+import org.emailclient.EmailAttachment;
+import org.emailclient.EmailNotification;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of {@link EmailNotification} used to move queued items off the heap.
+ * <p>
+ * Strings are written as a length prefixed UTF-8 byte array, collections and maps as a count followed by their
+ * elements. A length or count of -1 encodes null. Attachments read from a path are written as the path, attachments
+ * read from a stream are read into the encoding since the stream cannot be opened again after a restart.
+ * <p>
+ * The version byte is followed by the due time in epoch milliseconds of a scheduled notification, or
+ * {@link Long#MIN_VALUE} when it is not scheduled.
+ */
+final class EmailNotificationCodec {
+
+    private static final byte VERSION = 3;
+
+    /**
+     * Written without a due time, still read from journals written before scheduled sends were journaled.
+     */
+    private static final byte VERSION_UNSCHEDULED = 2;
+
+    /**
+     * Attachments are always in memory, still read from journals written before attachment sources existed.
+     */
+    private static final byte VERSION_IN_MEMORY_ATTACHMENTS = 1;
+
+    private static final long NOT_SCHEDULED = Long.MIN_VALUE;
+
+    private static final byte SOURCE_IN_MEMORY = 0;
+    private static final byte SOURCE_PATH = 1;
+
+    private EmailNotificationCodec() {
+    }
+
+    static byte[] encode(final EmailNotification notification) {
+        return encode(notification, null);
+    }
+
+    /**
+     * @param dueAt when a scheduled notification is due, null when it is not scheduled
+     */
+    static byte[] encode(final EmailNotification notification, final Instant dueAt) {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + length(notification.getBody()));
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+
+            out.writeByte(VERSION);
+            out.writeLong(dueAt == null ? NOT_SCHEDULED : dueAt.toEpochMilli());
+            writeString(out, notification.getFromEmail());
+            writeString(out, notification.getSubject());
+            writeString(out, notification.getBody());
+            out.writeBoolean(notification.isHtml());
+            writeStrings(out, notification.getToRecipients());
+            writeStrings(out, notification.getCcRecipients());
+            writeStrings(out, notification.getBccRecipients());
+            writeAttachments(out, notification.getAttachments());
+            writeImages(out, notification.getImages());
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static EmailNotification decode(final byte[] bytes) {
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+
+            final byte version = readVersion(in);
+            if (version == VERSION) {
+                in.readLong();
+            }
+
+            final String fromEmail = readString(in);
+            final String subject = readString(in);
+            final String body = readString(in);
+            final boolean isHtml = in.readBoolean();
+            final List<String> to = readStrings(in);
+            final List<String> cc = readStrings(in);
+            final List<String> bcc = readStrings(in);
+            final List<EmailAttachment> attachments = readAttachments(in, version);
+            final Map<String, File> images = readImages(in);
+
+            return new EmailNotification(fromEmail, subject, body, isHtml, attachments, to, cc, bcc, images);
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * When the encoded notification is due, null when it is not scheduled.
+     */
+    static Instant dueAt(final byte[] bytes) {
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+
+            if (readVersion(in) != VERSION) {
+                return null;
+            }
+
+            final long dueAt = in.readLong();
+            return dueAt == NOT_SCHEDULED ? null : Instant.ofEpochMilli(dueAt);
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte readVersion(final DataInputStream in) throws IOException {
+
+        final byte version = in.readByte();
+        if (version != VERSION && version != VERSION_UNSCHEDULED && version != VERSION_IN_MEMORY_ATTACHMENTS) {
+            throw new IOException("Unknown notification encoding version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Rough heap footprint of a queued notification, used for byte based queue bounds.
+     */
+    static long estimateSize(final EmailNotification notification) {
+
+        long size = 128;
+
+        size += 2L * length(notification.getSubject());
+        size += 2L * length(notification.getBody());
+        size += 64L * count(notification.getToRecipients());
+        size += 64L * count(notification.getCcRecipients());
+        size += 64L * count(notification.getBccRecipients());
+
+        if (notification.getAttachments() != null) {
+            for (EmailAttachment attachment : notification.getAttachments()) {
+                //only in memory content is on the heap, other sources are a reference until sent
+                if (attachment.source() instanceof AttachmentSource.InMemory inMemory && inMemory.content() != null) {
+                    size += inMemory.content().length;
+                }
+                size += 64L;
+            }
+        }
+
+        if (notification.getImages() != null) {
+            size += 128L * notification.getImages().size();
+        }
+
+        return size;
+    }
+
+    private static int length(final String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static int count(final Collection<?> values) {
+        return values == null ? 0 : values.size();
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] value) throws IOException {
+
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeStrings(final DataOutputStream out, final Collection<String> values) throws IOException {
+
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(final DataInputStream in) throws IOException {
+
+        final int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+
+        final List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeAttachments(final DataOutputStream out, final Collection<EmailAttachment> attachments) throws IOException {
+
+        if (attachments == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(attachments.size());
+        for (EmailAttachment attachment : attachments) {
+            writeString(out, attachment.fileName());
+            if (attachment.source() instanceof AttachmentSource.FromPath fromPath) {
+                out.writeByte(SOURCE_PATH);
+                writeString(out, fromPath.path().toString());
+            } else {
+                out.writeByte(SOURCE_IN_MEMORY);
+                writeBytes(out, attachment.content());
+            }
+            writeString(out, attachment.mimeType());
+        }
+    }
+
+    private static List<EmailAttachment> readAttachments(final DataInputStream in, final byte version) throws IOException {
+
+        final int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+
+        final List<EmailAttachment> attachments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String fileName = readString(in);
+            final AttachmentSource source = version == VERSION_IN_MEMORY_ATTACHMENTS || in.readByte() == SOURCE_IN_MEMORY
+                    ? AttachmentSource.of(readBytes(in))
+                    : AttachmentSource.of(Path.of(readString(in)));
+            attachments.add(new EmailAttachment(fileName, source, readString(in)));
+        }
+        return attachments;
+    }
+
+    private static void writeImages(final DataOutputStream out, final Map<String, File> images) throws IOException {
+
+        if (images == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(images.size());
+        for (Map.Entry<String, File> image : images.entrySet()) {
+            writeString(out, image.getKey());
+            writeString(out, image.getValue().getPath());
+        }
+    }
+
+    private static Map<String, File> readImages(final DataInputStream in) throws IOException {
+
+        final int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+
+        final Map<String, File> images = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            images.put(readString(in), new File(readString(in)));
+        }
+        return images;
+    }
+}
@@ -2,12 +2,61 @@ package org.emailclient.queues;
 
 import org.emailclient.EmailNotification;
 import org.emailclient.INotificationSender;
+import org.emailclient.SendResult;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public interface IEmailClientQueue<T> {
     void add(
             INotificationSender<T> emailSender, EmailNotification notification
     );
 
+    /**
+     * Like {@link #add}, the future completes with the outcome of the send. The default completes it once
+     * {@link #add} returned, implementations that can report the send override it.
+     */
+    default CompletableFuture<SendResult<EmailNotification>> addAsync(
+            INotificationSender<T> emailSender, EmailNotification notification
+    ) {
+
+        try {
+            add(emailSender, notification);
+        } catch (RuntimeException ex) {
+            return CompletableFuture.completedFuture(SendResult.failure(notification, ex));
+        }
+
+        return CompletableFuture.completedFuture(SendResult.success(notification));
+    }
+
+    /**
+     * Like {@link #addAsync}, the notification is only queued once {@code at} has passed. The default waits on
+     * {@link CompletableFuture#delayedExecutor}, nothing survives a restart.
+     */
+    default CompletableFuture<SendResult<EmailNotification>> addAt(
+            INotificationSender<T> emailSender, EmailNotification notification, Instant at
+    ) {
+
+        final Duration delay = Duration.between(Instant.now(), at);
+
+        if (delay.isNegative() || delay.isZero()) {
+            return addAsync(emailSender, notification);
+        }
+
+        return CompletableFuture
+                .runAsync(() -> {
+                }, CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS))
+                .thenCompose(ignored -> addAsync(emailSender, notification));
+    }
+
+    default CompletableFuture<SendResult<EmailNotification>> addAfter(
+            INotificationSender<T> emailSender, EmailNotification notification, Duration delay
+    ) {
+        return addAt(emailSender, notification, Instant.now().plus(delay));
+    }
+
     void start();
 
     void resume();
@@ -0,0 +1,307 @@
+package org.emailclient.queues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Append only log of encoded notifications split into memory mapped {@link JournalSegment}s.
+ * <p>
+ * Appends only copy into the mapped active segment. A single flusher thread forces the segment to disk every
+ * {@code flushInterval} or as soon as a writer waits in {@link #awaitDurable(long)}, so one fsync covers every
+ * record appended since the previous one. The same thread deletes fully acknowledged segments and compacts sealed
+ * segments whose share of live records dropped below {@code compactionThreshold}.
+ */
+final class Journal implements AutoCloseable {
+
+    private final static Logger sLogger = LoggerFactory.getLogger(Journal.class);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long flushIntervalNanos;
+    private final double compactionThreshold;
+
+    private final ConcurrentSkipListMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentLinkedQueue<JournalSegment> drained = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequested = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    private final Thread flusher;
+
+    private JournalSegment active;
+    private long nextSeq;
+    private volatile long flushedSeq = -1;
+    private int waiters;
+    private volatile boolean closed;
+
+    Journal(
+            Path directory,
+            int segmentSize,
+            Duration flushInterval,
+            double compactionThreshold,
+            BiConsumer<Long, byte[]> unacked
+    ) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.compactionThreshold = compactionThreshold;
+
+        Files.createDirectories(directory);
+
+        recover(unacked);
+
+        this.flusher = new Thread(this::flushLoop, "email-queue-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @return the sequence number of the new record
+     */
+    long append(final byte[] payload) throws IOException {
+
+        lock.lock();
+        try {
+
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+
+            final long seq = nextSeq;
+
+            if (!active.append(seq, payload)) {
+                roll(payload.length);
+
+                if (!active.append(seq, payload)) {
+                    throw new IllegalStateException("Record does not fit into an empty segment");
+                }
+            }
+
+            nextSeq++;
+            appended.increment();
+
+            return seq;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until {@code seq} was forced to disk.
+     */
+    void awaitDurable(final long seq) throws InterruptedException {
+
+        lock.lock();
+        try {
+
+            waiters++;
+            flushRequested.signal();
+
+            try {
+                while (flushedSeq < seq && !closed) {
+                    flushed.await();
+                }
+            } finally {
+                waiters--;
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void ack(final long seq) {
+
+        final Map.Entry<Long, JournalSegment> entry = segments.floorEntry(seq);
+
+        if (entry != null && entry.getValue().ack(seq)) {
+            drained.add(entry.getValue());
+        }
+    }
+
+    JournalMetrics getMetrics() {
+
+        long pending = 0;
+        for (JournalSegment segment : segments.values()) {
+            pending += segment.getLive();
+        }
+
+        return new JournalMetrics(segments.size(), pending, appended.sum(), syncs.sum());
+    }
+
+    @Override
+    public void close() {
+
+        lock.lock();
+        try {
+            closed = true;
+            flushRequested.signalAll();
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (JournalSegment segment : segments.values()) {
+            segment.force();
+            segment.forceAcks();
+        }
+    }
+
+    private void recover(final BiConsumer<Long, byte[]> unacked) throws IOException {
+
+        final List<Path> files = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            stream.forEach(files::add);
+        }
+
+        //left over from a compaction that did not finish, the original segment is still intact
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.compact")) {
+            for (Path leftover : stream) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+
+        files.sort(null);
+
+        for (Path file : files) {
+
+            final JournalSegment segment = JournalSegment.open(file, unacked);
+
+            if (active != null && active.seal()) {
+                drained.add(active);
+            }
+
+            segments.put(segment.getBaseSeq(), segment);
+            active = segment;
+            nextSeq = Math.max(nextSeq, segment.getEndSeq());
+        }
+
+        if (active == null) {
+            active = JournalSegment.create(directory, nextSeq, segmentSize);
+            segments.put(nextSeq, active);
+        }
+
+        flushedSeq = nextSeq - 1;
+    }
+
+    private void roll(final int payloadLength) throws IOException {
+
+        if (active.seal()) {
+            drained.add(active);
+        }
+
+        final int size = Math.max(segmentSize, JournalSegment.HEADER + payloadLength + 4);
+
+        active = JournalSegment.create(directory, nextSeq, size);
+        segments.put(nextSeq, active);
+
+        //records appended before the roll were forced by seal
+        flushedSeq = nextSeq - 1;
+        flushed.signalAll();
+    }
+
+    private void flushLoop() {
+
+        while (true) {
+
+            final JournalSegment segment;
+            final long target;
+
+            lock.lock();
+            try {
+
+                if (waiters == 0 && !closed) {
+                    try {
+                        flushRequested.awaitNanos(flushIntervalNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (closed) {
+                    return;
+                }
+
+                segment = active;
+                target = nextSeq - 1;
+
+            } finally {
+                lock.unlock();
+            }
+
+            if (target > flushedSeq) {
+                segment.force();
+                syncs.increment();
+            }
+
+            for (JournalSegment each : segments.values()) {
+                each.forceAcks();
+            }
+
+            lock.lock();
+            try {
+                flushedSeq = Math.max(flushedSeq, target);
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            maintain();
+        }
+    }
+
+    /**
+     * Deletes drained segments and compacts sparse ones, only ever called from the flusher thread.
+     */
+    private void maintain() {
+
+        JournalSegment segment;
+        while ((segment = drained.poll()) != null) {
+            try {
+                segments.remove(segment.getBaseSeq());
+                segment.delete();
+            } catch (IOException e) {
+                sLogger.error("Could not delete journal segment", e);
+            }
+        }
+
+        for (JournalSegment each : segments.values()) {
+            if (each.shouldCompact(compactionThreshold)) {
+                try {
+                    each.compact();
+                } catch (IOException | UncheckedIOException e) {
+                    sLogger.error("Could not compact journal segment", e);
+                }
+            }
+        }
+    }
+}
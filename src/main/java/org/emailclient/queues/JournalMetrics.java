@@ -0,0 +1,12 @@
+package org.emailclient.queues;
+
+/**
+ * Point in time snapshot of a {@link JournaledEmailClientQueue} journal.
+ *
+ * @param segments number of segment files on disk
+ * @param pending  records not acknowledged yet, these are replayed after a restart
+ * @param appended records appended since the journal was opened
+ * @param syncs    number of fsyncs, {@code appended / syncs} is the average group commit size
+ */
+public record JournalMetrics(int segments, long pending, long appended, long syncs) {
+}
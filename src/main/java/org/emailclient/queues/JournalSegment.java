@@ -0,0 +1,308 @@
+package org.emailclient.queues;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the journal plus its acknowledgement bitmap.
+ * <p>
+ * The data file holds records {@code [int length][int crc32][long seq][payload]}, a zero length marks the end of
+ * the written data. Sequence numbers in a segment start at {@code baseSeq}, bit {@code seq - baseSeq} of the
+ * memory mapped {@code .ack} file is set once that record was delivered. Only the active segment keeps its data
+ * mapped, sealed segments are only read again by compaction.
+ */
+final class JournalSegment {
+
+    static final int HEADER = 16;
+
+    private static final int MIN_RECORD = HEADER + 1;
+
+    private final long baseSeq;
+    private final Path dataFile;
+    private final Path ackFile;
+    private final int capacity;
+    private final MappedByteBuffer acks;
+
+    private volatile MappedByteBuffer data;
+    private int writePosition;
+    private long endSeq;
+    private int records;
+    private int live;
+    private boolean sealed;
+    private volatile boolean acksDirty;
+
+    private JournalSegment(long baseSeq, Path dataFile, Path ackFile, int capacity, MappedByteBuffer data, MappedByteBuffer acks) {
+        this.baseSeq = baseSeq;
+        this.dataFile = dataFile;
+        this.ackFile = ackFile;
+        this.capacity = capacity;
+        this.data = data;
+        this.acks = acks;
+        this.endSeq = baseSeq;
+    }
+
+    static JournalSegment create(final Path directory, final long baseSeq, final int capacity) throws IOException {
+
+        final Path dataFile = directory.resolve(fileName(baseSeq, ".log"));
+        final Path ackFile = directory.resolve(fileName(baseSeq, ".ack"));
+
+        return new JournalSegment(baseSeq, dataFile, ackFile, capacity, map(dataFile, capacity), map(ackFile, ackBytes(capacity)));
+    }
+
+    /**
+     * Opens an existing segment and passes every valid record that was not acknowledged to {@code unacked}.
+     * Reading stops at the end marker or at the first torn record.
+     */
+    static JournalSegment open(final Path dataFile, final BiConsumer<Long, byte[]> unacked) throws IOException {
+
+        final String name = dataFile.getFileName().toString();
+        final long baseSeq = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        final Path ackFile = dataFile.resolveSibling(fileName(baseSeq, ".ack"));
+        final int capacity = (int) Files.size(dataFile);
+
+        final JournalSegment segment = new JournalSegment(
+                baseSeq,
+                dataFile,
+                ackFile,
+                capacity,
+                map(dataFile, capacity),
+                map(ackFile, ackBytes(capacity))
+        );
+
+        segment.recover(unacked);
+
+        return segment;
+    }
+
+    /**
+     * Appends a record, returns false when it does not fit.
+     */
+    synchronized boolean append(final long seq, final byte[] payload) {
+
+        if (sealed || writePosition + HEADER + payload.length + 4 > capacity) {
+            return false;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        //write the payload first and the length last, so a torn record never looks complete
+        data.putInt(writePosition + 4, (int) crc.getValue());
+        data.putLong(writePosition + 8, seq);
+        data.put(writePosition + HEADER, payload);
+        data.putInt(writePosition, payload.length);
+
+        writePosition += HEADER + payload.length;
+        endSeq = seq + 1;
+        records++;
+        live++;
+
+        return true;
+    }
+
+    /**
+     * @return true when this was the last live record of a sealed segment
+     */
+    synchronized boolean ack(final long seq) {
+
+        if (seq < baseSeq || seq >= endSeq) {
+            return false;
+        }
+
+        final int index = (int) (seq - baseSeq);
+        final int position = index >>> 3;
+        final byte mask = (byte) (1 << (index & 7));
+        final byte bits = acks.get(position);
+
+        if ((bits & mask) != 0) {
+            return false;
+        }
+
+        acks.put(position, (byte) (bits | mask));
+        acksDirty = true;
+        live--;
+
+        return sealed && live == 0;
+    }
+
+    synchronized boolean isAcked(final long seq) {
+        final int index = (int) (seq - baseSeq);
+        return (acks.get(index >>> 3) & (1 << (index & 7))) != 0;
+    }
+
+    void force() {
+
+        final MappedByteBuffer buffer = data;
+
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    void forceAcks() {
+        if (acksDirty) {
+            acksDirty = false;
+            acks.force();
+        }
+    }
+
+    /**
+     * Flushes and unmaps the data, no more records can be appended.
+     */
+    synchronized boolean seal() {
+
+        force();
+        data = null;
+        sealed = true;
+
+        return live == 0;
+    }
+
+    synchronized boolean shouldCompact(final double threshold) {
+        return sealed && records > 0 && live > 0 && (double) live / records < threshold;
+    }
+
+    /**
+     * Rewrites the data file keeping only records that are not acknowledged yet. Acknowledgements that arrive
+     * while rewriting only leave a record that replay will skip.
+     */
+    void compact() throws IOException {
+
+        final Path compacted = dataFile.resolveSibling(dataFile.getFileName() + ".compact");
+        int kept = 0;
+
+        try (FileChannel source = FileChannel.open(dataFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            final ByteBuffer in = source.map(FileChannel.MapMode.READ_ONLY, 0, source.size());
+            int position = 0;
+
+            while (true) {
+
+                final int length = validRecordLength(in, position);
+                if (length < 0) {
+                    break;
+                }
+
+                final long seq = in.getLong(position + 8);
+
+                if (!isAcked(seq)) {
+                    target.write(in.slice(position, HEADER + length));
+                    kept++;
+                }
+
+                position += HEADER + length;
+            }
+
+            //pad to the original size so the ack bitmap keeps its size
+            target.write(ByteBuffer.allocate(4), Math.max(target.size(), capacity - 4));
+            target.force(true);
+        }
+
+        Files.move(compacted, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            records = kept;
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(dataFile);
+        Files.deleteIfExists(ackFile);
+    }
+
+    long getBaseSeq() {
+        return baseSeq;
+    }
+
+    long getEndSeq() {
+        return endSeq;
+    }
+
+    synchronized int getLive() {
+        return live;
+    }
+
+    private void recover(final BiConsumer<Long, byte[]> unacked) {
+
+        int position = 0;
+
+        while (true) {
+
+            final int length = validRecordLength(data, position);
+            if (length < 0) {
+                break;
+            }
+
+            final long seq = data.getLong(position + 8);
+            records++;
+            endSeq = seq + 1;
+
+            if (!isAcked(seq)) {
+                live++;
+                final byte[] payload = new byte[length];
+                data.get(position + HEADER, payload);
+                unacked.accept(seq, payload);
+            }
+
+            position += HEADER + length;
+        }
+
+        //clear anything left of a torn record so it cannot be mistaken for data later
+        if (position + HEADER <= capacity) {
+
+            final int tornLength = data.getInt(position);
+            final int end = tornLength > 0 ? (int) Math.min(capacity, (long) position + HEADER + tornLength) : position + HEADER;
+
+            for (int i = position; i < end; i++) {
+                data.put(i, (byte) 0);
+            }
+        }
+
+        writePosition = position;
+    }
+
+    /**
+     * Length of the payload of the record at {@code position}, -1 at the end of data or at a torn record.
+     */
+    private static int validRecordLength(final ByteBuffer buffer, final int position) {
+
+        if (position + HEADER > buffer.limit()) {
+            return -1;
+        }
+
+        final int length = buffer.getInt(position);
+
+        if (length <= 0 || position + HEADER + length > buffer.limit()) {
+            return -1;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.slice(position + HEADER, length));
+
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? length : -1;
+    }
+
+    private static MappedByteBuffer map(final Path file, final int size) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int ackBytes(final int capacity) {
+        return capacity / MIN_RECORD / 8 + 1;
+    }
+
+    private static String fileName(final long baseSeq, final String suffix) {
+        return String.format("%020d%s", baseSeq, suffix);
+    }
+}
@@ -0,0 +1,306 @@
+package org.emailclient.queues;
+
+import org.emailclient.EmailNotification;
+import org.emailclient.INotificationSender;
+import org.emailclient.SendResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * {@link IEmailClientQueue} that writes every notification to an on disk journal before handing it to an
+ * {@link EmailClientQueue}, and acknowledges it in the journal once it was sent.
+ * <p>
+ * Notifications that were not acknowledged when the process stopped, including those whose send failed, are
+ * replayed into the queue with {@code replaySender} when the journal is opened again, so delivery is at least once.
+ * The delegate queue should not spill to disk itself, the journal already keeps the items durable.
+ */
+public class JournaledEmailClientQueue implements IEmailClientQueue<EmailNotification> {
+
+    private final static Logger sLogger = LoggerFactory.getLogger(JournaledEmailClientQueue.class);
+
+    /**
+     * When {@link #add} returns relative to the fsync of the journal.
+     */
+    public enum Durability {
+
+        /**
+         * Wait for the next group commit, a returned add survives a crash.
+         */
+        GROUP_COMMIT,
+
+        /**
+         * Return right after the append, up to one flush interval of adds can be lost in a crash.
+         */
+        ASYNC
+    }
+
+    private final EmailClientQueue delegate;
+    private final Durability durability;
+    private final Journal journal;
+
+    private JournaledEmailClientQueue(JournaledEmailClientQueueBuilder builder) throws IOException {
+
+        this.delegate = builder.delegate == null ? EmailClientQueue.create() : builder.delegate;
+        this.durability = builder.durability;
+
+        final List<Replay> replays = new ArrayList<>();
+
+        this.journal = new Journal(
+                builder.directory,
+                builder.segmentSize,
+                builder.flushInterval,
+                builder.compactionThreshold,
+                (seq, payload) -> replays.add(new Replay(seq, payload))
+        );
+
+        for (Replay replay : replays) {
+            try {
+                final EmailNotification notification = EmailNotificationCodec.decode(replay.payload());
+                final Instant dueAt = EmailNotificationCodec.dueAt(replay.payload());
+                if (dueAt == null) {
+                    enqueue(builder.replaySender, notification, replay.seq(), null);
+                } else {
+                    schedule(builder.replaySender, notification, replay.seq(), dueAt);
+                }
+            } catch (RuntimeException ex) {
+                sLogger.error("Could not replay journaled notification " + replay.seq(), ex);
+            }
+        }
+
+        if (!replays.isEmpty()) {
+            sLogger.info("Replayed {} journaled notifications", replays.size());
+        }
+    }
+
+    @Override
+    public void add(INotificationSender<EmailNotification> emailSender, EmailNotification notification) {
+        enqueue(emailSender, notification, journal(notification), null);
+    }
+
+    /**
+     * The future completes once the notification was journaled and sent. A notification that could not be journaled
+     * or was rejected by the queue completes it with a failed result.
+     */
+    @Override
+    public CompletableFuture<SendResult<EmailNotification>> addAsync(
+            INotificationSender<EmailNotification> emailSender, EmailNotification notification
+    ) {
+
+        final CompletableFuture<SendResult<EmailNotification>> future = new CompletableFuture<>();
+
+        try {
+            enqueue(emailSender, notification, journal(notification), future::complete);
+        } catch (RuntimeException ex) {
+            future.complete(SendResult.failure(notification, ex));
+        }
+
+        return future;
+    }
+
+    /**
+     * The notification is journaled right away together with its due time, a notification replayed after a restart
+     * is scheduled again for the same time.
+     */
+    @Override
+    public CompletableFuture<SendResult<EmailNotification>> addAt(
+            INotificationSender<EmailNotification> emailSender, EmailNotification notification, Instant at
+    ) {
+
+        final long seq;
+
+        try {
+            seq = journal(notification, at);
+        } catch (RuntimeException ex) {
+            return CompletableFuture.completedFuture(SendResult.failure(notification, ex));
+        }
+
+        return schedule(emailSender, notification, seq, at);
+    }
+
+    private long journal(EmailNotification notification) {
+        return journal(notification, null);
+    }
+
+    private long journal(EmailNotification notification, Instant dueAt) {
+
+        final long seq;
+
+        try {
+            seq = journal.append(EmailNotificationCodec.encode(notification, dueAt));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not journal notification", e);
+        }
+
+        if (durability == Durability.GROUP_COMMIT) {
+            try {
+                journal.awaitDurable(seq);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the journal", e);
+            }
+        }
+
+        return seq;
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+    }
+
+    @Override
+    public void resume() {
+        delegate.resume();
+    }
+
+    @Override
+    public void pause() {
+        delegate.pause();
+    }
+
+    /**
+     * Shuts the delegate down and closes the journal, unsent notifications stay journaled for the next start.
+     */
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+        journal.close();
+    }
+
+    public JournalMetrics getJournalMetrics() {
+        return journal.getMetrics();
+    }
+
+    public QueueMetrics getMetrics() {
+        return delegate.getMetrics();
+    }
+
+    private void enqueue(
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            long seq,
+            Consumer<SendResult<EmailNotification>> onComplete
+    ) {
+
+        try {
+            delegate.add(emailSender, notification, result -> {
+                if (result.success()) {
+                    journal.ack(seq);
+                }
+                if (onComplete != null) {
+                    onComplete.accept(result);
+                }
+            });
+        } catch (RuntimeException ex) {
+            //rejected by the delegate, the caller gets the exception so it must not be replayed later
+            journal.ack(seq);
+            throw ex;
+        }
+    }
+
+    private CompletableFuture<SendResult<EmailNotification>> schedule(
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            long seq,
+            Instant at
+    ) {
+        return delegate.addAt(emailSender, notification, at).thenApply(result -> {
+            if (result.success()) {
+                journal.ack(seq);
+            }
+            return result;
+        });
+    }
+
+    public static JournaledEmailClientQueueBuilder builder(Path directory) {
+        return new JournaledEmailClientQueueBuilder(directory);
+    }
+
+    public static class JournaledEmailClientQueueBuilder {
+        private final Path directory;
+        private EmailClientQueue delegate;
+        private INotificationSender<EmailNotification> replaySender;
+        private Durability durability = Durability.GROUP_COMMIT;
+        private int segmentSize = 64 * 1024 * 1024;
+        private Duration flushInterval = Duration.ofMillis(10);
+        private double compactionThreshold = 0.25;
+
+        private JournaledEmailClientQueueBuilder(Path directory) {
+            this.directory = directory;
+        }
+
+        public JournaledEmailClientQueueBuilder withQueue(EmailClientQueue delegate) {
+            this.delegate = delegate;
+            return this;
+        }
+
+        /**
+         * Sender for notifications recovered from the journal, the original sender is not persisted.
+         */
+        public JournaledEmailClientQueueBuilder withReplaySender(INotificationSender<EmailNotification> replaySender) {
+            this.replaySender = replaySender;
+            return this;
+        }
+
+        public JournaledEmailClientQueueBuilder withDurability(Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        public JournaledEmailClientQueueBuilder withSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        public JournaledEmailClientQueueBuilder withFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        /**
+         * Sealed segments with a smaller share of unacknowledged records than this are rewritten.
+         */
+        public JournaledEmailClientQueueBuilder withCompactionThreshold(double compactionThreshold) {
+            this.compactionThreshold = compactionThreshold;
+            return this;
+        }
+
+        /**
+         * Opens the journal and replays every unacknowledged notification into the queue.
+         */
+        public JournaledEmailClientQueue build() {
+
+            if (directory == null) {
+                throw new IllegalArgumentException("directory cannot be null");
+            }
+            if (replaySender == null) {
+                throw new IllegalArgumentException("replaySender cannot be null");
+            }
+            if (durability == null || flushInterval == null) {
+                throw new IllegalArgumentException("durability and flushInterval cannot be null");
+            }
+            if (segmentSize < 4096) {
+                throw new IllegalArgumentException("segmentSize must be at least 4096 bytes");
+            }
+
+            try {
+                return new JournaledEmailClientQueue(this);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open journal " + directory, e);
+            }
+        }
+    }
+
+    private record Replay(long seq, byte[] payload) {
+    }
+}
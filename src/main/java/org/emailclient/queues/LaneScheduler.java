@@ -0,0 +1,329 @@
+package org.emailclient.queues;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lanes of an {@link EmailClientQueue} behind one lock. Items go to the lane of {@link QueueItem#getLane()}.
+ * <p>
+ * {@link #shared()} picks the lane with stride scheduling: every lane has a pass that grows by {@code 1 / weight}
+ * for each item taken and the non-empty lane with the lowest pass is served next. A lane that was idle starts at
+ * the current pass so it cannot claim the turns it missed. A lane with items that was not served for its max wait
+ * is served first. {@link #lane(int)} only serves one lane, for reserved workers.
+ */
+final class LaneScheduler {
+
+    private static final long STRIDE = 1L << 20;
+
+    private final Lane[] lanes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final BlockingQueue<QueueItem> shared = new Source(-1);
+
+    private long virtualTime;
+    private int size;
+
+    LaneScheduler(List<QueueLane> lanes) {
+
+        this.lanes = new Lane[lanes.size()];
+
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane(lanes.get(i), i);
+        }
+    }
+
+    /**
+     * Serves all lanes by weight.
+     */
+    BlockingQueue<QueueItem> shared() {
+        return shared;
+    }
+
+    /**
+     * Serves only the lane at {@code index}, the lane still counts these items against its share.
+     */
+    BlockingQueue<QueueItem> lane(int index) {
+        return lanes[index].source;
+    }
+
+    private void enqueue(final QueueItem item) {
+
+        final Lane lane = lanes[item.getLane()];
+
+        lock.lock();
+        try {
+
+            if (lane.items.isEmpty()) {
+                lane.pass = Math.max(lane.pass, virtualTime);
+                lane.waitingSince = System.nanoTime();
+            }
+
+            lane.items.addLast(item);
+            size++;
+
+            lane.notEmpty.signal();
+            notEmpty.signal();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private Lane next() {
+
+        final long now = System.nanoTime();
+
+        Lane next = null;
+        long mostOverdue = 0;
+
+        for (Lane lane : lanes) {
+            if (!lane.items.isEmpty() && lane.maxWaitNanos < Long.MAX_VALUE) {
+                final long overdue = now - lane.waitingSince - lane.maxWaitNanos;
+                if (overdue > mostOverdue) {
+                    mostOverdue = overdue;
+                    next = lane;
+                }
+            }
+        }
+
+        if (next != null) {
+            return next;
+        }
+
+        for (Lane lane : lanes) {
+            if (!lane.items.isEmpty() && (next == null || lane.pass < next.pass)) {
+                next = lane;
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private QueueItem dequeue(final Lane lane) {
+
+        if (lane == null || lane.items.isEmpty()) {
+            return null;
+        }
+
+        final QueueItem item = lane.items.pollFirst();
+        size--;
+
+        virtualTime = Math.max(virtualTime, lane.pass);
+        lane.pass += lane.stride;
+        lane.waitingSince = System.nanoTime();
+
+        //pass the wake up on, the signal that woke this worker may have been meant for the remaining items
+        if (size > 0) {
+            notEmpty.signal();
+        }
+        if (!lane.items.isEmpty()) {
+            lane.notEmpty.signal();
+        }
+
+        return item;
+    }
+
+    private final class Lane {
+
+        final ArrayDeque<QueueItem> items = new ArrayDeque<>();
+        final Condition notEmpty = lock.newCondition();
+        final long stride;
+        final long maxWaitNanos;
+        final Source source;
+
+        long pass;
+        long waitingSince;
+
+        Lane(QueueLane lane, int index) {
+            this.stride = STRIDE / lane.getWeight();
+            this.maxWaitNanos = lane.getMaxWait() == null ? Long.MAX_VALUE : lane.getMaxWait().toNanos();
+            this.source = new Source(index);
+        }
+    }
+
+    /**
+     * Blocking queue view for the workers and the lane bounds, {@code index} -1 serves every lane.
+     */
+    private final class Source extends AbstractQueue<QueueItem> implements BlockingQueue<QueueItem> {
+
+        private final int index;
+
+        Source(int index) {
+            this.index = index;
+        }
+
+        private Lane pick() {
+            return index < 0 ? next() : lanes[index];
+        }
+
+        private Condition notEmpty() {
+            return index < 0 ? notEmpty : lanes[index].notEmpty;
+        }
+
+        private boolean isEmptyLocked() {
+            return index < 0 ? size == 0 : lanes[index].items.isEmpty();
+        }
+
+        @Override
+        public boolean offer(QueueItem item) {
+            enqueue(item);
+            return true;
+        }
+
+        @Override
+        public void put(QueueItem item) {
+            enqueue(item);
+        }
+
+        @Override
+        public boolean offer(QueueItem item, long timeout, TimeUnit unit) {
+            enqueue(item);
+            return true;
+        }
+
+        @Override
+        public QueueItem take() throws InterruptedException {
+
+            lock.lockInterruptibly();
+            try {
+                while (isEmptyLocked()) {
+                    notEmpty().await();
+                }
+                return dequeue(pick());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public QueueItem poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+            long remaining = unit.toNanos(timeout);
+
+            lock.lockInterruptibly();
+            try {
+                while (isEmptyLocked()) {
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    remaining = notEmpty().awaitNanos(remaining);
+                }
+                return dequeue(pick());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public QueueItem poll() {
+
+            lock.lock();
+            try {
+                return dequeue(pick());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public QueueItem peek() {
+
+            lock.lock();
+            try {
+                final Lane lane = pick();
+                return lane == null ? null : lane.items.peekFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+
+            lock.lock();
+            try {
+                return index < 0 ? size : lanes[index].items.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super QueueItem> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Every drained item is picked on its own, so a batch from the shared view is split by weight too.
+         */
+        @Override
+        public int drainTo(Collection<? super QueueItem> c, int maxElements) {
+
+            lock.lock();
+            try {
+
+                int drained = 0;
+
+                while (drained < maxElements) {
+
+                    final QueueItem item = dequeue(pick());
+                    if (item == null) {
+                        break;
+                    }
+
+                    c.add(item);
+                    drained++;
+                }
+
+                return drained;
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Snapshot in lane order, removing through it is not supported.
+         */
+        @Override
+        public Iterator<QueueItem> iterator() {
+
+            lock.lock();
+            try {
+
+                final List<QueueItem> snapshot = new ArrayList<>();
+
+                for (Lane lane : lanes) {
+                    if (index < 0 || lane == lanes[index]) {
+                        snapshot.addAll(lane.items);
+                    }
+                }
+
+                return Collections.unmodifiableList(snapshot).iterator();
+
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.emailclient.queues;
+
+/**
+ * What {@link EmailClientQueue#add} does when the queue is at its item or byte bound.
+ */
+public enum OverflowStrategy {
+
+    /**
+     * Wait for space up to the configured block timeout, then reject.
+     */
+    BLOCK,
+
+    /**
+     * Reject immediately with an {@link IllegalStateException}.
+     */
+    REJECT,
+
+    /**
+     * Discard the oldest queued items until the new one fits.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Encode the item to a spill file on disk, it is moved back into memory in order once space frees up.
+     */
+    SPILL_TO_DISK
+}
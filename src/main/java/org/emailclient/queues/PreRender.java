@@ -0,0 +1,91 @@
+package org.emailclient.queues;
+
+import org.emailclient.EmailNotification;
+import org.emailclient.EmailNotificationException;
+import org.emailclient.IRenderingSender;
+import org.emailclient.RenderedMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendering of one queued notification, started on the render pool when the item is queued. The message is rendered
+ * once, by the pool or by the worker that takes the item before the pool got to it, and reused by retries.
+ * <p>
+ * A message rendered while its item waits in the queue counts against the queue's byte bound until the item is taken.
+ */
+final class PreRender implements Runnable {
+
+    private final IRenderingSender<EmailNotification> sender;
+    private final EmailNotification notification;
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final CompletableFuture<RenderedMessage> message = new CompletableFuture<>();
+
+    //bytes counted against the queue bounds, -1 once the item left the queue
+    private final AtomicLong countedBytes = new AtomicLong();
+
+    PreRender(IRenderingSender<EmailNotification> sender, EmailNotification notification) {
+        this.sender = sender;
+        this.notification = notification;
+    }
+
+    @Override
+    public void run() {
+
+        if (!claimed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            message.complete(sender.render(notification));
+        } catch (Exception ex) {
+            message.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Renders on the calling thread unless it was started already, then waits for it.
+     *
+     * @throws EmailNotificationException when rendering failed
+     */
+    RenderedMessage get() {
+
+        run();
+
+        try {
+            return message.join();
+        } catch (RuntimeException ex) {
+            final Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+            throw cause instanceof EmailNotificationException e ? e : new EmailNotificationException(cause);
+        }
+    }
+
+    /**
+     * Size of the message rendered by {@link #run}, 0 when it is not rendered yet or failed.
+     */
+    long renderedSize() {
+        if (!message.isDone() || message.isCompletedExceptionally()) {
+            return 0;
+        }
+        return message.join().getSize();
+    }
+
+    /**
+     * @return false when the item already left the queue, the bytes are then not counted
+     */
+    boolean count(final long bytes) {
+        return countedBytes.compareAndSet(0, bytes);
+    }
+
+    /**
+     * Called once the item left the queue, returns the bytes counted for it.
+     */
+    long uncount() {
+        return Math.max(0, countedBytes.getAndSet(-1));
+    }
+
+    boolean send() {
+        return sender.sendRendered(notification, get());
+    }
+}
@@ -0,0 +1,406 @@
+package org.emailclient.queues;
+
+import org.emailclient.EmailNotification;
+import org.emailclient.INotificationSender;
+import org.emailclient.SendResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Item and byte accounting in front of the queue, applying the {@link OverflowStrategy} when a bound is hit.
+ * <p>
+ * Unbounded queues only keep the counters and never take the lock. An item larger than the byte bound is still
+ * admitted into an empty queue, otherwise it could never be sent.
+ */
+final class QueueBounds implements AutoCloseable {
+
+    private final static Logger sLogger = LoggerFactory.getLogger(QueueBounds.class);
+
+    private final BlockingQueue<QueueItem> queue;
+    private final int maxItems;
+    private final long maxBytes;
+    private final OverflowStrategy overflow;
+    private final long blockTimeoutNanos;
+    private final boolean bounded;
+
+    private final AtomicInteger queuedItems = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition spaceAvailable = lock.newCondition();
+
+    private final DiskSpillBuffer<SpilledItem> spill;
+
+    QueueBounds(
+            BlockingQueue<QueueItem> queue,
+            int maxItems,
+            long maxBytes,
+            OverflowStrategy overflow,
+            Duration blockTimeout,
+            Path spillDirectory
+    ) {
+        this.queue = queue;
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.overflow = overflow;
+        this.blockTimeoutNanos = blockTimeout.toNanos();
+        this.bounded = maxItems < Integer.MAX_VALUE || maxBytes < Long.MAX_VALUE;
+
+        if (bounded && overflow == OverflowStrategy.SPILL_TO_DISK) {
+            try {
+                this.spill = new DiskSpillBuffer<>(spillDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            this.spill = null;
+        }
+    }
+
+    /**
+     * @return false when the item was spilled to disk instead of queued in memory
+     */
+    boolean offer(final QueueItem item) {
+
+        if (!bounded) {
+            enqueue(item);
+            return true;
+        }
+
+        lock.lock();
+        try {
+
+            //keep FIFO order, nothing may overtake spilled items
+            if ((spill == null || spill.isEmpty()) && fits(item.getSize())) {
+                enqueue(item);
+                return true;
+            }
+
+            switch (overflow) {
+                case BLOCK -> awaitSpace(item.getNotification(), item.getSize());
+                case REJECT -> reject(item.getNotification());
+                case DROP_OLDEST -> dropOldest(item.getSize());
+                case SPILL_TO_DISK -> {
+                    spill(item);
+                    return false;
+                }
+            }
+
+            enqueue(item);
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a notification the coalescer holds back against the bounds, applying the overflow strategy when it
+     * does not fit. It stays counted until its group is queued with {@link #releaseReserved}.
+     *
+     * @return false when the notification should be spilled instead, it is then not counted
+     */
+    boolean reserve(final EmailNotification notification, final long size) {
+
+        if (!bounded) {
+            count(1, size);
+            return true;
+        }
+
+        lock.lock();
+        try {
+
+            if ((spill == null || spill.isEmpty()) && fits(size)) {
+                count(1, size);
+                return true;
+            }
+
+            switch (overflow) {
+                case BLOCK -> awaitSpace(notification, size);
+                case REJECT -> reject(notification);
+                case DROP_OLDEST -> dropOldest(size);
+                case SPILL_TO_DISK -> {
+                    return false;
+                }
+            }
+
+            count(1, size);
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a notification the coalescer holds back without checking the bounds, like {@link #requeue}.
+     */
+    void reserveAdmitted(final long size) {
+        count(1, size);
+    }
+
+    /**
+     * Queues the notification a coalesced group was merged into, in place of its {@code items} reserved members.
+     */
+    void releaseReserved(final QueueItem item, final int items, final long bytes) {
+
+        count(1 - items, item.getSize() - bytes);
+        queue.add(item);
+
+        if (bounded) {
+            signalSpace();
+        }
+    }
+
+    /**
+     * Uncounts reserved members that will not be queued.
+     */
+    void cancelReserved(final int items, final long bytes) {
+
+        count(-items, -bytes);
+
+        if (bounded) {
+            signalSpace();
+        }
+    }
+
+    /**
+     * Puts back an item that was already admitted once, bypassing the bounds.
+     */
+    void requeue(final QueueItem item) {
+        enqueue(item);
+    }
+
+    /**
+     * Keeps an item counted against the bounds while it waits outside the queue, for a retry or a rate limit.
+     */
+    void hold(final QueueItem item) {
+        count(1, item.getSize());
+    }
+
+    /**
+     * Puts back an item passed to {@link #hold}.
+     */
+    void release(final QueueItem item) {
+        queue.add(item);
+    }
+
+    /**
+     * Counts the rendered message of a queued item against the byte bound until the item is taken.
+     */
+    void onRendered(final PreRender render) {
+
+        final long bytes = render.renderedSize();
+
+        if (bytes > 0 && render.count(bytes)) {
+            count(0, bytes);
+        }
+    }
+
+    void onDequeued(final QueueItem item) {
+
+        count(-1, -item.getSize() - renderedBytes(item));
+
+        if (bounded) {
+            signalSpace();
+        }
+    }
+
+    QueueMetrics getMetrics() {
+
+        int spilledItems = 0;
+        long spilledBytes = 0;
+
+        if (spill != null) {
+            lock.lock();
+            try {
+                spilledItems = spill.size();
+                spilledBytes = spill.spilledBytes();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        return new QueueMetrics(
+                queuedItems.get(),
+                queuedBytes.get(),
+                spilledItems,
+                spilledBytes,
+                dropped.sum(),
+                rejected.sum()
+        );
+    }
+
+    @Override
+    public void close() {
+
+        if (spill == null) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (!spill.isEmpty()) {
+                sLogger.warn("Discarding {} spilled notifications", spill.size());
+            }
+            spill.close();
+        } catch (IOException e) {
+            sLogger.error("Error closing spill file", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(final long size) {
+
+        final int items = queuedItems.get();
+
+        if (items == 0) {
+            return true;
+        }
+
+        return items < maxItems && queuedBytes.get() + size <= maxBytes;
+    }
+
+    private void count(final int items, final long bytes) {
+        queuedItems.addAndGet(items);
+        queuedBytes.addAndGet(bytes);
+    }
+
+    private static long renderedBytes(final QueueItem item) {
+        return item.getRender() == null ? 0 : item.getRender().uncount();
+    }
+
+    private void signalSpace() {
+
+        lock.lock();
+        try {
+            refill();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(final QueueItem item) {
+
+        count(1, item.getSize());
+
+        try {
+            queue.add(item);
+        } catch (RuntimeException ex) {
+            count(-1, -item.getSize());
+            throw ex;
+        }
+    }
+
+    private void awaitSpace(final EmailNotification notification, final long size) {
+
+        long remaining = blockTimeoutNanos;
+
+        try {
+            while (!fits(size)) {
+
+                if (remaining <= 0) {
+                    reject(notification);
+                }
+
+                remaining = spaceAvailable.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            throw new IllegalStateException("Interrupted while waiting for queue space", e);
+        }
+    }
+
+    private void reject(final EmailNotification notification) {
+        rejected.increment();
+        throw new IllegalStateException("Queue full, rejected " + notification.getSubject());
+    }
+
+    private void dropOldest(final long size) {
+
+        while (!fits(size)) {
+
+            final QueueItem oldest = queue.poll();
+
+            if (oldest == null) {
+                break;
+            }
+
+            count(-1, -oldest.getSize() - renderedBytes(oldest));
+            dropped.increment();
+
+            sLogger.warn("Queue full, dropped {}", oldest.getNotification().getSubject());
+            oldest.complete(SendResult.failure(oldest.getNotification(), new IllegalStateException("Dropped, queue full")));
+        }
+    }
+
+    private void spill(final QueueItem item) {
+
+        try {
+            spill.push(
+                    new SpilledItem(item.getEmailSender(), item.getKey(), item.getLane(), item.getOnComplete(), item.getEnqueuedAt()),
+                    EmailNotificationCodec.encode(item.getNotification()),
+                    item.getSize()
+            );
+        } catch (IOException e) {
+            rejected.increment();
+            throw new UncheckedIOException("Could not spill notification to disk", e);
+        }
+
+        refill();
+    }
+
+    private void refill() {
+
+        if (spill == null) {
+            return;
+        }
+
+        try {
+            while (!spill.isEmpty() && fits(spill.peekSize())) {
+
+                final long size = spill.peekSize();
+                final SpilledItem spilled = spill.peekAttachment();
+                final EmailNotification notification = EmailNotificationCodec.decode(spill.poll());
+
+                enqueue(new QueueItem(
+                        spilled.emailSender(),
+                        notification,
+                        spilled.key(),
+                        size,
+                        spilled.lane(),
+                        spilled.onComplete(),
+                        spilled.enqueuedAt()
+                ));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            sLogger.error("Could not read spilled notification", e);
+        }
+    }
+
+    private record SpilledItem(
+            INotificationSender<EmailNotification> emailSender,
+            Object key,
+            int lane,
+            Consumer<SendResult<EmailNotification>> onComplete,
+            long enqueuedAt
+    ) {
+    }
+}
@@ -0,0 +1,210 @@
+package org.emailclient.queues;
+
+import org.emailclient.EmailNotification;
+import org.emailclient.INotificationSender;
+import org.emailclient.SendResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+
+final class QueueItem {
+
+    private final static Logger sLogger = LoggerFactory.getLogger(QueueItem.class);
+
+    private final INotificationSender<EmailNotification> emailSender;
+    private final EmailNotification notification;
+    private final Object key;
+    private final long size;
+    private final int lane;
+    private final Consumer<SendResult<EmailNotification>> onComplete;
+    private final long enqueuedAt;
+    private final int retries;
+    private final long retryDelay;
+    private final long firstFailedAt;
+    private final boolean admitted;
+    private final PreRender render;
+
+    QueueItem(
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Object key,
+            long size,
+            int lane,
+            Consumer<SendResult<EmailNotification>> onComplete
+    ) {
+        this(emailSender, notification, key, size, lane, onComplete, System.nanoTime());
+    }
+
+    QueueItem(
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Object key,
+            long size,
+            int lane,
+            Consumer<SendResult<EmailNotification>> onComplete,
+            long enqueuedAt
+    ) {
+        this(emailSender, notification, key, size, lane, onComplete, enqueuedAt, null);
+    }
+
+    QueueItem(
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Object key,
+            long size,
+            int lane,
+            Consumer<SendResult<EmailNotification>> onComplete,
+            long enqueuedAt,
+            PreRender render
+    ) {
+        this(emailSender, notification, key, size, lane, onComplete, enqueuedAt, 0, 0, 0, false, render);
+    }
+
+    private QueueItem(
+            INotificationSender<EmailNotification> emailSender,
+            EmailNotification notification,
+            Object key,
+            long size,
+            int lane,
+            Consumer<SendResult<EmailNotification>> onComplete,
+            long enqueuedAt,
+            int retries,
+            long retryDelay,
+            long firstFailedAt,
+            boolean admitted,
+            PreRender render
+    ) {
+        this.emailSender = emailSender;
+        this.notification = notification;
+        this.key = key;
+        this.size = size;
+        this.lane = lane;
+        this.onComplete = onComplete;
+        this.enqueuedAt = enqueuedAt;
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+        this.firstFailedAt = firstFailedAt;
+        this.admitted = admitted;
+        this.render = render;
+    }
+
+    public INotificationSender<EmailNotification> getEmailSender() {
+        return emailSender;
+    }
+
+    public EmailNotification getNotification() {
+        return notification;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Index of the {@link QueueLane} the item waits in, 0 for a queue without lanes.
+     */
+    int getLane() {
+        return lane;
+    }
+
+    public Consumer<SendResult<EmailNotification>> getOnComplete() {
+        return onComplete;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the item was first added.
+     */
+    long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    /**
+     * Number of retries already scheduled for this notification.
+     */
+    int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Delay before the last retry in nanos, 0 before the first one.
+     */
+    long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * {@link System#nanoTime()} of the first failed send, 0 before it.
+     */
+    long getFirstFailedAt() {
+        return firstFailedAt;
+    }
+
+    /**
+     * The message rendered ahead of the send, null when the queue does not render or the sender cannot.
+     */
+    PreRender getRender() {
+        return render;
+    }
+
+    /**
+     * Copy for the next retry after {@code delay} nanos, keeping the original enqueue time.
+     */
+    QueueItem withRetry(final long delay, final long failedAt) {
+        return new QueueItem(
+                emailSender,
+                notification,
+                key,
+                size,
+                lane,
+                onComplete,
+                enqueuedAt,
+                retries + 1,
+                delay,
+                retries == 0 ? failedAt : firstFailedAt,
+                false,
+                render
+        );
+    }
+
+    /**
+     * True when a rate limit permit was already reserved for this attempt.
+     */
+    boolean isAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Copy that holds a rate limit permit and must not reserve another one.
+     */
+    QueueItem admitted() {
+        return new QueueItem(emailSender, notification, key, size, lane, onComplete, enqueuedAt, retries, retryDelay, firstFailedAt, true, render);
+    }
+
+    /**
+     * Completes an item that never reached the sender.
+     */
+    void complete(final SendResult<EmailNotification> result) {
+        complete(result, System.nanoTime());
+    }
+
+    /**
+     * @param sendStarted {@link System#nanoTime()} when the send started
+     */
+    void complete(final SendResult<EmailNotification> result, final long sendStarted) {
+
+        if (onComplete == null) {
+            return;
+        }
+
+        try {
+            onComplete.accept(result.withTiming(sendStarted - enqueuedAt, System.nanoTime() - sendStarted));
+        } catch (Throwable ex) {
+            sLogger.error("Exception in completion callback: ", ex);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.emailclient.queues;
+
+import java.time.Duration;
+
+/**
+ * Priority lane of an {@link EmailClientQueue}, for example {@code critical}, {@code normal} and {@code bulk}.
+ * <p>
+ * Shared workers serve the lanes in proportion to their weight, a lane that was not served for
+ * {@code maxWait} is served first. Reserved workers only serve their own lane, so a long bulk send can never hold
+ * up all workers. Each lane has its own bounds and overflow strategy.
+ */
+public final class QueueLane {
+
+    //the scheduler's stride is 2^20 / weight and must not round down to 0
+    static final int MAX_WEIGHT = 1 << 20;
+
+    private final String name;
+    private final int weight;
+    private final int reservedWorkers;
+    private final Duration maxWait;
+    private final int maxItems;
+    private final long maxBytes;
+    private final OverflowStrategy overflow;
+
+    private QueueLane(QueueLaneBuilder builder) {
+        this.name = builder.name;
+        this.weight = builder.weight;
+        this.reservedWorkers = builder.reservedWorkers;
+        this.maxWait = builder.maxWait;
+        this.maxItems = builder.maxItems;
+        this.maxBytes = builder.maxBytes;
+        this.overflow = builder.overflow;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getReservedWorkers() {
+        return reservedWorkers;
+    }
+
+    public Duration getMaxWait() {
+        return maxWait;
+    }
+
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public OverflowStrategy getOverflow() {
+        return overflow;
+    }
+
+    public static QueueLaneBuilder builder(String name) {
+        return new QueueLaneBuilder(name);
+    }
+
+    public static class QueueLaneBuilder {
+        private final String name;
+        private int weight = 1;
+        private int reservedWorkers;
+        private Duration maxWait;
+        private int maxItems = Integer.MAX_VALUE;
+        private long maxBytes = Long.MAX_VALUE;
+        private OverflowStrategy overflow = OverflowStrategy.REJECT;
+
+        private QueueLaneBuilder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Share of the shared workers relative to the other lanes, a lane of weight 8 is served 8 times as often
+         * as a lane of weight 1 while both have items. At most 2^20.
+         */
+        public QueueLaneBuilder withWeight(int weight) {
+            this.weight = weight;
+            return this;
+        }
+
+        /**
+         * Workers, taken from the queue's worker count, that only serve this lane.
+         */
+        public QueueLaneBuilder withReservedWorkers(int reservedWorkers) {
+            this.reservedWorkers = reservedWorkers;
+            return this;
+        }
+
+        /**
+         * Starvation bound, a lane with items that was not served for this long is served ahead of its weight.
+         * No bound by default.
+         */
+        public QueueLaneBuilder withMaxWait(Duration maxWait) {
+            this.maxWait = maxWait;
+            return this;
+        }
+
+        /**
+         * Maximum number of items queued in this lane, unbounded by default.
+         */
+        public QueueLaneBuilder withCapacity(int maxItems) {
+            this.maxItems = maxItems;
+            return this;
+        }
+
+        public QueueLaneBuilder withMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public QueueLaneBuilder withOverflow(OverflowStrategy overflow) {
+            this.overflow = overflow;
+            return this;
+        }
+
+        public QueueLane build() {
+
+            if (name == null || name.isBlank()) {
+                throw new IllegalArgumentException("name cannot be empty");
+            }
+            if (weight <= 0 || weight > MAX_WEIGHT) {
+                throw new IllegalArgumentException("weight must be between 1 and " + MAX_WEIGHT);
+            }
+            if (reservedWorkers < 0) {
+                throw new IllegalArgumentException("reservedWorkers cannot be negative");
+            }
+            if (maxWait != null && maxWait.isNegative()) {
+                throw new IllegalArgumentException("maxWait cannot be negative");
+            }
+            if (maxItems <= 0 || maxBytes <= 0) {
+                throw new IllegalArgumentException("capacity and maxBytes must be positive");
+            }
+            if (overflow == null) {
+                throw new IllegalArgumentException("overflow cannot be null");
+            }
+
+            return new QueueLane(this);
+        }
+    }
+}
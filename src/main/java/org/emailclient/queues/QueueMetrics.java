@@ -0,0 +1,14 @@
+package org.emailclient.queues;
+
+/**
+ * Point in time snapshot of an {@link EmailClientQueue}. Byte values are estimates of the heap held by the items.
+ */
+public record QueueMetrics(
+        int queuedItems,
+        long queuedBytes,
+        int spilledItems,
+        long spilledBytes,
+        long dropped,
+        long rejected
+) {
+}
@@ -0,0 +1,233 @@
+package org.emailclient.queues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for the delayed items of a queue: scheduled sends, retries and rate limit waits.
+ * <p>
+ * Scheduling only appends to a lock free queue, the ticker thread moves new tasks into their bucket on the next
+ * tick, so inserting is O(1) however many tasks are pending. Each tick runs the due tasks of one bucket, tasks that
+ * are one or more turns of the wheel away stay and count down their rounds. Tasks run on the ticker thread up to one
+ * tick late and must be short. The thread is started with the first task and parks while nothing is pending.
+ */
+final class TimingWheel implements AutoCloseable {
+
+    private final static Logger sLogger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final int WHEEL_SIZE = 4096;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final long tickNanos;
+    private final ThreadFactory threadFactory;
+    private final Entry[] buckets = new Entry[WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+
+    private final long startedAt = System.nanoTime();
+    private long tick;
+
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    TimingWheel(long tickNanos, ThreadFactory threadFactory) {
+        this.tickNanos = tickNanos;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @return false once the wheel is closed, the task is not run
+     */
+    boolean schedule(final Runnable task, final long delayNanos) {
+
+        if (closed) {
+            return false;
+        }
+
+        final Entry entry = new Entry(task, System.nanoTime() + Math.max(0, delayNanos));
+        added.add(entry);
+
+        //close() may have drained added before the entry got in, take it back unless close() already runs it
+        if (closed && added.remove(entry)) {
+            return false;
+        }
+
+        if (pending.getAndIncrement() == 0) {
+            wakeUp();
+        }
+
+        return true;
+    }
+
+    /**
+     * Tasks waiting for their time.
+     */
+    long size() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the ticker and runs every pending task on the calling thread, they see that their owner shut down.
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+
+        final Thread ticker = thread;
+
+        if (ticker != null) {
+            LockSupport.unpark(ticker);
+            try {
+                ticker.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final List<Runnable> remaining = new ArrayList<>();
+
+        synchronized (this) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                for (Entry entry = buckets[i]; entry != null; entry = entry.next) {
+                    remaining.add(entry.task);
+                }
+                buckets[i] = null;
+            }
+        }
+
+        for (Entry entry; (entry = added.poll()) != null; ) {
+            remaining.add(entry.task);
+        }
+
+        pending.addAndGet(-remaining.size());
+        remaining.forEach(TimingWheel::run);
+    }
+
+    private void wakeUp() {
+
+        Thread ticker = thread;
+
+        if (ticker == null) {
+            synchronized (this) {
+                ticker = thread;
+                if (ticker == null) {
+                    ticker = threadFactory.newThread(this::tick);
+                    ticker.setDaemon(true);
+                    thread = ticker;
+                    ticker.start();
+                    return;
+                }
+            }
+        }
+
+        LockSupport.unpark(ticker);
+    }
+
+    private void tick() {
+
+        while (!closed) {
+
+            if (pending.get() == 0) {
+                LockSupport.park(this);
+                //nothing is in the buckets, skip the ticks missed while parked
+                synchronized (this) {
+                    tick = currentTick();
+                }
+                continue;
+            }
+
+            final long deadline = startedAt + (tick + 1) * tickNanos;
+            final long wait = deadline - System.nanoTime();
+
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            synchronized (this) {
+                transferAdded();
+                expire();
+                tick++;
+            }
+        }
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startedAt) / tickNanos;
+    }
+
+    private void transferAdded() {
+
+        for (Entry entry; (entry = added.poll()) != null; ) {
+
+            //due on the first tick at or after the deadline, never on one already passed
+            final long due = Math.max(tick, ceilDiv(entry.deadline - startedAt, tickNanos) - 1);
+            final int bucket = (int) (due & MASK);
+
+            entry.rounds = (due - tick) / WHEEL_SIZE;
+            entry.next = buckets[bucket];
+            buckets[bucket] = entry;
+        }
+    }
+
+    private void expire() {
+
+        final int bucket = (int) (tick & MASK);
+
+        Entry previous = null;
+        Entry entry = buckets[bucket];
+
+        while (entry != null) {
+
+            final Entry next = entry.next;
+
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                previous = entry;
+            } else {
+                if (previous == null) {
+                    buckets[bucket] = next;
+                } else {
+                    previous.next = next;
+                }
+                pending.decrementAndGet();
+                run(entry.task);
+            }
+
+            entry = next;
+        }
+    }
+
+    private static long ceilDiv(final long x, final long y) {
+        return -Math.floorDiv(-x, y);
+    }
+
+    private static void run(final Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable ex) {
+            sLogger.error("Exception in delayed task: ", ex);
+        }
+    }
+
+    private static final class Entry {
+
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        Entry next;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
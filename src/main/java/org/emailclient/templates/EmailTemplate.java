@@ -0,0 +1,255 @@
+package org.emailclient.templates;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import org.emailclient.EmailAttachment;
+import org.emailclient.EmailNotificationException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Message layout compiled once and sent many times with different recipients and {@code ${name}} values.
+ * <p>
+ * Building the template parses the subject and body into fragments and encodes images, attachments and a body
+ * without placeholders into their final transfer encoding. Creating a message only renders the placeholders and
+ * wraps the shared encoded bytes, so per message cost no longer depends on the size of images and attachments.
+ * A template is immutable and can be used from many threads.
+ */
+public class EmailTemplate {
+
+    private final InternetAddress from;
+    private final TemplateText subject;
+    private final String encodedSubject;
+    private final TemplateText body;
+    private final boolean isHtml;
+    private final EncodedPart encodedBody;
+    private final List<EncodedPart> parts;
+
+    private EmailTemplate(EmailTemplateBuilder builder) throws MessagingException, IOException {
+
+        this.from = new InternetAddress(builder.fromEmail);
+        this.subject = TemplateText.parse(builder.subject);
+        this.encodedSubject = subject.isConstant() ? encodeSubject(builder.subject) : null;
+        this.body = TemplateText.parse(builder.body);
+        this.isHtml = builder.isHtml;
+
+        final boolean hasImages = builder.images != null && !builder.images.isEmpty();
+        final boolean hasAttachments = builder.attachments != null && !builder.attachments.isEmpty();
+
+        if (hasImages && !isHtml) {
+            throw new EmailNotificationException("Cannot create email with images without html body. Set isHtml = true.");
+        }
+
+        final List<EncodedPart> encoded = new ArrayList<>();
+
+        if (hasImages) {
+            for (Map.Entry<String, File> image : builder.images.entrySet()) {
+                encoded.add(encodeImage(image.getKey(), image.getValue()));
+            }
+        }
+
+        if (hasAttachments) {
+            for (EmailAttachment attachment : builder.attachments) {
+                encoded.add(encodeAttachment(attachment));
+            }
+        }
+
+        this.parts = List.copyOf(encoded);
+        this.encodedBody = !parts.isEmpty() && body.isConstant() ? encodeBody(body.render(null)) : null;
+    }
+
+    /**
+     * Names of the placeholders in subject and body.
+     */
+    public Set<String> getVariables() {
+        final Set<String> names = new LinkedHashSet<>(subject.getNames());
+        names.addAll(body.getNames());
+        return names;
+    }
+
+    /**
+     * @throws EmailNotificationException when a placeholder has no value
+     */
+    public MimeMessage createMessage(final Session session, final TemplateMessage templateMessage) throws MessagingException {
+
+        final MimeMessage message = new MimeMessage(session);
+
+        message.setFrom(from);
+
+        setRecipients(message, templateMessage.toRecipients(), Message.RecipientType.TO);
+        setRecipients(message, templateMessage.ccRecipients(), Message.RecipientType.CC);
+        setRecipients(message, templateMessage.bccRecipients(), Message.RecipientType.BCC);
+
+        message.setHeader(
+                "Subject",
+                encodedSubject != null ? encodedSubject : encodeSubject(subject.render(templateMessage.variables()))
+        );
+
+        if (parts.isEmpty()) {
+            setText(message, body.render(templateMessage.variables()));
+            return message;
+        }
+
+        final MimeMultipart multipart = new MimeMultipart();
+
+        if (encodedBody != null) {
+            multipart.addBodyPart(encodedBody.newPart());
+        } else {
+            final MimeBodyPart bodyPart = new MimeBodyPart();
+            setText(bodyPart, body.render(templateMessage.variables()));
+            multipart.addBodyPart(bodyPart);
+        }
+
+        for (EncodedPart part : parts) {
+            multipart.addBodyPart(part.newPart());
+        }
+
+        message.setContent(multipart);
+
+        return message;
+    }
+
+    private void setText(final MimeMessage message, final String text) throws MessagingException {
+        if (isHtml) {
+            message.setContent(text, "text/html; charset=utf-8");
+        } else {
+            message.setText(text);
+        }
+    }
+
+    private void setText(final MimeBodyPart part, final String text) throws MessagingException {
+        if (isHtml) {
+            part.setContent(text, "text/html; charset=utf-8");
+        } else {
+            part.setText(text);
+        }
+    }
+
+    private EncodedPart encodeBody(final String text) throws MessagingException, IOException {
+        final EncodedPart.CompilingBodyPart part = new EncodedPart.CompilingBodyPart();
+        setText(part, text);
+        return EncodedPart.encode(part);
+    }
+
+    private static EncodedPart encodeImage(final String contentId, final File file) throws MessagingException, IOException {
+        final EncodedPart.CompilingBodyPart part = new EncodedPart.CompilingBodyPart();
+        part.setHeader("Content-ID", "<" + contentId + ">");
+        part.setDisposition(MimeBodyPart.INLINE);
+        part.attachFile(file);
+        return EncodedPart.encode(part);
+    }
+
+    private static EncodedPart encodeAttachment(final EmailAttachment attachment) throws MessagingException, IOException {
+        final EncodedPart.CompilingBodyPart part = new EncodedPart.CompilingBodyPart();
+        part.setDataHandler(new DataHandler(attachment.dataSource()));
+        part.setFileName(attachment.fileName());
+        return EncodedPart.encode(part);
+    }
+
+    private static String encodeSubject(final String subject) throws MessagingException {
+        try {
+            return MimeUtility.fold(9, MimeUtility.encodeText(subject, "UTF-8", null));
+        } catch (UnsupportedEncodingException e) {
+            throw new MessagingException("Encoding error", e);
+        }
+    }
+
+    private static void setRecipients(final MimeMessage message, final Collection<String> recipients, final Message.RecipientType type) throws MessagingException {
+
+        if (recipients == null) {
+            return;
+        }
+
+        for (String recipient : recipients) {
+            message.addRecipient(type, new InternetAddress(recipient));
+        }
+    }
+
+    public static EmailTemplateBuilder builder() {
+        return new EmailTemplateBuilder();
+    }
+
+    public static class EmailTemplateBuilder {
+        private String fromEmail;
+        private String subject;
+        private String body;
+        private boolean isHtml;
+        private Collection<EmailAttachment> attachments;
+        private Map<String, File> images;
+
+        public EmailTemplateBuilder setFromEmail(String fromEmail) {
+            this.fromEmail = fromEmail;
+            return this;
+        }
+
+        /**
+         * May contain {@code ${name}} placeholders.
+         */
+        public EmailTemplateBuilder setSubject(String subject) {
+            this.subject = subject;
+            return this;
+        }
+
+        /**
+         * May contain {@code ${name}} placeholders, values are inserted without escaping.
+         */
+        public EmailTemplateBuilder setBody(String body) {
+            this.body = body;
+            return this;
+        }
+
+        public EmailTemplateBuilder setIsHtml(boolean isHtml) {
+            this.isHtml = isHtml;
+            return this;
+        }
+
+        public EmailTemplateBuilder setAttachments(Collection<EmailAttachment> attachments) {
+            this.attachments = attachments;
+            return this;
+        }
+
+        public EmailTemplateBuilder setImages(Map<String, File> images) {
+            this.images = images;
+            return this;
+        }
+
+        /**
+         * Compiles the template, images are read and every static part is encoded here.
+         *
+         * @throws EmailNotificationException when a part cannot be read or encoded
+         */
+        public EmailTemplate build() {
+
+            if (fromEmail == null || fromEmail.isBlank()) {
+                throw new IllegalArgumentException("fromEmail cannot be null or blank");
+            }
+            if (subject == null || subject.isBlank()) {
+                throw new IllegalArgumentException("subject cannot be null or blank");
+            }
+            if (body == null || body.isBlank()) {
+                throw new IllegalArgumentException("body cannot be null or blank");
+            }
+
+            try {
+                return new EmailTemplate(this);
+            } catch (MessagingException | IOException e) {
+                throw new EmailNotificationException(e);
+            }
+        }
+    }
+}
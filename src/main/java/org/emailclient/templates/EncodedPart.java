@@ -0,0 +1,181 @@
+package org.emailclient.templates;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.SharedInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * A body part that was encoded once, kept as its header lines and its already transfer-encoded content.
+ * <p>
+ * {@link #newPart(String...)} wraps the shared bytes in a fresh {@link MimeBodyPart} per message. Jakarta Mail copies
+ * the content of such a part to the output as it is, so nothing is encoded again when the message is written.
+ * The content is either a heap array or a direct buffer, a direct buffer is streamed without copying it to the heap.
+ */
+final class EncodedPart {
+
+    private final String[] headerLines;
+    private final byte[] content;
+    private final ByteBuffer directContent;
+
+    private EncodedPart(String[] headerLines, byte[] content, ByteBuffer directContent) {
+        this.headerLines = headerLines;
+        this.content = content;
+        this.directContent = directContent;
+    }
+
+    /**
+     * Encodes a part that was built like any other body part.
+     */
+    static EncodedPart encode(final CompilingBodyPart part) throws MessagingException, IOException {
+        return encode(part, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param offHeapThreshold encoded content of at least this many bytes is moved to a direct buffer
+     */
+    static EncodedPart encode(final CompilingBodyPart part, final int offHeapThreshold) throws MessagingException, IOException {
+
+        part.updateHeaders();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        part.writeTo(bytes);
+
+        final InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        final InternetHeaders headers = new InternetHeaders(in);
+
+        final List<String> lines = new ArrayList<>();
+        final Enumeration<String> allLines = headers.getAllHeaderLines();
+        while (allLines.hasMoreElements()) {
+            lines.add(allLines.nextElement());
+        }
+
+        final byte[] content = in.readAllBytes();
+
+        if (content.length < offHeapThreshold) {
+            return new EncodedPart(lines.toArray(new String[0]), content, null);
+        }
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+        direct.put(content).flip();
+
+        return new EncodedPart(lines.toArray(new String[0]), null, direct.asReadOnlyBuffer());
+    }
+
+    /**
+     * @param extraHeaderLines headers that differ per use of the part, like a Content-ID
+     */
+    MimeBodyPart newPart(final String... extraHeaderLines) throws MessagingException {
+
+        final InternetHeaders headers = new InternetHeaders();
+
+        for (String line : headerLines) {
+            headers.addHeaderLine(line);
+        }
+        for (String line : extraHeaderLines) {
+            headers.addHeaderLine(line);
+        }
+
+        if (content != null) {
+            return new MimeBodyPart(headers, content);
+        }
+
+        return new DirectBodyPart(headers, directContent);
+    }
+
+    /**
+     * Size of the encoded content in bytes.
+     */
+    int size() {
+        return content != null ? content.length : directContent.capacity();
+    }
+
+    boolean isOffHeap() {
+        return directContent != null;
+    }
+
+    /**
+     * Exposes {@link MimeBodyPart#updateHeaders()} so a part can be encoded outside of a message.
+     */
+    static final class CompilingBodyPart extends MimeBodyPart {
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            super.updateHeaders();
+        }
+    }
+
+    /**
+     * Part whose encoded content is read from a direct buffer, Jakarta Mail streams a {@link SharedInputStream}
+     * content the same way it copies a byte array content.
+     */
+    private static final class DirectBodyPart extends MimeBodyPart {
+
+        DirectBodyPart(final InternetHeaders headers, final ByteBuffer content) {
+            this.headers = headers;
+            this.contentStream = new BufferInputStream(content.duplicate());
+        }
+    }
+
+    private static final class BufferInputStream extends InputStream implements SharedInputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long getPosition() {
+            return buffer.position();
+        }
+
+        @Override
+        public InputStream newStream(final long start, final long end) {
+
+            final ByteBuffer stream = buffer.duplicate();
+            stream.limit(end == -1 ? buffer.limit() : (int) end);
+            stream.position((int) start);
+
+            return new BufferInputStream(stream.slice());
+        }
+    }
+}
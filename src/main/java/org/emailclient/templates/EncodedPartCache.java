@@ -0,0 +1,223 @@
+package org.emailclient.templates;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+import org.emailclient.AttachmentSource;
+import org.emailclient.EmailAttachment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encoded inline images and attachments shared across messages, so an asset that is sent again is not read and
+ * base64 encoded again. Share one instance between every client that sends the same assets.
+ * <p>
+ * Images and attachments read from a path are keyed by path, modification time and size, a file that changed on
+ * disk is encoded again. In memory attachments are keyed by file name, mime type and the SHA-256 of their content.
+ * The least recently used parts are evicted once the encoded size exceeds {@code maxBytes}, a part larger than that
+ * is encoded for the message but not kept.
+ * Parts of at least {@code offHeapThreshold} encoded bytes are kept in direct memory, outside of the heap.
+ */
+public class EncodedPartCache {
+
+    private final long maxBytes;
+    private final int offHeapThreshold;
+
+    private final LinkedHashMap<Object, EncodedPart> parts = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long offHeapBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public EncodedPartCache(long maxBytes, int offHeapThreshold) {
+        this.maxBytes = maxBytes;
+        this.offHeapThreshold = offHeapThreshold;
+    }
+
+    /**
+     * Inline image for {@code cid:contentId} references in an html body.
+     */
+    public MimeBodyPart imagePart(final String contentId, final File file) throws MessagingException, IOException {
+
+        final FileKey key = fileKey(file);
+
+        EncodedPart part = get(key);
+
+        if (part == null) {
+            final EncodedPart.CompilingBodyPart imagePart = new EncodedPart.CompilingBodyPart();
+            imagePart.setDisposition(MimeBodyPart.INLINE);
+            imagePart.attachFile(file);
+            part = put(key, EncodedPart.encode(imagePart, offHeapThreshold));
+        }
+
+        return part.newPart("Content-ID: <" + contentId + ">");
+    }
+
+    /**
+     * Attachments read from a stream are not cached, their part streams the content when the message is written.
+     */
+    public MimeBodyPart attachmentPart(final EmailAttachment attachment) throws MessagingException, IOException {
+
+        final Object key;
+
+        if (attachment.source() instanceof AttachmentSource.InMemory inMemory) {
+            key = new ContentKey(attachment.fileName(), attachment.mimeType(), digest(inMemory.content()));
+        } else if (attachment.source() instanceof AttachmentSource.FromPath fromPath) {
+            key = new PathKey(attachment.fileName(), attachment.mimeType(), fileKey(fromPath.path().toFile()));
+        } else {
+            final MimeBodyPart streamed = new MimeBodyPart();
+            streamed.setDataHandler(new DataHandler(attachment.dataSource()));
+            streamed.setFileName(attachment.fileName());
+            return streamed;
+        }
+
+        EncodedPart part = get(key);
+
+        if (part == null) {
+            final EncodedPart.CompilingBodyPart attachmentPart = new EncodedPart.CompilingBodyPart();
+            attachmentPart.setDataHandler(new DataHandler(attachment.dataSource()));
+            attachmentPart.setFileName(attachment.fileName());
+            part = put(key, EncodedPart.encode(attachmentPart, offHeapThreshold));
+        }
+
+        return part.newPart();
+    }
+
+    public synchronized EncodedPartCacheMetrics getMetrics() {
+        return new EncodedPartCacheMetrics(
+                hits.sum(),
+                misses.sum(),
+                evictions.sum(),
+                parts.size(),
+                bytes,
+                offHeapBytes
+        );
+    }
+
+    public synchronized void clear() {
+        parts.clear();
+        bytes = 0;
+        offHeapBytes = 0;
+    }
+
+    private synchronized EncodedPart get(final Object key) {
+
+        final EncodedPart part = parts.get(key);
+
+        if (part == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return part;
+    }
+
+    /**
+     * Encoding happens outside of the lock, when two threads missed the same key the first one stored is kept.
+     */
+    private synchronized EncodedPart put(final Object key, final EncodedPart part) {
+
+        if (part.size() > maxBytes) {
+            return part;
+        }
+
+        final EncodedPart existing = parts.putIfAbsent(key, part);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        add(part, 1);
+
+        final Iterator<EncodedPart> eldest = parts.values().iterator();
+
+        while (bytes > maxBytes) {
+            add(eldest.next(), -1);
+            eldest.remove();
+            evictions.increment();
+        }
+
+        return part;
+    }
+
+    private void add(final EncodedPart part, final int sign) {
+        bytes += sign * (long) part.size();
+        if (part.isOffHeap()) {
+            offHeapBytes += sign * (long) part.size();
+        }
+    }
+
+    private static FileKey fileKey(final File file) throws IOException {
+
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        return new FileKey(file.getAbsolutePath(), attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    private static String digest(final byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static EncodedPartCacheBuilder builder() {
+        return new EncodedPartCacheBuilder();
+    }
+
+    public static class EncodedPartCacheBuilder {
+        private long maxBytes = 64L * 1024 * 1024;
+        private int offHeapThreshold = Integer.MAX_VALUE;
+
+        /**
+         * Upper bound of the encoded size of all cached parts, 64 MB by default.
+         */
+        public EncodedPartCacheBuilder withMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Keeps parts of at least {@code offHeapThreshold} encoded bytes in direct memory, by default every part is
+         * kept on the heap. Direct memory is limited by {@code -XX:MaxDirectMemorySize}.
+         */
+        public EncodedPartCacheBuilder withOffHeapThreshold(int offHeapThreshold) {
+            this.offHeapThreshold = offHeapThreshold;
+            return this;
+        }
+
+        public EncodedPartCache build() {
+
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes must be positive");
+            }
+            if (offHeapThreshold <= 0) {
+                throw new IllegalArgumentException("offHeapThreshold must be positive");
+            }
+
+            return new EncodedPartCache(maxBytes, offHeapThreshold);
+        }
+    }
+
+    private record FileKey(String path, long lastModified, long size) {
+    }
+
+    private record ContentKey(String fileName, String mimeType, String sha256) {
+    }
+
+    private record PathKey(String fileName, String mimeType, FileKey file) {
+    }
+}
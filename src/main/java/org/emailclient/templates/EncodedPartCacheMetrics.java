@@ -0,0 +1,22 @@
+package org.emailclient.templates;
+
+/**
+ * Point in time snapshot of an {@link EncodedPartCache}.
+ *
+ * @param bytes        encoded size of all cached parts
+ * @param offHeapBytes share of {@code bytes} kept in direct memory
+ */
+public record EncodedPartCacheMetrics(
+        long hits,
+        long misses,
+        long evictions,
+        int entries,
+        long bytes,
+        long offHeapBytes
+) {
+
+    public double hitRate() {
+        final long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+}
@@ -0,0 +1,19 @@
+package org.emailclient.templates;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Recipients and placeholder values of one message sent from an {@link EmailTemplate}.
+ */
+public record TemplateMessage(
+        Collection<String> toRecipients,
+        Collection<String> ccRecipients,
+        Collection<String> bccRecipients,
+        Map<String, ?> variables
+) {
+
+    public static TemplateMessage to(Collection<String> toRecipients, Map<String, ?> variables) {
+        return new TemplateMessage(toRecipients, null, null, variables);
+    }
+}
@@ -0,0 +1,90 @@
+package org.emailclient.templates;
+
+import org.emailclient.EmailNotificationException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Text split once into literal fragments and {@code ${name}} placeholders.
+ */
+final class TemplateText {
+
+    private final String[] literals;
+    private final String[] names;
+    private final int literalLength;
+
+    private TemplateText(String[] literals, String[] names) {
+        this.literals = literals;
+        this.names = names;
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    static TemplateText parse(final String text) {
+
+        final List<String> literals = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+
+        int position = 0;
+
+        while (true) {
+
+            final int start = text.indexOf("${", position);
+            final int end = start < 0 ? -1 : text.indexOf('}', start + 2);
+
+            if (end < 0) {
+                literals.add(text.substring(position));
+                break;
+            }
+
+            literals.add(text.substring(position, start));
+            names.add(text.substring(start + 2, end).trim());
+            position = end + 1;
+        }
+
+        return new TemplateText(literals.toArray(new String[0]), names.toArray(new String[0]));
+    }
+
+    boolean isConstant() {
+        return names.length == 0;
+    }
+
+    Set<String> getNames() {
+        return new LinkedHashSet<>(List.of(names));
+    }
+
+    /**
+     * Values are inserted as they are, escaping for HTML is up to the caller.
+     */
+    String render(final Map<String, ?> variables) {
+
+        if (names.length == 0) {
+            return literals[0];
+        }
+
+        final StringBuilder text = new StringBuilder(literalLength + 16 * names.length);
+
+        for (int i = 0; i < names.length; i++) {
+
+            text.append(literals[i]);
+
+            final Object value = variables == null ? null : variables.get(names[i]);
+
+            if (value == null) {
+                throw new EmailNotificationException("Missing template variable " + names[i]);
+            }
+
+            text.append(value);
+        }
+
+        return text.append(literals[names.length]).toString();
+    }
+}
@@ -0,0 +1,91 @@
+package org.emailclient.transports;
+
+import com.sun.mail.smtp.SMTPTransport;
+import jakarta.mail.MessagingException;
+import jakarta.mail.NoSuchProviderException;
+import jakarta.mail.Provider;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.URLName;
+
+/**
+ * {@link SMTPTransport} that uses SMTP PIPELINING (RFC 2920) when the server advertises it.
+ * <p>
+ * Jakarta Mail waits for the MAIL FROM reply before sending the first RCPT TO. This transport defers reading the
+ * MAIL FROM reply until the first RCPT TO has been written, so both commands share one round trip. All other
+ * commands behave exactly like {@link SMTPTransport}. A rejected MAIL FROM leaves an unread reply on the connection,
+ * so the transport closes itself before reporting it.
+ */
+public class PipeliningSMTPTransport extends SMTPTransport {
+
+    public static final Provider PROVIDER = new Provider(
+            Provider.Type.TRANSPORT,
+            "smtp",
+            PipeliningSMTPTransport.class.getName(),
+            "org.emailclient",
+            null
+    );
+
+    private boolean deferMailFromReply;
+    private boolean mailFromReplyPending;
+
+    public PipeliningSMTPTransport(Session session, URLName urlname) {
+        super(session, urlname);
+    }
+
+    /**
+     * Opens a pipelining transport for the session, or the session's default transport when it is not plain smtp.
+     */
+    public static Transport open(Session session) throws NoSuchProviderException {
+
+        final String protocol = session.getProperty("mail.transport.protocol");
+
+        if (protocol != null && !"smtp".equals(protocol)) {
+            return session.getTransport();
+        }
+
+        return session.getTransport(PROVIDER);
+    }
+
+    @Override
+    protected void sendCommand(String cmd) throws MessagingException {
+
+        super.sendCommand(cmd);
+
+        if (mailFromReplyPending) {
+
+            mailFromReplyPending = false;
+
+            //the RCPT TO is on the wire, now collect the MAIL FROM reply
+            final int code = super.readServerResponse();
+
+            if (code != 250) {
+                final String response = getLastServerResponse();
+                closeQuietly();
+                throw new MessagingException("MAIL FROM rejected: " + response);
+            }
+        }
+
+        deferMailFromReply = cmd.startsWith("MAIL FROM:") && supportsExtension("PIPELINING");
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (MessagingException ignored) {
+            //the connection is being dropped anyway
+        }
+    }
+
+    @Override
+    protected int readServerResponse() throws MessagingException {
+
+        if (deferMailFromReply) {
+            deferMailFromReply = false;
+            mailFromReplyPending = true;
+            return 250;
+        }
+
+        return super.readServerResponse();
+    }
+}
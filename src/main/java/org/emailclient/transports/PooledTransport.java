@@ -0,0 +1,36 @@
+package org.emailclient.transports;
+
+import jakarta.mail.Transport;
+
+/**
+ * A connected {@link Transport} owned by a {@link TransportPool}. Borrowers must hand it back with
+ * {@link TransportPool#release(PooledTransport, boolean)} and never close it themselves.
+ */
+public class PooledTransport {
+
+    private final Transport transport;
+    private final long createdAt;
+    private volatile long lastUsed;
+
+    PooledTransport(Transport transport) {
+        this.transport = transport;
+        this.createdAt = System.nanoTime();
+        this.lastUsed = createdAt;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        this.lastUsed = System.nanoTime();
+    }
+}
@@ -0,0 +1,311 @@
+package org.emailclient.transports;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps up to {@code maxSize} connected and authenticated {@link Transport}s open for one {@link Session}
+ * so consecutive sends skip the TCP connect, TLS handshake, EHLO and AUTH.
+ * <p>
+ * Idle transports are reused most recently used first, checked with NOOP once they have been idle longer than
+ * {@code validateAfter} and closed once they have been idle longer than {@code maxIdle}.
+ */
+public class TransportPool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransportPool.class);
+
+    private final Session session;
+    private final int maxSize;
+    private final long maxIdleNanos;
+    private final long validateAfterNanos;
+    private final long borrowTimeoutNanos;
+    private final boolean pipelining;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public TransportPool(
+            Session session,
+            int maxSize,
+            Duration maxIdle,
+            Duration validateAfter,
+            Duration borrowTimeout,
+            Duration evictionInterval,
+            boolean pipelining
+    ) {
+        this.session = session;
+        this.maxSize = maxSize;
+        this.maxIdleNanos = maxIdle.toNanos();
+        this.validateAfterNanos = validateAfter.toNanos();
+        this.borrowTimeoutNanos = borrowTimeout.toNanos();
+        this.permits = new Semaphore(maxSize, true);
+        this.pipelining = pipelining;
+
+        if (evictionInterval == null || evictionInterval.isZero()) {
+            this.evictor = null;
+        } else {
+            this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "transport-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.evictor.scheduleWithFixedDelay(
+                    this::evictIdle,
+                    evictionInterval.toNanos(),
+                    evictionInterval.toNanos(),
+                    TimeUnit.NANOSECONDS
+            );
+        }
+    }
+
+    public PooledTransport borrow() throws MessagingException {
+
+        if (closed) {
+            throw new IllegalStateException("Transport pool is closed");
+        }
+
+        final long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new MessagingException("Timed out waiting for a pooled transport");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a pooled transport", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+
+            PooledTransport transport;
+            while ((transport = idle.pollFirst()) != null) {
+
+                if (isUsable(transport)) {
+                    transport.touch();
+                    return transport;
+                }
+
+                evicted.increment();
+                destroy(transport);
+            }
+
+            return create();
+
+        } catch (MessagingException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param broken true when the last command on the transport failed, the transport is then closed instead of reused
+     */
+    public void release(PooledTransport transport, boolean broken) {
+
+        try {
+            if (broken || closed) {
+                destroy(transport);
+            } else {
+                transport.touch();
+                idle.offerFirst(transport);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes every idle transport that has not been used for longer than {@code maxIdle}.
+     */
+    public void evictIdle() {
+
+        final long now = System.nanoTime();
+
+        for (PooledTransport transport : new ArrayList<>(idle)) {
+            if (now - transport.getLastUsed() > maxIdleNanos && idle.removeFirstOccurrence(transport)) {
+                evicted.increment();
+                destroy(transport);
+            }
+        }
+    }
+
+    /**
+     * True when no transport is open and no borrow is in progress.
+     */
+    public boolean isUnused() {
+        return open.get() == 0 && permits.availablePermits() == maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public TransportPoolMetrics getMetrics() {
+        final int openNow = open.get();
+        final int idleNow = idle.size();
+        return new TransportPoolMetrics(
+                maxSize,
+                openNow,
+                idleNow,
+                Math.max(0, openNow - idleNow),
+                borrows.sum(),
+                created.sum(),
+                evicted.sum(),
+                totalWaitNanos.sum(),
+                maxWaitNanos.get()
+        );
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+
+        final List<PooledTransport> drained = new ArrayList<>();
+        idle.drainTo(drained);
+        drained.forEach(this::destroy);
+    }
+
+    private boolean isUsable(PooledTransport transport) {
+
+        final long idleFor = System.nanoTime() - transport.getLastUsed();
+
+        if (idleFor > maxIdleNanos) {
+            return false;
+        }
+
+        if (idleFor < validateAfterNanos) {
+            return true;
+        }
+
+        //SMTPTransport.isConnected issues a NOOP
+        return transport.getTransport().isConnected();
+    }
+
+    private PooledTransport create() throws MessagingException {
+
+        final Transport transport = pipelining ? PipeliningSMTPTransport.open(session) : session.getTransport();
+        transport.connect();
+
+        open.incrementAndGet();
+        created.increment();
+
+        logger.debug("Opened pooled transport, open={}", open.get());
+
+        return new PooledTransport(transport);
+    }
+
+    private void destroy(PooledTransport transport) {
+
+        open.decrementAndGet();
+
+        try {
+            transport.getTransport().close();
+        } catch (MessagingException ex) {
+            logger.debug("Error closing pooled transport", ex);
+        }
+    }
+
+    private void recordWait(long waited) {
+
+        borrows.increment();
+        totalWaitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+
+    public static TransportPoolBuilder builder(Session session) {
+        return new TransportPoolBuilder(session);
+    }
+
+    public static class TransportPoolBuilder {
+        private final Session session;
+        private int maxSize = 4;
+        private Duration maxIdle = Duration.ofMinutes(5);
+        private Duration validateAfter = Duration.ofSeconds(30);
+        private Duration borrowTimeout = Duration.ofSeconds(30);
+        private Duration evictionInterval = Duration.ofMinutes(1);
+        private boolean pipelining = true;
+
+        private TransportPoolBuilder(Session session) {
+            this.session = session;
+        }
+
+        public TransportPoolBuilder withMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public TransportPoolBuilder withMaxIdle(Duration maxIdle) {
+            this.maxIdle = maxIdle;
+            return this;
+        }
+
+        public TransportPoolBuilder withValidateAfter(Duration validateAfter) {
+            this.validateAfter = validateAfter;
+            return this;
+        }
+
+        public TransportPoolBuilder withBorrowTimeout(Duration borrowTimeout) {
+            this.borrowTimeout = borrowTimeout;
+            return this;
+        }
+
+        public TransportPoolBuilder withEvictionInterval(Duration evictionInterval) {
+            this.evictionInterval = evictionInterval;
+            return this;
+        }
+
+        public TransportPoolBuilder withPipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        public TransportPool build() {
+
+            if (session == null) {
+                throw new IllegalArgumentException("session cannot be null");
+            }
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize must be positive");
+            }
+            if (maxIdle == null || validateAfter == null || borrowTimeout == null) {
+                throw new IllegalArgumentException("maxIdle, validateAfter and borrowTimeout cannot be null");
+            }
+
+            return new TransportPool(session, maxSize, maxIdle, validateAfter, borrowTimeout, evictionInterval, pipelining);
+        }
+    }
+}
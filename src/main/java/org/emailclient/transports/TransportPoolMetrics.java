@@ -0,0 +1,30 @@
+package org.emailclient.transports;
+
+import java.time.Duration;
+
+/**
+ * Point in time snapshot of a {@link TransportPool}.
+ */
+public record TransportPoolMetrics(
+        int maxSize,
+        int open,
+        int idle,
+        int active,
+        long borrows,
+        long created,
+        long evicted,
+        long totalWaitNanos,
+        long maxWaitNanos
+) {
+
+    public Duration averageWait() {
+        if (borrows == 0) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(totalWaitNanos / borrows);
+    }
+
+    public Duration maxWait() {
+        return Duration.ofNanos(maxWaitNanos);
+    }
+}
@@ -0,0 +1,164 @@
+package org.emailclient;
+
+import jakarta.mail.Session;
+import org.emailclient.direct.DirectDeliveryClient;
+import org.emailclient.direct.DirectDeliveryException;
+import org.emailclient.direct.DirectDeliveryMetrics;
+import org.emailclient.direct.IMxResolver;
+import org.emailclient.direct.MxLookup;
+import org.emailclient.direct.MxRecord;
+import org.emailclient.direct.PartialDeliveryException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link DirectDeliveryClient} against {@link FakeSmtpServer}s standing in for the exchangers of two domains.
+ */
+class DirectDeliveryTest {
+
+    @Test
+    void testDeliversEachDomainInOneTransaction() throws Exception {
+
+        final int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+
+        try (FakeSmtpServer alpha = FakeSmtpServer.builder().start();
+             FakeSmtpServer beta = FakeSmtpServer.builder().start()) {
+
+            final AtomicInteger lookups = new AtomicInteger();
+            final Map<String, MxLookup> zone = Map.of(
+                    "alpha.example", new MxLookup(List.of(new MxRecord("127.0.0.1", alpha.getPort(), 10)), Duration.ofMinutes(5)),
+                    //the preferred exchanger is down
+                    "beta.example", new MxLookup(List.of(
+                            new MxRecord("127.0.0.1", deadPort, 5),
+                            new MxRecord("127.0.0.1", beta.getPort(), 10)
+                    ), Duration.ofMinutes(5))
+            );
+            final IMxResolver resolver = domain -> {
+                lookups.incrementAndGet();
+                final MxLookup lookup = zone.get(domain);
+                if (lookup == null) {
+                    throw new IOException("NXDOMAIN " + domain);
+                }
+                return lookup;
+            };
+
+            try (DirectDeliveryClient client = DirectDeliveryClient.builder(Session.getInstance(new Properties()))
+                    .withResolver(resolver)
+                    .withBorrowTimeout(Duration.ofSeconds(2))
+                    .build()) {
+
+                final EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                        .setFromEmail("sender@origin.example")
+                        .setSubject("Direct")
+                        .setBody("Direct delivery")
+                        .setToRecipients(List.of("ann@alpha.example", "bob@Alpha.example"))
+                        .setCcRecipients(List.of("cid@beta.example"))
+                        .setBccRecipients(List.of("dan@beta.example"))
+                        .build();
+
+                assertTrue(client.send(notification));
+                assertTrue(client.send(notification));
+
+                assertEquals(2, alpha.getMessages());
+                assertEquals(4, alpha.getRecipients());
+                assertEquals(2, beta.getMessages());
+                assertEquals(4, beta.getRecipients());
+
+                //one connection per exchanger, reused by the second send
+                assertEquals(1, alpha.getConnections());
+                assertEquals(1, beta.getConnections());
+
+                final SendResult<EmailNotification> partial = client.sendBatch(List.of(
+                        new EmailNotification.EmailNotificationBuilder()
+                                .setFromEmail("sender@origin.example")
+                                .setSubject("Partial")
+                                .setBody("Partial")
+                                .setToRecipients(List.of("ann@alpha.example", "eve@missing.example"))
+                                .setBccRecipients(List.of("fay@Missing.example"))
+                                .build()
+                )).get(0);
+
+                assertFalse(partial.success());
+                //a retry policy for EmailNotificationException must not send to alpha.example again
+                assertFalse(partial.error() instanceof EmailNotificationException);
+                final PartialDeliveryException error = assertInstanceOf(PartialDeliveryException.class, partial.error());
+                assertEquals(List.of("missing.example"), List.copyOf(error.getFailedDomains().keySet()));
+                assertEquals(List.of("eve@missing.example"), List.copyOf(error.getUndelivered().getToRecipients()));
+                assertEquals(List.of("fay@Missing.example"), List.copyOf(error.getUndelivered().getBccRecipients()));
+                assertEquals("Partial", error.getUndelivered().getSubject());
+                assertEquals(3, alpha.getMessages());
+
+                final DirectDeliveryException failed = assertInstanceOf(
+                        DirectDeliveryException.class,
+                        client.sendBatch(List.of(error.getUndelivered())).get(0).error()
+                );
+                assertEquals(List.of("missing.example"), List.copyOf(failed.getFailedDomains().keySet()));
+
+                final DirectDeliveryMetrics metrics = client.getMetrics();
+                assertEquals(3, lookups.get());
+                assertEquals(3, metrics.mxLookups());
+                assertEquals(1, metrics.mxFailures());
+                assertTrue(metrics.mxCacheHits() >= 3);
+                assertEquals(3, metrics.destinations());
+            }
+        }
+    }
+
+    @Test
+    void testIdleDestinationsAreDropped() throws Exception {
+
+        try (FakeSmtpServer alpha = FakeSmtpServer.builder().start()) {
+
+            final IMxResolver resolver = domain -> new MxLookup(
+                    List.of(new MxRecord("127.0.0.1", alpha.getPort(), 10)),
+                    Duration.ofMillis(50)
+            );
+
+            try (DirectDeliveryClient client = DirectDeliveryClient.builder(Session.getInstance(new Properties()))
+                    .withResolver(resolver)
+                    .withMaxIdle(Duration.ofMillis(100))
+                    .build()) {
+
+                final EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                        .setFromEmail("sender@origin.example")
+                        .setSubject("Idle")
+                        .setBody("Idle")
+                        .setToRecipients(List.of("ann@alpha.example"))
+                        .build();
+
+                assertTrue(client.send(notification));
+                assertEquals(1, client.getMetrics().destinations());
+
+                for (int i = 0; i < 50 && client.getMetrics().destinations() > 0; i++) {
+                    Thread.sleep(50);
+                }
+
+                DirectDeliveryMetrics metrics = client.getMetrics();
+                assertEquals(0, metrics.domains());
+                assertEquals(0, metrics.destinations());
+                assertEquals(1, metrics.connections());
+
+                assertTrue(client.send(notification));
+                metrics = client.getMetrics();
+                assertEquals(1, metrics.destinations());
+                assertEquals(2, metrics.connections());
+                assertEquals(2, alpha.getMessages());
+            }
+        }
+    }
+}
@@ -1,12 +1,46 @@
 package org.emailclient;
 
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import org.emailclient.metrics.IMetricsRecorder;
+import org.emailclient.metrics.Metrics;
+import org.emailclient.metrics.SimpleMetricsRecorder;
+import org.emailclient.policies.RetryPolicy;
+import org.emailclient.policies.TokenBucketRateLimitPolicy;
 import org.emailclient.queues.EmailClientQueue;
 import org.emailclient.queues.IEmailClientQueue;
+import org.emailclient.queues.JournaledEmailClientQueue;
+import org.emailclient.queues.OverflowStrategy;
+import org.emailclient.queues.QueueLane;
+import org.emailclient.transports.TransportPool;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.emailclient.TestConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -56,6 +90,874 @@ class EmailClientQueueTest {
 
     }
 
+    @Test
+    void testWorkersKeepOrderPerKey() throws InterruptedException {
+
+        final int keys = 4;
+        final int perKey = 50;
+
+        final CountDownLatch done = new CountDownLatch(keys * perKey);
+        final Map<String, List<String>> delivered = new ConcurrentHashMap<>();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        final INotificationSender<EmailNotification> sender = notification -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            delivered.computeIfAbsent(notification.getFromEmail(), k -> new CopyOnWriteArrayList<>())
+                    .add(notification.getSubject());
+            concurrent.decrementAndGet();
+            done.countDown();
+            return true;
+        };
+
+        final IEmailClientQueue<EmailNotification> queue = EmailClientQueue.builder()
+                .withWorkers(8)
+                .withSenderConcurrency(2)
+                .withOrderingKey(EmailNotification::getFromEmail)
+                .build();
+        queue.start();
+
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                queue.add(sender, createOfflineNotification("key" + k + "@example.com", String.valueOf(i)));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        queue.shutdown();
+
+        assertTrue(maxConcurrent.get() <= 2);
+        for (int k = 0; k < keys; k++) {
+            final List<String> subjects = delivered.get("key" + k + "@example.com");
+            assertEquals(perKey, subjects.size());
+            for (int i = 0; i < perKey; i++) {
+                assertEquals(String.valueOf(i), subjects.get(i));
+            }
+        }
+    }
+
+    @Test
+    void testRetryKeepsOrderPerKey() throws Exception {
+
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+
+        final INotificationSender<EmailNotification> sender = notification -> {
+            if (notification.getSubject().equals("first") && failures.getAndIncrement() == 0) {
+                throw new EmailNotificationException("relay unavailable");
+            }
+            delivered.add(notification.getSubject());
+            return true;
+        };
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withWorkers(4)
+                .withOrderingKey(EmailNotification::getFromEmail)
+                .withRetryPolicy(RetryPolicy.builder()
+                        .withDelay(TimeUnit.MILLISECONDS, 100)
+                        .withMaxRetries(3)
+                        .handle(List.of(EmailNotificationException.class))
+                        .build())
+                .build();
+        queue.start();
+
+        final CompletableFuture<SendResult<EmailNotification>> first =
+                queue.addAsync(sender, createOfflineNotification("key@example.com", "first"));
+        final CompletableFuture<SendResult<EmailNotification>> second =
+                queue.addAsync(sender, createOfflineNotification("key@example.com", "second"));
+        final CompletableFuture<SendResult<EmailNotification>> other =
+                queue.addAsync(sender, createOfflineNotification("other@example.com", "other"));
+
+        //other keys are not held up by the retry
+        assertTrue(other.get(1, TimeUnit.SECONDS).success());
+        assertTrue(first.get(2, TimeUnit.SECONDS).success());
+        assertTrue(second.get(2, TimeUnit.SECONDS).success());
+
+        assertEquals(2, failures.get());
+        assertEquals(List.of("other", "first", "second"), delivered);
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testPausedAndIdleWorkersUseNoCpu() throws InterruptedException {
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final List<Thread> workers = new CopyOnWriteArrayList<>();
+        final CountDownLatch sent = new CountDownLatch(2);
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withWorkers(4)
+                .withThreadFactory(r -> {
+                    final Thread thread = new Thread(r, "cpu-test-worker");
+                    workers.add(thread);
+                    return thread;
+                })
+                .build();
+        queue.start();
+
+        final INotificationSender<EmailNotification> sender = notification -> {
+            sent.countDown();
+            return true;
+        };
+
+        queue.add(sender, createOfflineNotification("from@example.com", "1"));
+        queue.pause();
+        Thread.sleep(100);
+
+        final long pausedCpu = cpuTime(threads, workers);
+        Thread.sleep(500);
+        assertTrue(cpuTime(threads, workers) - pausedCpu < TimeUnit.MILLISECONDS.toNanos(50));
+
+        queue.add(sender, createOfflineNotification("from@example.com", "2"));
+        queue.resume();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        final long idleCpu = cpuTime(threads, workers);
+        Thread.sleep(500);
+        assertTrue(cpuTime(threads, workers) - idleCpu < TimeUnit.MILLISECONDS.toNanos(50));
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testBatchDrain() throws InterruptedException {
+
+        final CountDownLatch done = new CountDownLatch(100);
+        final AtomicInteger batches = new AtomicInteger();
+
+        final INotificationSender<EmailNotification> sender = new INotificationSender<>() {
+            @Override
+            public boolean send(EmailNotification notification) {
+                done.countDown();
+                return true;
+            }
+
+            @Override
+            public List<SendResult<EmailNotification>> sendBatch(Collection<EmailNotification> notifications) {
+                batches.incrementAndGet();
+                return INotificationSender.super.sendBatch(notifications);
+            }
+        };
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withBatchSize(25)
+                .build();
+
+        queue.pause();
+        queue.start();
+
+        for (int i = 0; i < 100; i++) {
+            queue.add(sender, createOfflineNotification("from@example.com", String.valueOf(i)));
+        }
+
+        queue.resume();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(batches.get() <= 5);
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testOverflowStrategies(@TempDir Path spillDirectory) throws InterruptedException {
+
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final INotificationSender<EmailNotification> sender = notification -> delivered.add(notification.getSubject());
+
+        final EmailClientQueue rejecting = EmailClientQueue.builder()
+                .withCapacity(2)
+                .withOverflow(OverflowStrategy.REJECT)
+                .build();
+
+        rejecting.add(sender, createOfflineNotification("from@example.com", "1"));
+        rejecting.add(sender, createOfflineNotification("from@example.com", "2"));
+        assertThrows(IllegalStateException.class, () -> rejecting.add(sender, createOfflineNotification("from@example.com", "3")));
+        assertEquals(1, rejecting.getMetrics().rejected());
+
+        final EmailClientQueue dropping = EmailClientQueue.builder()
+                .withCapacity(2)
+                .withOverflow(OverflowStrategy.DROP_OLDEST)
+                .build();
+
+        for (int i = 0; i < 5; i++) {
+            dropping.add(sender, createOfflineNotification("from@example.com", String.valueOf(i)));
+        }
+        assertEquals(2, dropping.getMetrics().queuedItems());
+        assertEquals(3, dropping.getMetrics().dropped());
+
+        final EmailClientQueue spilling = EmailClientQueue.builder()
+                .withCapacity(2)
+                .withOverflow(OverflowStrategy.SPILL_TO_DISK)
+                .withSpillDirectory(spillDirectory)
+                .build();
+
+        for (int i = 0; i < 10; i++) {
+            spilling.add(sender, createOfflineNotification("from@example.com", String.valueOf(i)));
+        }
+        assertEquals(2, spilling.getMetrics().queuedItems());
+        assertEquals(8, spilling.getMetrics().spilledItems());
+
+        spilling.start();
+
+        for (int i = 0; i < 50 && delivered.size() < 10; i++) {
+            Thread.sleep(100);
+        }
+
+        assertEquals(List.of("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), delivered);
+        assertEquals(0, spilling.getMetrics().spilledItems());
+
+        spilling.shutdown();
+    }
+
+    @Test
+    void testJournalReplaysUnsentNotifications(@TempDir Path journalDirectory) throws InterruptedException {
+
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final INotificationSender<EmailNotification> sender = notification -> delivered.add(notification.getSubject());
+
+        final JournaledEmailClientQueue first = JournaledEmailClientQueue.builder(journalDirectory)
+                .withReplaySender(sender)
+                .withSegmentSize(4096)
+                .build();
+
+        first.start();
+        first.add(sender, createOfflineNotification("from@example.com", "sent"));
+
+        for (int i = 0; i < 50 && delivered.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+
+        first.pause();
+        for (int i = 0; i < 40; i++) {
+            first.add(sender, createOfflineNotification("from@example.com", String.valueOf(i)));
+        }
+        first.shutdown();
+
+        assertEquals(List.of("sent"), delivered);
+        delivered.clear();
+
+        final JournaledEmailClientQueue second = JournaledEmailClientQueue.builder(journalDirectory)
+                .withReplaySender(sender)
+                .withSegmentSize(4096)
+                .build();
+
+        assertEquals(40, second.getJournalMetrics().pending());
+
+        second.start();
+
+        for (int i = 0; i < 50 && second.getJournalMetrics().pending() > 0; i++) {
+            Thread.sleep(100);
+        }
+        second.shutdown();
+
+        assertEquals(40, delivered.size());
+        assertEquals("0", delivered.get(0));
+        assertEquals("39", delivered.get(39));
+        assertEquals(0, second.getJournalMetrics().pending());
+    }
+
+    @Test
+    void testJournalReplaysScheduledNotificationsWhenDue(@TempDir Path journalDirectory) throws Exception {
+
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final INotificationSender<EmailNotification> sender = notification -> delivered.add(notification.getSubject());
+
+        final JournaledEmailClientQueue first = JournaledEmailClientQueue.builder(journalDirectory)
+                .withReplaySender(sender)
+                .build();
+
+        first.start();
+        final Instant dueAt = Instant.now().plusMillis(1000);
+        final CompletableFuture<SendResult<EmailNotification>> scheduled =
+                first.addAt(sender, createOfflineNotification("from@example.com", "scheduled"), dueAt);
+        first.shutdown();
+
+        assertFalse(scheduled.get(1, TimeUnit.SECONDS).success());
+
+        final JournaledEmailClientQueue second = JournaledEmailClientQueue.builder(journalDirectory)
+                .withReplaySender(sender)
+                .build();
+        second.start();
+
+        assertEquals(1, second.getJournalMetrics().pending());
+        Thread.sleep(200);
+        assertTrue(delivered.isEmpty());
+
+        for (int i = 0; i < 50 && second.getJournalMetrics().pending() > 0; i++) {
+            Thread.sleep(100);
+        }
+        second.shutdown();
+
+        assertEquals(List.of("scheduled"), delivered);
+        assertFalse(Instant.now().isBefore(dueAt));
+        assertEquals(0, second.getJournalMetrics().pending());
+    }
+
+    @Test
+    void testAddAsyncCompletesWithTiming() throws Exception {
+
+        final INotificationSender<EmailNotification> sender = notification -> {
+            if (notification.getSubject().equals("fail")) {
+                throw new EmailNotificationException("rejected");
+            }
+            if (notification.getSubject().equals("error")) {
+                throw new NoClassDefFoundError("missing");
+            }
+            return true;
+        };
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withCapacity(3)
+                .build();
+
+        queue.pause();
+        queue.start();
+
+        final CompletableFuture<SendResult<EmailNotification>> sent = queue.addAsync(sender, createOfflineNotification("from@example.com", "ok"));
+        final CompletableFuture<SendResult<EmailNotification>> failed = queue.addAsync(sender, createOfflineNotification("from@example.com", "fail"));
+        final CompletableFuture<SendResult<EmailNotification>> errored = queue.addAsync(sender, createOfflineNotification("from@example.com", "error"));
+        final CompletableFuture<SendResult<EmailNotification>> rejected = queue.addAsync(sender, createOfflineNotification("from@example.com", "full"));
+
+        assertTrue(rejected.isDone());
+        assertFalse(rejected.get().success());
+
+        Thread.sleep(50);
+        queue.resume();
+
+        final SendResult<EmailNotification> sentResult = sent.get(5, TimeUnit.SECONDS);
+        assertTrue(sentResult.success());
+        assertTrue(sentResult.queueTime().toMillis() >= 50);
+
+        final SendResult<EmailNotification> failedResult = failed.get(5, TimeUnit.SECONDS);
+        assertFalse(failedResult.success());
+        assertTrue(failedResult.error() instanceof EmailNotificationException);
+
+        //an error thrown by the sender still completes the item
+        final SendResult<EmailNotification> erroredResult = errored.get(5, TimeUnit.SECONDS);
+        assertFalse(erroredResult.success());
+        assertTrue(erroredResult.error().getCause() instanceof NoClassDefFoundError);
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testRetriesDoNotBlockWorkers() throws Exception {
+
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+
+        final INotificationSender<EmailNotification> sender = notification -> {
+            if (notification.getSubject().equals("flaky") && failures.getAndIncrement() < 2) {
+                throw new EmailNotificationException("relay unavailable");
+            }
+            delivered.add(notification.getSubject());
+            return true;
+        };
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withRetryPolicy(RetryPolicy.builder()
+                        .withDelay(TimeUnit.MILLISECONDS, 300)
+                        .withMaxRetries(3)
+                        .handle(List.of(EmailNotificationException.class))
+                        .build())
+                .build();
+
+        queue.start();
+
+        final CompletableFuture<SendResult<EmailNotification>> flaky = queue.addAsync(sender, createOfflineNotification("from@example.com", "flaky"));
+        final CompletableFuture<SendResult<EmailNotification>> other = queue.addAsync(sender, createOfflineNotification("from@example.com", "other"));
+
+        //the single worker is free while the flaky notification waits for its retry
+        assertTrue(other.get(200, TimeUnit.MILLISECONDS).success());
+
+        final SendResult<EmailNotification> result = flaky.get(5, TimeUnit.SECONDS);
+        assertTrue(result.success());
+        assertTrue(result.queueTime().toMillis() >= 600);
+        assertEquals(List.of("other", "flaky"), delivered);
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testRateLimitDelaysInsteadOfRejecting() throws Exception {
+
+        final List<Long> sentAt = new CopyOnWriteArrayList<>();
+        final INotificationSender<EmailNotification> sender = notification -> sentAt.add(System.nanoTime());
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withRateLimit(TokenBucketRateLimitPolicy.builder()
+                        .withRate(10, Duration.ofSeconds(1))
+                        .build())
+                .build();
+
+        final List<CompletableFuture<SendResult<EmailNotification>>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(queue.addAsync(sender, createOfflineNotification("from@example.com", String.valueOf(i))));
+        }
+
+        queue.start();
+
+        for (CompletableFuture<SendResult<EmailNotification>> future : futures) {
+            assertTrue(future.get(5, TimeUnit.SECONDS).success());
+        }
+
+        //one permit every 100ms, none rejected
+        assertEquals(5, sentAt.size());
+        final List<Long> sorted = new ArrayList<>(sentAt);
+        sorted.sort(null);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(sorted.get(4) - sorted.get(0)) >= 390);
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testPriorityLanesKeepTransactionalMailFast() throws Exception {
+
+        final INotificationSender<EmailNotification> slowSender = notification -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        };
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withWorkers(3)
+                .withLanes(List.of(
+                        QueueLane.builder("critical").withWeight(8).withReservedWorkers(1).build(),
+                        QueueLane.builder("normal").withWeight(4).build(),
+                        QueueLane.builder("bulk").withMaxWait(Duration.ofMillis(200)).build()
+                ))
+                .withLaneSelector(notification -> notification.getSubject().startsWith("newsletter") ? "bulk" : "normal")
+                .build();
+
+        final List<CompletableFuture<SendResult<EmailNotification>>> bulk = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            bulk.add(queue.addAsync(slowSender, createOfflineNotification("from@example.com", "newsletter " + i)));
+        }
+
+        queue.start();
+        Thread.sleep(100);
+
+        final List<CompletableFuture<SendResult<EmailNotification>>> critical = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            critical.add(queue.addAsync("critical", slowSender, createOfflineNotification("from@example.com", "reset " + i)));
+        }
+        final CompletableFuture<SendResult<EmailNotification>> normal =
+                queue.addAsync(slowSender, createOfflineNotification("from@example.com", "receipt"));
+
+        //well ahead of the 400 bulk items still waiting
+        for (CompletableFuture<SendResult<EmailNotification>> future : critical) {
+            final SendResult<EmailNotification> result = future.get(1, TimeUnit.SECONDS);
+            assertTrue(result.success());
+            assertTrue(result.queueTime().toMillis() < 500, () -> "queued for " + result.queueTime());
+        }
+        assertTrue(normal.get(1, TimeUnit.SECONDS).queueTime().toMillis() < 500);
+        assertTrue(queue.getMetrics("bulk").queuedItems() > 200);
+
+        for (CompletableFuture<SendResult<EmailNotification>> future : bulk) {
+            assertTrue(future.get(10, TimeUnit.SECONDS).success());
+        }
+
+        assertEquals(0, queue.getMetrics().queuedItems());
+        assertThrows(IllegalArgumentException.class, () -> queue.add("unknown", slowSender, createOfflineNotification("from@example.com", "x")));
+        assertThrows(IllegalArgumentException.class, () -> QueueLane.builder("heavy").withWeight((1 << 20) + 1).build());
+        assertThrows(IllegalArgumentException.class, () -> EmailClientQueue.builder()
+                .withWorkers(1)
+                .withLanes(List.of(QueueLane.builder("critical").withReservedWorkers(1).build()))
+                .build());
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testScheduledDelivery() throws Exception {
+
+        final AtomicInteger sent = new AtomicInteger();
+        final INotificationSender<EmailNotification> sender = notification -> sent.incrementAndGet() > 0;
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withWorkers(2)
+                .withTimerTick(Duration.ofMillis(5))
+                .build();
+        queue.start();
+
+        final EmailNotification notification = createOfflineNotification("from@example.com", "campaign");
+
+        //spread over one second, scheduling does not wait for anything
+        final long scheduling = System.nanoTime();
+        final List<CompletableFuture<SendResult<EmailNotification>>> campaign = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            campaign.add(queue.addAfter(sender, notification, Duration.ofMillis(1000 + i % 1000)));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduling) < 1000);
+
+        final long start = System.nanoTime();
+        final CompletableFuture<SendResult<EmailNotification>> later = queue.addAfter(sender, notification, Duration.ofMillis(300));
+        final CompletableFuture<SendResult<EmailNotification>> at = queue.addAt(sender, notification, Instant.now().plusMillis(150));
+        assertEquals(0, sent.get());
+        assertEquals(100_002, queue.getScheduledCount());
+
+        assertTrue(at.get(1, TimeUnit.SECONDS).success());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+        assertTrue(later.get(1, TimeUnit.SECONDS).success());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+
+        for (CompletableFuture<SendResult<EmailNotification>> future : campaign) {
+            assertTrue(future.get(5, TimeUnit.SECONDS).success());
+        }
+        assertEquals(100_002, sent.get());
+        assertEquals(0, queue.getScheduledCount());
+
+        //still waiting at shut down
+        final CompletableFuture<SendResult<EmailNotification>> pending = queue.addAfter(sender, notification, Duration.ofHours(1));
+        queue.shutdown();
+        assertFalse(pending.get(1, TimeUnit.SECONDS).success());
+    }
+
+    @Test
+    void testCoalescingMergesIdenticalContent() throws Exception {
+
+        final List<EmailNotification> sent = new CopyOnWriteArrayList<>();
+        final INotificationSender<EmailNotification> sender = sent::add;
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withCoalescing(Duration.ofMillis(100), 40)
+                .build();
+        queue.start();
+
+        final List<CompletableFuture<SendResult<EmailNotification>>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(queue.addAsync(sender, createOfflineNotification("from@example.com", "alert", "user" + i + "@example.com")));
+        }
+        //same recipient again while its message is still open, sent only once
+        futures.add(queue.addAsync(sender, createOfflineNotification("from@example.com", "alert", "USER99@example.com")));
+        futures.add(queue.addAsync(sender, createOfflineNotification("from@example.com", "other", "user0@example.com")));
+
+        for (CompletableFuture<SendResult<EmailNotification>> future : futures) {
+            assertTrue(future.get(2, TimeUnit.SECONDS).success());
+        }
+        assertEquals("alert", futures.get(7).get().notification().getSubject());
+
+        //40 + 40 + 20 recipients, the different subject goes out alone and unchanged
+        assertEquals(4, sent.size());
+
+        final List<String> recipients = new ArrayList<>();
+        for (EmailNotification notification : sent) {
+            if (notification.getSubject().equals("other")) {
+                assertEquals(List.of("user0@example.com"), List.copyOf(notification.getToRecipients()));
+                continue;
+            }
+            assertTrue(notification.getToRecipients().isEmpty());
+            assertTrue(notification.getBccRecipients().size() <= 40);
+            recipients.addAll(notification.getBccRecipients());
+        }
+        assertEquals(100, recipients.size());
+        assertEquals(100, recipients.stream().map(String::toLowerCase).distinct().count());
+
+        //recipients meant to see each other keep their headers, these are not merged
+        final EmailNotification shared = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("alert")
+                .setBody("Body")
+                .setToRecipients(List.of("team1@example.com", "team2@example.com"))
+                .build();
+        final EmailNotification copied = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("alert")
+                .setBody("Body")
+                .setToRecipients(List.of("lead@example.com"))
+                .setCcRecipients(List.of("boss@example.com"))
+                .build();
+
+        sent.clear();
+        assertTrue(queue.addAsync(sender, shared).get(2, TimeUnit.SECONDS).success());
+        assertTrue(queue.addAsync(sender, copied).get(2, TimeUnit.SECONDS).success());
+        assertEquals(2, sent.size());
+        assertSame(shared, sent.get(0));
+        assertSame(copied, sent.get(1));
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testCoalescedNotificationsCountAgainstBounds() throws Exception {
+
+        final List<EmailNotification> sent = new CopyOnWriteArrayList<>();
+        final INotificationSender<EmailNotification> sender = sent::add;
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withCoalescing(Duration.ofMillis(200), 100)
+                .withCapacity(3)
+                .withOverflow(OverflowStrategy.REJECT)
+                .build();
+        queue.start();
+
+        final List<CompletableFuture<SendResult<EmailNotification>>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(queue.addAsync(sender, createOfflineNotification("from@example.com", "alert", "user" + i + "@example.com")));
+        }
+        assertEquals(3, queue.getMetrics().queuedItems());
+
+        //the waiting group fills the queue
+        final SendResult<EmailNotification> rejected =
+                queue.addAsync(sender, createOfflineNotification("from@example.com", "alert", "user3@example.com")).get(1, TimeUnit.SECONDS);
+        assertFalse(rejected.success());
+        assertEquals(1, queue.getMetrics().rejected());
+
+        for (CompletableFuture<SendResult<EmailNotification>> future : futures) {
+            assertTrue(future.get(2, TimeUnit.SECONDS).success());
+        }
+        assertEquals(1, sent.size());
+        assertEquals(3, sent.get(0).getBccRecipients().size());
+
+        for (int i = 0; i < 50 && queue.getMetrics().queuedItems() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, queue.getMetrics().queuedItems());
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testCoalescingFailsOnlyMembersOfRejectedRecipients() throws Exception {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder().withRejectedRecipients("gone@example.com").start()) {
+
+            final Properties props = new Properties();
+            props.put("mail.smtp.host", "127.0.0.1");
+            props.put("mail.smtp.port", String.valueOf(server.getPort()));
+            final Session session = Session.getInstance(props);
+
+            try (EmailClient client = new EmailClient(session, TransportPool.builder(session).withPipelining(false).build())) {
+
+                final EmailClientQueue queue = EmailClientQueue.builder()
+                        .withCoalescing(Duration.ofMillis(100), 10)
+                        .withRetryPolicy(RetryPolicy.builder()
+                                .withDelay(TimeUnit.SECONDS, 10)
+                                .withMaxRetries(3)
+                                .handle(List.of(EmailNotificationException.class))
+                                .build())
+                        .build();
+                queue.start();
+
+                final CompletableFuture<SendResult<EmailNotification>> first =
+                        queue.addAsync(client, createOfflineNotification("from@example.com", "alert", "ann@example.com"));
+                final CompletableFuture<SendResult<EmailNotification>> gone =
+                        queue.addAsync(client, createOfflineNotification("from@example.com", "alert", "gone@example.com"));
+                final CompletableFuture<SendResult<EmailNotification>> second =
+                        queue.addAsync(client, createOfflineNotification("from@example.com", "alert", "bob@example.com"));
+
+                assertFalse(gone.get(5, TimeUnit.SECONDS).success());
+                assertTrue(first.get(5, TimeUnit.SECONDS).success());
+                assertTrue(second.get(5, TimeUnit.SECONDS).success());
+
+                //not retried, that would take 10 seconds, the others got one message without the rejected recipient
+                assertEquals(1, server.getMessages());
+                assertEquals(2, server.getRecipients());
+
+                queue.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void testInvalidRecipientsAreRejectedAtEnqueue() throws Exception {
+
+        final List<EmailNotification> sent = new CopyOnWriteArrayList<>();
+        final INotificationSender<EmailNotification> sender = sent::add;
+        final AddressCache addressCache = new AddressCache(100);
+
+        final EmailClientQueue queue = EmailClientQueue.builder()
+                .withAddressCache(addressCache)
+                .build();
+        queue.start();
+
+        final EmailNotification partial = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("partial")
+                .setBody("Test")
+                .setToRecipients(List.of("ann@example.com", "bob@@example.com"))
+                .setBccRecipients(List.of("ann@example.com"))
+                .build();
+
+        final SendResult<EmailNotification> result = queue.addAsync(sender, partial).get(2, TimeUnit.SECONDS);
+        assertTrue(result.success());
+        assertEquals(1, result.notification().getRejectedRecipients().size());
+        assertEquals("bob@@example.com", result.notification().getRejectedRecipients().get(0).address());
+
+        //parsed once when added, the repeated address is a cache hit
+        assertEquals(3, addressCache.getMisses());
+        assertEquals(1, addressCache.getHits());
+
+        final SendResult<EmailNotification> rejected = queue.addAsync(sender, createOfflineNotification(
+                "from@example.com", "rejected", "bob@@example.com"
+        )).get(2, TimeUnit.SECONDS);
+        assertFalse(rejected.success());
+        assertTrue(rejected.error() instanceof RecipientsRejectedException);
+        assertEquals(1, sent.size());
+
+        queue.shutdown();
+    }
+
+    @Test
+    void testRenderedMessagesAreSentByWorkers() throws Exception {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder().start()) {
+
+            final Properties props = new Properties();
+            props.put("mail.smtp.host", "127.0.0.1");
+            props.put("mail.smtp.port", String.valueOf(server.getPort()));
+            final Session session = Session.getInstance(props);
+
+            try (EmailClient client = new EmailClient(session, TransportPool.builder(session).withMaxSize(2).build())) {
+
+                final EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                        .setFromEmail("from@example.com")
+                        .setSubject("rendered")
+                        .setBody("Rendered ahead")
+                        .setToRecipients(List.of("to@example.com"))
+                        .setBccRecipients(List.of("hidden@example.com"))
+                        .build();
+
+                //Bcc recipients get the message but not the header
+                final RenderedMessage rendered = client.render(notification);
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                rendered.writeTo(out);
+                final String wire = out.toString(StandardCharsets.US_ASCII);
+                assertTrue(wire.contains("To: to@example.com"));
+                assertFalse(wire.contains("hidden@example.com"));
+                assertEquals(2, rendered.getAllRecipients().length);
+
+                for (int batchSize : new int[]{1, 4}) {
+
+                    final EmailClientQueue queue = EmailClientQueue.builder()
+                            .withWorkers(2)
+                            .withBatchSize(batchSize)
+                            .withRenderParallelism(2)
+                            .build();
+                    queue.start();
+
+                    final List<CompletableFuture<SendResult<EmailNotification>>> futures = new ArrayList<>();
+                    for (int i = 0; i < 20; i++) {
+                        futures.add(queue.addAsync(client, notification));
+                    }
+                    for (CompletableFuture<SendResult<EmailNotification>> future : futures) {
+                        assertTrue(future.get(5, TimeUnit.SECONDS).success());
+                    }
+
+                    queue.shutdown();
+                }
+
+                assertEquals(40, server.getMessages());
+                assertEquals(80, server.getRecipients());
+            }
+        }
+    }
+
+    @Test
+    void testOnlyQueuedItemsAreRenderedAndCounted(@TempDir Path spillDirectory) throws Exception {
+
+        try (EmailClient client = new EmailClient(Session.getInstance(new Properties()))) {
+
+            final AtomicInteger renders = new AtomicInteger();
+            final AtomicInteger sent = new AtomicInteger();
+            final IRenderingSender<EmailNotification> sender = new IRenderingSender<>() {
+                @Override
+                public RenderedMessage render(EmailNotification item) throws MessagingException, IOException {
+                    renders.incrementAndGet();
+                    return client.render(item);
+                }
+
+                @Override
+                public boolean sendRendered(EmailNotification item, RenderedMessage message) {
+                    return sent.incrementAndGet() > 0;
+                }
+
+                @Override
+                public boolean send(EmailNotification notification) {
+                    return sent.incrementAndGet() > 0;
+                }
+            };
+
+            final EmailNotification notification = createOfflineNotification("from@example.com", "rendered");
+            final long renderedSize = client.render(notification).getSize();
+
+            final EmailClientQueue queue = EmailClientQueue.builder()
+                    .withRenderParallelism(1)
+                    .withCapacity(2)
+                    .withOverflow(OverflowStrategy.SPILL_TO_DISK)
+                    .withSpillDirectory(spillDirectory)
+                    .build();
+
+            for (int i = 0; i < 5; i++) {
+                queue.add(sender, notification);
+            }
+            assertEquals(3, queue.getMetrics().spilledItems());
+
+            //the rendered messages of the two queued items count against the byte bound, spilled ones are not rendered
+            for (int i = 0; i < 100 && queue.getMetrics().queuedBytes() < 2 * renderedSize; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(queue.getMetrics().queuedBytes() >= 2 * renderedSize);
+            assertEquals(2, renders.get());
+
+            queue.start();
+            for (int i = 0; i < 100 && sent.get() < 5; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, sent.get());
+            //items read back from the spill file are sent with send
+            assertEquals(2, renders.get());
+            assertEquals(0, queue.getMetrics().queuedItems());
+            assertEquals(0, queue.getMetrics().queuedBytes());
+
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    void testDepthGaugePerQueue() {
+
+        final IMetricsRecorder previous = Metrics.recorder();
+        final SimpleMetricsRecorder recorder = new SimpleMetricsRecorder();
+        Metrics.setRecorder(recorder);
+
+        try {
+
+            final INotificationSender<EmailNotification> sender = n -> true;
+
+            //not started, the items stay queued
+            final EmailClientQueue first = EmailClientQueue.builder().withName("first").build();
+            final EmailClientQueue second = EmailClientQueue.builder().withName("second").build();
+
+            for (int i = 0; i < 3; i++) {
+                first.add(sender, createOfflineNotification("from@example.com", String.valueOf(i)));
+            }
+            second.add(sender, createOfflineNotification("from@example.com", "x"));
+
+            assertEquals(3, recorder.getGauge(Metrics.QUEUE_DEPTH + ".first"));
+            assertEquals(1, recorder.getGauge(Metrics.QUEUE_DEPTH + ".second"));
+
+            first.shutdown();
+            assertEquals(0, recorder.getGauge(Metrics.QUEUE_DEPTH + ".first"));
+            assertEquals(1, recorder.getGauge(Metrics.QUEUE_DEPTH + ".second"));
+
+            second.shutdown();
+
+        } finally {
+            Metrics.setRecorder(previous);
+        }
+    }
+
+    private static long cpuTime(ThreadMXBean threads, List<Thread> workers) {
+        return workers.stream()
+                .mapToLong(thread -> Math.max(0, threads.getThreadCpuTime(thread.getId())))
+                .sum();
+    }
+
     private static EmailNotification createNotification(String subject) {
         return new EmailNotification.EmailNotificationBuilder()
                 .setFromEmail(fromEmail)
@@ -65,4 +967,22 @@ class EmailClientQueueTest {
                 .build();
     }
 
-}
\ No newline at end of file
+    private static EmailNotification createOfflineNotification(String from, String subject, String to) {
+        return new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail(from)
+                .setSubject(subject)
+                .setBody("Test")
+                .setToRecipients(List.of(to))
+                .build();
+    }
+
+    private static EmailNotification createOfflineNotification(String from, String subject) {
+        return new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail(from)
+                .setSubject(subject)
+                .setBody("Test")
+                .setToRecipients(List.of("to@example.com"))
+                .build();
+    }
+
+}
@@ -5,7 +5,9 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
@@ -169,6 +171,125 @@ class EmailClientTest {
         );
     }
 
+    @Test
+    void testNotificationCollectionsAreEmptyNotNull() {
+
+        final EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("empty")
+                .setBody("empty")
+                .setToRecipients(List.of("to@example.com"))
+                .build();
+
+        assertTrue(notification.getCcRecipients().isEmpty());
+        assertTrue(notification.getBccRecipients().isEmpty());
+        assertTrue(notification.getAttachments().isEmpty());
+        assertTrue(notification.getImages().isEmpty());
+        assertThrows(UnsupportedOperationException.class, () -> notification.getToRecipients().add("other@example.com"));
+    }
+
+    @Test
+    void testNotificationToStringIsBounded() {
+
+        final List<String> to = new ArrayList<>();
+        final List<String> bcc = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            bcc.add("user" + i + "@example.com");
+        }
+        for (int i = 0; i < 10; i++) {
+            to.add("to" + i + "@example.com");
+        }
+
+        final EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("s".repeat(200))
+                .setBody("b".repeat(1_000_000))
+                .setToRecipients(to)
+                .setBccRecipients(bcc)
+                .build();
+
+        final String text = notification.toString();
+
+        assertTrue(text.length() < 400, text);
+        assertTrue(text.contains("s".repeat(64) + "..."));
+        assertFalse(text.contains("s".repeat(65)));
+        assertTrue(text.contains("body=1000000 chars"));
+        assertTrue(text.contains("to2@example.com, +7 more"));
+        assertFalse(text.contains("to3@example.com"));
+        assertTrue(text.contains("bccRecipients=1000"));
+        assertFalse(text.contains("user0@example.com"));
+    }
+
+    @Test
+    void testNotificationEqualsUsesCachedHash() {
+
+        final EmailNotification.EmailNotificationBuilder builder = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("equal")
+                .setBody("equal")
+                .setToRecipients(List.of("to@example.com"));
+
+        final EmailNotification a = builder.build();
+        final EmailNotification b = builder.build();
+        final EmailNotification other = builder.setBccRecipients(List.of("bcc@example.com")).build();
+
+        //only one side has its hash cached yet
+        final int hash = a.hashCode();
+        assertEquals(a, b);
+        assertEquals(hash, b.hashCode());
+        assertEquals(hash, a.hashCode());
+
+        assertNotEquals(a, other);
+        assertNotEquals(other, a);
+        assertNotEquals(hash, other.hashCode());
+    }
+
+    @Test
+    void testNotificationAddressesAreParsedOnce() {
+
+        final EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("parsed")
+                .setBody("parsed")
+                .setToRecipients(List.of("to@example.com", "not an address"))
+                .setBccRecipients(List.of("bcc@example.com"))
+                .build();
+
+        final AddressCache cache = new AddressCache(16);
+        final List<RejectedRecipient> rejected = notification.validateAddresses(cache);
+
+        assertEquals(1, rejected.size());
+        assertEquals("not an address", rejected.get(0).address());
+        assertSame(rejected, notification.getRejectedRecipients());
+
+        //every message built from the notification uses the same arrays
+        final EmailNotification.Addresses addresses = notification.getAddresses();
+        assertSame(addresses, notification.getAddresses());
+        assertSame(addresses.to(), notification.getAddresses().to());
+        assertEquals(1, addresses.to().length);
+        assertEquals("to@example.com", addresses.to()[0].getAddress());
+        assertEquals(0, addresses.cc().length);
+
+        //a notification built from another one shares its recipient lists
+        final EmailNotification derived = new EmailNotification(
+                notification.getFromEmail(),
+                "derived",
+                notification.getBody(),
+                false,
+                notification.getAttachments(),
+                notification.getToRecipients(),
+                notification.getCcRecipients(),
+                notification.getBccRecipients(),
+                notification.getImages()
+        );
+        assertSame(notification.getToRecipients(), derived.getToRecipients());
+        assertSame(notification.getBccRecipients(), derived.getBccRecipients());
+
+        //parsed addresses come from the cache
+        derived.validateAddresses(cache);
+        assertSame(addresses.to()[0], derived.getAddresses().to()[0]);
+    }
+
     @Test
     void testWithTls() {
 
@@ -0,0 +1,161 @@
+package org.emailclient;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.emailclient.templates.EmailTemplate;
+import org.emailclient.templates.EncodedPartCache;
+import org.emailclient.templates.EncodedPartCacheMetrics;
+import org.emailclient.templates.TemplateMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailTemplateTest {
+
+    @Test
+    void testTemplate() throws Exception {
+
+        final byte[] report = {0x25, 0x50, 0x44, 0x46, (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3};
+
+        final EmailTemplate template = EmailTemplate.builder()
+                .setFromEmail("from@example.com")
+                .setSubject("Report for ${name}")
+                .setBody("<p>Hello ${name}, your code is ${code}</p>")
+                .setIsHtml(true)
+                .setAttachments(List.of(new EmailAttachment("report.pdf", report, "application/pdf")))
+                .build();
+
+        assertEquals(Set.of("name", "code"), template.getVariables());
+
+        final Session session = Session.getInstance(new Properties());
+
+        final MimeMessage message = template.createMessage(
+                session,
+                TemplateMessage.to(List.of("to@example.com"), Map.of("name", "Ann", "code", 42))
+        );
+        message.saveChanges();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.writeTo(bytes);
+        final String raw = bytes.toString(StandardCharsets.UTF_8);
+
+        assertEquals("Report for Ann", message.getSubject());
+        assertTrue(raw.contains("Hello Ann, your code is 42"));
+        assertTrue(raw.contains(Base64.getEncoder().encodeToString(report)));
+        assertTrue(raw.contains("filename=report.pdf"));
+
+        assertThrows(
+                EmailNotificationException.class,
+                () -> template.createMessage(session, TemplateMessage.to(List.of("to@example.com"), Map.of("name", "Ann")))
+        );
+    }
+
+    @Test
+    void testEncodedPartCache() throws Exception {
+
+        final byte[] png = {(byte) 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A, 0x00, (byte) 0xFF};
+        final File image = File.createTempFile("logo", ".png");
+        image.deleteOnExit();
+        Files.write(image.toPath(), png);
+
+        final EncodedPartCache cache = EncodedPartCache.builder()
+                .withMaxBytes(64)
+                .withOffHeapThreshold(1)
+                .build();
+
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        final MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(cache.imagePart("logo", image));
+        multipart.addBodyPart(cache.imagePart("logo2", image));
+        message.setContent(multipart);
+        message.saveChanges();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.writeTo(bytes);
+        final String raw = bytes.toString(StandardCharsets.UTF_8);
+
+        assertTrue(raw.contains("Content-ID: <logo>"));
+        assertTrue(raw.contains("Content-ID: <logo2>"));
+        assertTrue(raw.contains(Base64.getEncoder().encodeToString(png)));
+
+        final EncodedPartCacheMetrics afterImages = cache.getMetrics();
+        assertEquals(1, afterImages.hits());
+        assertEquals(1, afterImages.misses());
+        assertEquals(afterImages.bytes(), afterImages.offHeapBytes());
+
+        //a large attachment pushes the image out
+        final byte[] report = new byte[40];
+        report[0] = (byte) 0xE2;
+        final MimeBodyPart first = cache.attachmentPart(new EmailAttachment("report.pdf", report, "application/pdf"));
+        cache.attachmentPart(new EmailAttachment("report.pdf", report.clone(), "application/pdf"));
+
+        assertEquals("report.pdf", first.getFileName());
+
+        final EncodedPartCacheMetrics metrics = cache.getMetrics();
+        assertEquals(2, metrics.hits());
+        assertEquals(1, metrics.evictions());
+        assertEquals(1, metrics.entries());
+    }
+
+    @Test
+    void testStreamingAttachments() throws Exception {
+
+        final byte[] report = {0x25, 0x50, 0x44, 0x46, (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3};
+        final File file = File.createTempFile("report", ".pdf");
+        file.deleteOnExit();
+        Files.write(file.toPath(), report);
+
+        final byte[] csv = "id,name\n1,Ann\n".getBytes(StandardCharsets.UTF_8);
+        final AtomicInteger opened = new AtomicInteger();
+
+        final EmailAttachment fromPath = EmailAttachment.of("report.pdf", file.toPath(), "application/pdf");
+        final EmailAttachment fromStream = EmailAttachment.of(
+                "users.csv",
+                () -> {
+                    opened.incrementAndGet();
+                    return new ByteArrayInputStream(csv);
+                },
+                "text/csv"
+        );
+
+        final EmailTemplate template = EmailTemplate.builder()
+                .setFromEmail("from@example.com")
+                .setSubject("Reports")
+                .setBody("See attached")
+                .setAttachments(List.of(fromPath, fromStream))
+                .build();
+
+        //the template encodes its parts once
+        assertEquals(1, opened.get());
+
+        final MimeMessage message = template.createMessage(
+                Session.getInstance(new Properties()),
+                TemplateMessage.to(List.of("to@example.com"), Map.of())
+        );
+        message.saveChanges();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.writeTo(bytes);
+        final String raw = bytes.toString(StandardCharsets.UTF_8);
+
+        assertTrue(raw.contains(Base64.getEncoder().encodeToString(report)));
+        assertTrue(raw.contains(Base64.getEncoder().encodeToString(csv)));
+        assertEquals(1, opened.get());
+        assertFalse(fromPath.isInMemory());
+        assertArrayEquals(report, fromPath.content());
+    }
+}
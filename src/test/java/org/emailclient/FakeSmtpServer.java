@@ -0,0 +1,486 @@
+package org.emailclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In process SMTP server for tests that must not leave the machine. One selector thread serves every connection.
+ * <p>
+ * Commands are answered after {@code commandLatency}, every message is accepted after {@code latency} unless it is
+ * picked for a failure, which is answered with {@code 451}. PIPELINING is advertised when enabled, a command that
+ * arrives before the reply to the previous one was written is counted as pipelined. Delayed replies do not block
+ * the selector, later replies on the same connection wait behind them.
+ */
+public class FakeSmtpServer implements AutoCloseable {
+
+    private static final byte[] END_OF_DATA = "\r\n.\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final long latencyNanos;
+    private final long commandLatencyNanos;
+    private final double failureRate;
+    private final boolean pipelining;
+    private final Set<String> rejectedRecipients;
+    private final SplittableRandom random;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong pipelinedCommands = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong recipients = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    private FakeSmtpServer(FakeSmtpServerBuilder builder) throws IOException {
+        this.latencyNanos = builder.latency.toNanos();
+        this.commandLatencyNanos = builder.commandLatency.toNanos();
+        this.failureRate = builder.failureRate;
+        this.pipelining = builder.pipelining;
+        this.rejectedRecipients = builder.rejectedRecipients;
+        this.random = new SplittableRandom(builder.seed);
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.thread = new Thread(this::serve, "fake-smtp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getPipelinedCommands() {
+        return pipelinedCommands.get();
+    }
+
+    /**
+     * Messages accepted, failed ones are not counted.
+     */
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getRecipients() {
+        return recipients.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Bytes of message content received, including failed messages.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public void close() {
+
+        running = false;
+        selector.wakeup();
+
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+
+        try {
+
+            while (running) {
+
+                selector.select(selectTimeoutMillis());
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    } catch (IOException e) {
+                        closeConnection(key);
+                    }
+                }
+
+                flushAll();
+            }
+
+        } catch (IOException e) {
+            throw new IllegalStateException("Fake SMTP server failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeConnection(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                //shutting down
+            }
+        }
+    }
+
+    /**
+     * Wakes up in time for the earliest delayed reply.
+     */
+    private long selectTimeoutMillis() {
+
+        long earliest = Long.MAX_VALUE;
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection && !connection.replies.isEmpty()) {
+                earliest = Math.min(earliest, connection.replies.peek().readyAt());
+            }
+        }
+
+        if (earliest == Long.MAX_VALUE) {
+            return 0;
+        }
+
+        return Math.max(1, (earliest - System.nanoTime()) / 1_000_000L);
+    }
+
+    private void accept() throws IOException {
+
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        final Connection connection = new Connection(channel);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.incrementAndGet();
+
+        connection.reply("220 fake ESMTP ready", 0);
+    }
+
+    private void read(final SelectionKey key) throws IOException {
+
+        final Connection connection = (Connection) key.attachment();
+        final ByteBuffer buffer = connection.readBuffer;
+
+        buffer.clear();
+        final int read = connection.channel.read(buffer);
+
+        if (read < 0) {
+            closeConnection(key);
+            return;
+        }
+
+        connection.input.write(buffer.array(), 0, read);
+
+        final byte[] pending = connection.input.toByteArray();
+        int position = 0;
+
+        while (position < pending.length && !connection.closing) {
+
+            if (connection.inData) {
+
+                final int end = indexOf(pending, END_OF_DATA, Math.max(0, position - 2));
+                if (end < 0) {
+                    break;
+                }
+
+                bytes.addAndGet(end - position);
+                position = end + END_OF_DATA.length;
+                connection.inData = false;
+                endOfData(connection);
+                continue;
+            }
+
+            final int lineEnd = indexOf(pending, new byte[]{'\r', '\n'}, position);
+            if (lineEnd < 0) {
+                break;
+            }
+
+            final String line = new String(pending, position, lineEnd - position, StandardCharsets.US_ASCII);
+            position = lineEnd + 2;
+
+            if (!connection.replies.isEmpty()) {
+                pipelinedCommands.incrementAndGet();
+            }
+
+            command(connection, line);
+        }
+
+        connection.input.reset();
+        connection.input.write(pending, position, pending.length - position);
+    }
+
+    private void command(final Connection connection, final String line) {
+
+        commands.incrementAndGet();
+
+        final String verb = (line.length() < 4 ? line : line.substring(0, 4)).toUpperCase(Locale.ROOT);
+
+        switch (verb) {
+            case "EHLO" -> connection.reply(
+                    pipelining
+                            ? "250-fake\r\n250-PIPELINING\r\n250-8BITMIME\r\n250 AUTH PLAIN LOGIN"
+                            : "250-fake\r\n250-8BITMIME\r\n250 AUTH PLAIN LOGIN",
+                    commandLatencyNanos
+            );
+            case "HELO", "RSET", "NOOP" -> connection.reply("250 OK", commandLatencyNanos);
+            case "AUTH" -> connection.reply("235 Authenticated", commandLatencyNanos);
+            case "MAIL" -> {
+                connection.recipients = 0;
+                connection.reply("250 OK", commandLatencyNanos);
+            }
+            case "RCPT" -> {
+                if (rejectedRecipients.contains(recipient(line))) {
+                    connection.reply("550 No such user", commandLatencyNanos);
+                } else {
+                    connection.recipients++;
+                    connection.reply("250 OK", commandLatencyNanos);
+                }
+            }
+            case "DATA" -> {
+                connection.inData = true;
+                connection.reply("354 End data with <CR><LF>.<CR><LF>", commandLatencyNanos);
+            }
+            case "QUIT" -> {
+                connection.closing = true;
+                connection.reply("221 Bye", commandLatencyNanos);
+            }
+            default -> connection.reply("502 Command not implemented", commandLatencyNanos);
+        }
+    }
+
+    private static String recipient(final String line) {
+
+        final int start = line.indexOf('<');
+        final int end = line.indexOf('>', start + 1);
+
+        return start < 0 || end < 0 ? "" : line.substring(start + 1, end).toLowerCase(Locale.ROOT);
+    }
+
+    private void endOfData(final Connection connection) {
+
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            failures.incrementAndGet();
+            connection.reply("451 Injected failure", latencyNanos);
+            return;
+        }
+
+        messages.incrementAndGet();
+        recipients.addAndGet(connection.recipients);
+        connection.reply("250 OK queued", latencyNanos);
+    }
+
+    private void flushAll() {
+
+        for (SelectionKey key : selector.keys()) {
+
+            if (!(key.attachment() instanceof Connection connection)) {
+                continue;
+            }
+
+            try {
+                connection.flush();
+                if (connection.closing && connection.replies.isEmpty()) {
+                    closeConnection(key);
+                }
+            } catch (IOException e) {
+                closeConnection(key);
+            }
+        }
+    }
+
+    private static void closeConnection(final SelectionKey key) {
+
+        key.cancel();
+
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            //already gone
+        }
+    }
+
+    private static int indexOf(final byte[] data, final byte[] pattern, final int from) {
+
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+
+        return -1;
+    }
+
+    public static FakeSmtpServerBuilder builder() {
+        return new FakeSmtpServerBuilder();
+    }
+
+    public static class FakeSmtpServerBuilder {
+        private Duration latency = Duration.ZERO;
+        private Duration commandLatency = Duration.ZERO;
+        private double failureRate;
+        private boolean pipelining = true;
+        private Set<String> rejectedRecipients = Set.of();
+        private long seed = 42;
+
+        /**
+         * Delay before a message is accepted or failed, commands are answered right away.
+         */
+        public FakeSmtpServerBuilder withLatency(Duration latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * Share of messages answered with {@code 451}, picked with a seeded random so runs are repeatable.
+         */
+        public FakeSmtpServerBuilder withFailureRate(double failureRate, long seed) {
+            this.failureRate = failureRate;
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Delay before any other command is answered, a pipelining client does not wait for it.
+         */
+        public FakeSmtpServerBuilder withCommandLatency(Duration commandLatency) {
+            this.commandLatency = commandLatency;
+            return this;
+        }
+
+        public FakeSmtpServerBuilder withPipelining(boolean pipelining) {
+            this.pipelining = pipelining;
+            return this;
+        }
+
+        /**
+         * Addresses answered with {@code 550} to RCPT TO, compared ignoring case.
+         */
+        public FakeSmtpServerBuilder withRejectedRecipients(String... addresses) {
+            this.rejectedRecipients = Arrays.stream(addresses)
+                    .map(address -> address.toLowerCase(Locale.ROOT))
+                    .collect(Collectors.toUnmodifiableSet());
+            return this;
+        }
+
+        public FakeSmtpServer start() {
+
+            if (latency == null || latency.isNegative() || commandLatency == null || commandLatency.isNegative()) {
+                throw new IllegalArgumentException("latency and commandLatency cannot be null or negative");
+            }
+            if (failureRate < 0 || failureRate > 1) {
+                throw new IllegalArgumentException("failureRate must be between 0 and 1");
+            }
+
+            try {
+                return new FakeSmtpServer(this);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not start fake SMTP server", e);
+            }
+        }
+    }
+
+    private record Reply(ByteBuffer bytes, long readyAt) {
+    }
+
+    private static final class Connection {
+
+        final SocketChannel channel;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        final Deque<Reply> replies = new ArrayDeque<>();
+
+        boolean inData;
+        boolean closing;
+        int recipients;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Replies go out in order, one that is not due yet holds back the ones after it.
+         */
+        void reply(final String text, final long delayNanos) {
+
+            final long readyAt = Math.max(
+                    System.nanoTime() + delayNanos,
+                    replies.isEmpty() ? Long.MIN_VALUE : replies.peekLast().readyAt()
+            );
+
+            replies.add(new Reply(ByteBuffer.wrap((text + "\r\n").getBytes(StandardCharsets.US_ASCII)), readyAt));
+        }
+
+        void flush() throws IOException {
+
+            final long now = System.nanoTime();
+
+            while (!replies.isEmpty() && replies.peek().readyAt() - now <= 0) {
+
+                final ByteBuffer reply = replies.peek().bytes();
+                channel.write(reply);
+
+                if (reply.hasRemaining()) {
+                    //socket buffer full, the client is not reading yet
+                    return;
+                }
+
+                replies.poll();
+            }
+        }
+    }
+}
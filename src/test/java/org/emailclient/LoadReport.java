@@ -0,0 +1,43 @@
+package org.emailclient;
+
+import java.util.Arrays;
+
+/**
+ * Latency percentiles and throughput of a load run.
+ */
+public record LoadReport(int messages, int failures, long p50Nanos, long p99Nanos, long p999Nanos, double messagesPerSecond) {
+
+    /**
+     * @param latenciesNanos one entry per message, sorted in place
+     */
+    public static LoadReport of(final long[] latenciesNanos, final int failures, final long elapsedNanos) {
+
+        Arrays.sort(latenciesNanos);
+
+        return new LoadReport(
+                latenciesNanos.length,
+                failures,
+                percentile(latenciesNanos, 0.50),
+                percentile(latenciesNanos, 0.99),
+                percentile(latenciesNanos, 0.999),
+                latenciesNanos.length * 1_000_000_000.0 / elapsedNanos
+        );
+    }
+
+    private static long percentile(final long[] sorted, final double quantile) {
+
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d messages, %d failed, p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, %.0f msg/s",
+                messages, failures, p50Nanos / 1e6, p99Nanos / 1e6, p999Nanos / 1e6, messagesPerSecond
+        );
+    }
+}
@@ -0,0 +1,164 @@
+package org.emailclient;
+
+import jakarta.mail.Session;
+import org.emailclient.queues.EmailClientQueue;
+import org.emailclient.transports.TransportPool;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives {@link EmailClient} and {@link EmailClientQueue} against a {@link FakeSmtpServer} and prints latency
+ * percentiles and throughput.
+ */
+class LoadTest {
+
+    private static final int MESSAGES = 2000;
+    private static final int CONCURRENCY = 8;
+
+    @Test
+    void testClientLoad() throws Exception {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder()
+                .withLatency(Duration.ofMillis(1))
+                .withCommandLatency(Duration.ofMillis(1))
+                .withFailureRate(0.01, 7)
+                .start();
+             EmailClient client = pooledClient(server)) {
+
+            final long[] latencies = new long[MESSAGES];
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicInteger failures = new AtomicInteger();
+            final ExecutorService threads = Executors.newFixedThreadPool(CONCURRENCY);
+
+            final long start = System.nanoTime();
+
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < CONCURRENCY; t++) {
+                futures.add(threads.submit(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < MESSAGES) {
+                        final long sent = System.nanoTime();
+                        try {
+                            client.send(createNotification(i));
+                        } catch (EmailNotificationException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - sent;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            final LoadReport report = LoadReport.of(latencies, failures.get(), System.nanoTime() - start);
+            threads.shutdown();
+
+            System.out.println("EmailClient: " + report);
+
+            assertEquals(MESSAGES - failures.get(), server.getMessages());
+            assertEquals(failures.get(), server.getFailures());
+            assertTrue(failures.get() > 0);
+            assertTrue(server.getConnections() <= CONCURRENCY);
+        }
+    }
+
+    @Test
+    void testQueueLoad() throws Exception {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder()
+                .withLatency(Duration.ofMillis(1))
+                .start();
+             EmailClient client = pooledClient(server)) {
+
+            final EmailClientQueue queue = EmailClientQueue.builder()
+                    .withWorkers(CONCURRENCY)
+                    .build();
+            queue.start();
+
+            final long start = System.nanoTime();
+
+            final List<CompletableFuture<SendResult<EmailNotification>>> futures = new ArrayList<>(MESSAGES);
+            for (int i = 0; i < MESSAGES; i++) {
+                futures.add(queue.addAsync(client, createNotification(i)));
+            }
+
+            final long[] latencies = new long[MESSAGES];
+            int failures = 0;
+            for (int i = 0; i < MESSAGES; i++) {
+                final SendResult<EmailNotification> result = futures.get(i).get();
+                latencies[i] = result.queueNanos() + result.sendNanos();
+                if (!result.success()) {
+                    failures++;
+                }
+            }
+
+            final LoadReport report = LoadReport.of(latencies, failures, System.nanoTime() - start);
+            queue.shutdown();
+
+            System.out.println("EmailClientQueue: " + report);
+
+            assertEquals(0, failures);
+            assertEquals(MESSAGES, server.getMessages());
+            assertEquals(2L * MESSAGES, server.getRecipients());
+        }
+    }
+
+    /**
+     * Command replies are slower than a delayed ACK, so the RCPT TO a pipelining client sends right after MAIL FROM
+     * reaches the server before the MAIL FROM reply was written even though the client socket uses Nagle.
+     */
+    @Test
+    void testPipelining() {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder()
+                .withCommandLatency(Duration.ofMillis(200))
+                .start();
+             EmailClient client = pooledClient(server)) {
+
+            client.send(createNotification(1));
+            client.send(createNotification(2));
+
+            assertEquals(2, server.getMessages());
+            assertEquals(2, server.getPipelinedCommands());
+        }
+    }
+
+    private static EmailClient pooledClient(final FakeSmtpServer server) {
+
+        final Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+
+        final Session session = Session.getInstance(props);
+
+        return new EmailClient(
+                session,
+                TransportPool.builder(session)
+                        .withMaxSize(CONCURRENCY)
+                        .build()
+        );
+    }
+
+    private static EmailNotification createNotification(final int i) {
+        return new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("from@example.com")
+                .setSubject("Load " + i)
+                .setBody("Load test message " + i)
+                .setToRecipients(List.of("to@example.com"))
+                .setCcRecipients(List.of("cc@example.com"))
+                .build();
+    }
+}
@@ -1,13 +1,29 @@
 package org.emailclient;
 
+import org.emailclient.metrics.IMetricsRecorder;
+import org.emailclient.metrics.LatencyHistogram;
+import org.emailclient.metrics.Metrics;
+import org.emailclient.metrics.SimpleMetricsRecorder;
+import org.emailclient.policies.CircuitBreakerPolicy;
 import org.emailclient.policies.PolicyEnforcer;
+import org.emailclient.policies.RateLimitKeys;
+import org.emailclient.policies.RetryBudget;
 import org.emailclient.policies.RetryPolicy;
+import org.emailclient.policies.SlidingWindowRateLimitPolicy;
 import org.emailclient.policies.SpamPolicy;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.Field;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -134,4 +150,304 @@ public class PolicyEnforcerTest {
 
 
     }
+
+    @Test
+    void testRetryBackoffAndBudget() throws ReflectiveOperationException {
+
+        final EmailNotificationException ex = new EmailNotificationException("relay unavailable");
+        final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+        RetryPolicy backoff = RetryPolicy.builder()
+                .withDelay(TimeUnit.MILLISECONDS, 100)
+                .withBackoff(2, Duration.ofMillis(300))
+                .withMaxRetries(5)
+                .handle(List.of(EmailNotificationException.class))
+                .build();
+
+        assertEquals(100 * ms, backoff.nextDelayNanos(ex, 0, 0, 0));
+        assertEquals(200 * ms, backoff.nextDelayNanos(ex, 1, 0, 0));
+        assertEquals(300 * ms, backoff.nextDelayNanos(ex, 3, 0, 0));
+        assertEquals(-1, backoff.nextDelayNanos(ex, 5, 0, 0));
+        assertEquals(-1, backoff.nextDelayNanos(new IllegalStateException(), 0, 0, 0));
+
+        RetryPolicy jittered = RetryPolicy.builder()
+                .withDelay(TimeUnit.MILLISECONDS, 100)
+                .withBackoff(2, Duration.ofSeconds(1))
+                .withJitter(RetryPolicy.Jitter.DECORRELATED)
+                .withMaxDuration(Duration.ofSeconds(2))
+                .handle(List.of(EmailNotificationException.class))
+                .build();
+
+        long previous = 0;
+        for (int i = 0; i < 100; i++) {
+            final long delay = jittered.nextDelayNanos(ex, i, previous, 0);
+            assertTrue(delay >= 100 * ms && delay <= 1000 * ms);
+            previous = delay;
+        }
+        assertEquals(-1, jittered.nextDelayNanos(ex, 1, 100 * ms, 1950 * ms));
+
+        RetryBudget budget = RetryBudget.builder()
+                .withRatio(0.5)
+                .withMinRetriesPerSecond(0)
+                .withMaxTokens(2)
+                .build();
+
+        RetryPolicy budgeted = RetryPolicy.builder()
+                .withDelay(TimeUnit.MILLISECONDS, 1)
+                .handle(List.of(EmailNotificationException.class))
+                .withBudget(budget)
+                .build();
+
+        assertTrue(budgeted.nextDelayNanos(ex, 0, 0, 0) >= 0);
+        assertTrue(budgeted.nextDelayNanos(ex, 0, 0, 0) >= 0);
+        assertEquals(-1, budgeted.nextDelayNanos(ex, 0, 0, 0));
+
+        budgeted.onRequest();
+        budgeted.onRequest();
+        assertTrue(budgeted.nextDelayNanos(ex, 0, 0, 0) >= 0);
+        assertEquals(1, budget.getRejected());
+
+        RetryBudget idle = RetryBudget.builder()
+                .withRatio(0)
+                .withMinRetriesPerSecond(100)
+                .withMaxTokens(2)
+                .build();
+
+        assertTrue(idle.tryAcquire());
+        assertTrue(idle.tryAcquire());
+
+        //two days without retries, long enough to overflow an unclamped refill
+        Field lastRefill = RetryBudget.class.getDeclaredField("lastRefill");
+        lastRefill.setAccessible(true);
+        ((AtomicLong) lastRefill.get(idle)).addAndGet(-TimeUnit.DAYS.toNanos(2));
+
+        assertEquals(2, idle.getAvailable());
+        assertTrue(idle.tryAcquire());
+        assertTrue(idle.tryAcquire());
+    }
+
+    @Test
+    void testCircuitBreaker() throws InterruptedException {
+        EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("fromEmail")
+                .setSubject("PolicyEnforcerTestCircuitBreaker")
+                .setBody("PolicyEnforcerTestCircuitBreaker")
+                .setIsHtml(true)
+                .setToRecipients(List.of(""))
+                .build();
+
+        var clientPass = new EmailClientPass();
+
+        AtomicInteger calls = new AtomicInteger();
+        Function<EmailNotification, Boolean> failing = n -> {
+            calls.incrementAndGet();
+            throw new EmailNotificationException("relay down");
+        };
+
+        CircuitBreakerPolicy circuitBreaker = CircuitBreakerPolicy.builder()
+                .withWindowSize(4)
+                .withMinimumCalls(4)
+                .withFailureRateThreshold(0.5)
+                .withOpenDuration(Duration.ofMillis(200))
+                .withHalfOpenCalls(1)
+                .build();
+
+        List<CircuitBreakerPolicy.State> transitions = new CopyOnWriteArrayList<>();
+        circuitBreaker.addListener((from, to) -> transitions.add(to));
+
+        PolicyEnforcer<EmailNotification, Boolean> enforcer = PolicyEnforcer.<EmailNotification, Boolean>builder()
+                .withCircuitBreaker(circuitBreaker)
+                .setFallBack(List.of(clientPass::send))
+                .build();
+
+        for (int i = 0; i < 4; i++) {
+            assertThrows(EmailNotificationException.class, () -> enforcer.run(failing, notification));
+        }
+        assertEquals(CircuitBreakerPolicy.State.OPEN, circuitBreaker.getState());
+
+        //short-circuited straight to the fallback
+        assertTrue(enforcer.run(failing, notification));
+        assertEquals(4, calls.get());
+
+        Thread.sleep(250);
+
+        assertTrue(enforcer.run(clientPass::send, notification));
+        assertEquals(CircuitBreakerPolicy.State.CLOSED, circuitBreaker.getState());
+        assertEquals(
+                List.of(CircuitBreakerPolicy.State.OPEN, CircuitBreakerPolicy.State.HALF_OPEN, CircuitBreakerPolicy.State.CLOSED),
+                transitions
+        );
+    }
+
+    @Test
+    void testCircuitBreakerRecordsErrors() throws InterruptedException {
+
+        CircuitBreakerPolicy circuitBreaker = CircuitBreakerPolicy.builder()
+                .withWindowSize(2)
+                .withMinimumCalls(2)
+                .withFailureRateThreshold(0.5)
+                .withOpenDuration(Duration.ofMillis(100))
+                .withHalfOpenCalls(1)
+                .build();
+
+        Function<String, String> failing = circuitBreaker.decorate(s -> {
+            throw new Error("linkage");
+        });
+        Function<String, String> passing = circuitBreaker.decorate(s -> s);
+
+        assertThrows(Error.class, () -> failing.apply("a"));
+        assertThrows(Error.class, () -> failing.apply("b"));
+        assertEquals(CircuitBreakerPolicy.State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(150);
+
+        //the failed trial call opens the breaker again instead of leaving it half open without permits
+        assertThrows(Error.class, () -> failing.apply("c"));
+        assertEquals(CircuitBreakerPolicy.State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(150);
+
+        assertEquals("d", passing.apply("d"));
+        assertEquals(CircuitBreakerPolicy.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void testSpamPolicyUnderContention() throws InterruptedException {
+
+        SpamPolicy spamPolicy = new SpamPolicy(Duration.ofSeconds(10), 1024);
+
+        int threads = 8;
+        int subjects = 2_000;
+        AtomicInteger passed = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int s = 0; s < subjects; s++) {
+                    try {
+                        spamPolicy.validate(new EmailNotification.EmailNotificationBuilder()
+                                .setFromEmail("fromEmail")
+                                .setSubject("subject" + (s % 64))
+                                .setBody("body")
+                                .setToRecipients(List.of(""))
+                                .build());
+                        passed.incrementAndGet();
+                    } catch (RuntimeException ex) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        //every subject passes exactly once within the cool down, no matter how many threads race for it
+        assertEquals(64, passed.get());
+        assertEquals(threads * subjects - 64, rejected.get());
+    }
+
+    @Test
+    void testSlidingWindowPerRecipientDomain() {
+
+        SlidingWindowRateLimitPolicy rateLimit = SlidingWindowRateLimitPolicy.builder()
+                .withLimit(2, Duration.ofMinutes(1))
+                .withKeys(RateLimitKeys.recipientDomains())
+                .build();
+
+        PolicyEnforcer<EmailNotification, Boolean> enforcer = PolicyEnforcer.<EmailNotification, Boolean>builder()
+                .withValidations(List.of(rateLimit))
+                .build();
+
+        var clientPass = new EmailClientPass();
+
+        Function<String, EmailNotification> to = recipient -> new EmailNotification.EmailNotificationBuilder()
+                .setFromEmail("fromEmail")
+                .setSubject("PolicyEnforcerTestRateLimit")
+                .setBody("PolicyEnforcerTestRateLimit")
+                .setToRecipients(List.of(recipient))
+                .build();
+
+        assertTrue(enforcer.run(clientPass::send, to.apply("a@example.com")));
+        assertTrue(enforcer.run(clientPass::send, to.apply("b@Example.com")));
+        //keys come from the bare address, not the display form
+        assertEquals(Set.of("example.com"), RateLimitKeys.recipientDomains().apply(to.apply("Carol <c@example.com>")));
+        assertEquals(Set.of("c@example.com"), RateLimitKeys.recipients().apply(to.apply("Carol <C@example.com>")));
+        assertThrows(RuntimeException.class, () -> enforcer.run(clientPass::send, to.apply("Carol <c@example.com>")));
+        assertTrue(enforcer.run(clientPass::send, to.apply("a@example.org")));
+
+        //a queue would wait for the oldest send to leave the window instead
+        assertTrue(rateLimit.reserve(to.apply("d@example.com")) > TimeUnit.SECONDS.toNanos(50));
+
+        //no key is idle, the oldest one is dropped so maxKeys is a hard cap
+        SlidingWindowRateLimitPolicy bounded = SlidingWindowRateLimitPolicy.builder()
+                .withLimit(1, Duration.ofMinutes(1))
+                .withKeys(RateLimitKeys.recipientDomains())
+                .withMaxKeys(2)
+                .build();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bounded.validate(to.apply("a@domain" + i + ".com")));
+            assertTrue(bounded.getKeys() <= 2);
+        }
+        assertThrows(RuntimeException.class, () -> bounded.validate(to.apply("a@domain9.com")));
+    }
+
+    @Test
+    void testMetrics() {
+
+        IMetricsRecorder previous = Metrics.recorder();
+        SimpleMetricsRecorder recorder = new SimpleMetricsRecorder();
+        Metrics.setRecorder(recorder);
+
+        try {
+
+            EmailNotification notification = new EmailNotification.EmailNotificationBuilder()
+                    .setFromEmail("fromEmail")
+                    .setSubject("PolicyEnforcerTestMetrics")
+                    .setBody("PolicyEnforcerTestMetrics")
+                    .setToRecipients(List.of(""))
+                    .build();
+
+            PolicyEnforcer<EmailNotification, Boolean> enforcer = PolicyEnforcer.<EmailNotification, Boolean>builder()
+                    .retry(RetryPolicy.builder()
+                            .withDelay(TimeUnit.MILLISECONDS, 1)
+                            .withMaxRetries(2)
+                            .handle(List.of(EmailNotificationException.class))
+                            .build())
+                    .setFallBack(List.of(n -> false))
+                    .build();
+
+            assertFalse(enforcer.run(new EmailClientError()::send, notification));
+
+            assertEquals(2, recorder.getCount(Metrics.RETRIES));
+            assertEquals(1, recorder.getCount(Metrics.RETRIES_EXHAUSTED));
+            assertEquals(1, recorder.getCount(Metrics.FALLBACKS));
+            assertEquals(2, recorder.getHistogram(Metrics.RETRY_DELAY).getCount());
+
+        } finally {
+            Metrics.setRecorder(previous);
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10_000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        //log linear buckets keep the relative error under 1/64
+        assertEquals(5_000_000, histogram.getValueAtQuantile(0.5), 5_000_000 / 64.0);
+        assertEquals(9_990_000, histogram.getValueAtQuantile(0.999), 9_990_000 / 64.0);
+        assertEquals(10_000_000, histogram.getMax());
+    }
 }
@@ -0,0 +1,114 @@
+package org.emailclient;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import org.emailclient.transports.PooledTransport;
+import org.emailclient.transports.TransportPool;
+import org.emailclient.transports.TransportPoolMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link TransportPool} against a {@link FakeSmtpServer}.
+ */
+class TransportPoolTest {
+
+    @Test
+    void testBorrowWaitsForAFreeTransport() throws Exception {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder().start();
+             TransportPool pool = pool(server)
+                     .withMaxSize(1)
+                     .withBorrowTimeout(Duration.ofMillis(100))
+                     .build()) {
+
+            final PooledTransport first = pool.borrow();
+
+            final long start = System.nanoTime();
+            assertThrows(MessagingException.class, pool::borrow);
+            assertTrue(System.nanoTime() - start >= Duration.ofMillis(100).toNanos());
+
+            pool.release(first, false);
+
+            //the idle transport is reused, no new connection
+            final PooledTransport second = pool.borrow();
+            assertSame(first, second);
+            pool.release(second, false);
+
+            final TransportPoolMetrics metrics = pool.getMetrics();
+            assertEquals(1, metrics.created());
+            assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test
+    void testBrokenTransportIsClosed() throws Exception {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder().start();
+             TransportPool pool = pool(server).withMaxSize(1).build()) {
+
+            final PooledTransport broken = pool.borrow();
+            pool.release(broken, true);
+
+            assertFalse(broken.getTransport().isConnected());
+            assertEquals(0, pool.getMetrics().open());
+
+            final PooledTransport replacement = pool.borrow();
+            assertTrue(replacement != broken);
+            pool.release(replacement, false);
+
+            assertEquals(2, pool.getMetrics().created());
+            assertEquals(2, server.getConnections());
+        }
+    }
+
+    @Test
+    void testIdleTransportsAreEvicted() throws Exception {
+
+        try (FakeSmtpServer server = FakeSmtpServer.builder().start();
+             TransportPool pool = pool(server)
+                     .withMaxIdle(Duration.ofMillis(50))
+                     .withEvictionInterval(Duration.ZERO)
+                     .build()) {
+
+            final PooledTransport first = pool.borrow();
+            final PooledTransport second = pool.borrow();
+            pool.release(first, false);
+            pool.release(second, false);
+
+            //not idle long enough yet
+            pool.evictIdle();
+            assertEquals(2, pool.getMetrics().idle());
+
+            Thread.sleep(100);
+            pool.evictIdle();
+
+            final TransportPoolMetrics metrics = pool.getMetrics();
+            assertEquals(0, metrics.idle());
+            assertEquals(0, metrics.open());
+            assertEquals(2, metrics.evicted());
+            assertFalse(first.getTransport().isConnected());
+
+            //the next borrow opens a new connection
+            pool.release(pool.borrow(), false);
+            assertEquals(3, pool.getMetrics().created());
+        }
+    }
+
+    private static TransportPool.TransportPoolBuilder pool(final FakeSmtpServer server) {
+
+        final Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+
+        return TransportPool.builder(Session.getInstance(props)).withPipelining(false);
+    }
+}